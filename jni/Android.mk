@@ -13,7 +13,8 @@ LOCAL_SRC_FILES:= \
     com_android_bluetooth_hid.cpp \
     com_android_bluetooth_hdp.cpp \
     com_android_bluetooth_pan.cpp \
-    com_android_bluetooth_gatt.cpp
+    com_android_bluetooth_gatt.cpp \
+    com_android_bluetooth_event_batch.cpp
 
 LOCAL_C_INCLUDES += \
     $(JNI_H_INCLUDE) \
@@ -16,6 +16,7 @@
 
 #define LOG_TAG "BluetoothServiceJni"
 #include "com_android_bluetooth.h"
+#include "com_android_bluetooth_event_batch.h"
 #include "hardware/bt_sock.h"
 #include "hardware/bt_mce.h"
 #include "utils/Log.h"
@@ -33,6 +34,10 @@
 namespace android {
 
 #define ADDITIONAL_NREFS 50
+
+// Record types for JniCallbacks.batchedEventsCallback()
+#define BATCH_DEVICE_PROPERTIES 1
+
 static jmethodID method_stateChangeCallback;
 static jmethodID method_adapterPropertyChangedCallback;
 static jmethodID method_devicePropertyChangedCallback;
@@ -47,6 +52,7 @@ static jmethodID method_acquireWakeLock;
 static jmethodID method_releaseWakeLock;
 static jmethodID method_deviceMasInstancesFoundCallback;
 static jmethodID method_energyInfo;
+static jmethodID method_batchedEventsCallback;
 
 static const bt_interface_t *sBluetoothInterface = NULL;
 static const btsock_interface_t *sBluetoothSocketInterface = NULL;
@@ -75,7 +81,13 @@ void checkAndClearExceptionFromCallback(JNIEnv* env,
     }
 }
 
-static bool checkCallbackThread() {
+static void deliver_batched_events(JNIEnv* env, jbyteArray events, jint count) {
+    env->CallVoidMethod(sJniCallbacksObj, method_batchedEventsCallback, events, count);
+}
+
+static EventBatch sEventBatch("BT Service Event Batch", deliver_batched_events);
+
+static bool isCallbackThread() {
     JNIEnv* env = AndroidRuntime::getJNIEnv();
     if (callbackEnv != env || callbackEnv == NULL) {
         ALOGE("Callback env check fail: env: %p, callback: %p", env, callbackEnv);
@@ -84,6 +96,35 @@ static bool checkCallbackThread() {
     return true;
 }
 
+// Unbatched callbacks flush sEventBatch first so Java still sees events in
+// the order the stack sent them.
+static bool checkCallbackThread() {
+    if (!isCallbackThread()) return false;
+    sEventBatch.flush(callbackEnv);
+    return true;
+}
+
+static bool batch_device_properties(bt_bdaddr_t *bd_addr, int num_properties,
+                                    bt_property_t *properties) {
+    if (num_properties > 0xFF) return false;
+    size_t length = sizeof(bt_bdaddr_t) + 1;
+    for (int i = 0; i < num_properties; i++) {
+        length += 4 + 2 + properties[i].len;
+    }
+
+    uint8_t* p = sEventBatch.begin(callbackEnv, BATCH_DEVICE_PROPERTIES, length);
+    if (p == NULL) return false;
+    p = EventBatch::putBytes(p, bd_addr, sizeof(bt_bdaddr_t));
+    p = EventBatch::putU8(p, num_properties);
+    for (int i = 0; i < num_properties; i++) {
+        p = EventBatch::putU32(p, properties[i].type);
+        p = EventBatch::putU16(p, properties[i].len);
+        p = EventBatch::putBytes(p, properties[i].val, properties[i].len);
+    }
+    sEventBatch.commit(callbackEnv);
+    return true;
+}
+
 static void adapter_state_change_callback(bt_state_t status) {
     if (!checkCallbackThread()) {
        ALOGE("Callback: '%s' is not called on the correct thread", __FUNCTION__);
@@ -181,7 +222,7 @@ static void adapter_properties_callback(bt_status_t status, int num_properties,
 
 static void remote_device_properties_callback(bt_status_t status, bt_bdaddr_t *bd_addr,
                                               int num_properties, bt_property_t *properties) {
-    if (!checkCallbackThread()) {
+    if (!isCallbackThread()) {
        ALOGE("Callback: '%s' is not called on the correct thread", __FUNCTION__);
        return;
     }
@@ -193,6 +234,8 @@ static void remote_device_properties_callback(bt_status_t status, bt_bdaddr_t *b
         return;
     }
 
+    if (batch_device_properties(bd_addr, num_properties, properties)) return;
+
     callbackEnv->PushLocalFrame(ADDITIONAL_NREFS);
 
     jobjectArray props;
@@ -281,6 +324,8 @@ static void device_found_callback(int num_properties, bt_property_t *properties)
 
     remote_device_properties_callback(BT_STATUS_SUCCESS, (bt_bdaddr_t *)properties[addr_index].val,
                                       num_properties, properties);
+    // deviceFoundCallback reads the properties just queued.
+    sEventBatch.flush(callbackEnv);
 
     callbackEnv->CallVoidMethod(sJniCallbacksObj, method_deviceFoundCallback, addr);
     checkAndClearExceptionFromCallback(callbackEnv, __FUNCTION__);
@@ -714,6 +759,8 @@ static void classInitNative(JNIEnv* env, jclass clazz) {
                                                     "deviceMasInstancesFoundCallback",
                                                     "(I[B[Ljava/lang/String;[I[I[I)V");
     method_energyInfo = env->GetMethodID(clazz, "energyInfoCallback", "(IIJJJJ)V");
+    method_batchedEventsCallback = env->GetMethodID(jniCallbackClass, "batchedEventsCallback",
+                                                    "([BI)V");
 
     char value[PROPERTY_VALUE_MAX];
     property_get("bluetooth.mock_stack", value, "");
@@ -743,9 +790,11 @@ static bool initNative(JNIEnv* env, jobject obj) {
     sJniCallbacksObj = env->NewGlobalRef(env->GetObjectField(obj, sJniCallbacksField));
 
     if (sBluetoothInterface) {
+        sEventBatch.start();
         int ret = sBluetoothInterface->init(&sBluetoothCallbacks);
         if (ret != BT_STATUS_SUCCESS) {
             ALOGE("Error while setting the callbacks: %d\n", ret);
+            sEventBatch.stop(env);
             sBluetoothInterface = NULL;
             return JNI_FALSE;
         }
@@ -753,6 +802,7 @@ static bool initNative(JNIEnv* env, jobject obj) {
         if (ret != BT_STATUS_SUCCESS) {
             ALOGE("Error while setting Bluetooth callouts: %d\n", ret);
             sBluetoothInterface->cleanup();
+            sEventBatch.stop(env);
             sBluetoothInterface = NULL;
             return JNI_FALSE;
         }
@@ -786,6 +836,7 @@ static bool cleanupNative(JNIEnv *env, jobject obj) {
     sBluetoothInterface->cleanup();
     ALOGI("%s: return from cleanup",__FUNCTION__);
 
+    sEventBatch.stop(env);
     env->DeleteGlobalRef(sJniCallbacksObj);
     env->DeleteGlobalRef(sJniAdapterServiceObj);
     return JNI_TRUE;
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define LOG_TAG "BluetoothEventBatch"
+
+#include "com_android_bluetooth.h"
+#include "com_android_bluetooth_event_batch.h"
+#include "utils/Log.h"
+#include "android_runtime/AndroidRuntime.h"
+
+#include <errno.h>
+#include <string.h>
+
+namespace android {
+
+// Longest a record may wait in the buffer before the flush thread delivers it.
+#define FLUSH_DELAY_MS 5
+// Records closer together than this are treated as part of a burst.
+#define BURST_GAP_NS (2 * 1000000LL)
+#define MIN_BATCH_EVENTS 1
+#define MAX_BATCH_EVENTS 128
+
+static int64_t monotonicNs() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t) now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+EventBatch::EventBatch(const char* threadName, DeliverCallback deliver)
+    : mThreadName(threadName),
+      mDeliver(deliver),
+      mRunning(false),
+      mLength(0),
+      mCount(0),
+      mMaxEvents(MIN_BATCH_EVENTS),
+      mLastEventNs(0) {
+    pthread_mutex_init(&mLock, NULL);
+    pthread_mutex_init(&mDeliverLock, NULL);
+    // Deadlines are monotonic so a wall clock change cannot stretch or skip
+    // a flush.
+    pthread_condattr_t attr;
+    pthread_condattr_init(&attr);
+    pthread_condattr_setclock(&attr, CLOCK_MONOTONIC);
+    pthread_cond_init(&mCond, &attr);
+    pthread_condattr_destroy(&attr);
+}
+
+void EventBatch::start() {
+    pthread_mutex_lock(&mLock);
+    if (mRunning) {
+        pthread_mutex_unlock(&mLock);
+        return;
+    }
+    mRunning = true;
+    mLength = 0;
+    mCount = 0;
+    mMaxEvents = MIN_BATCH_EVENTS;
+    if (pthread_create(&mThread, NULL, flushThread, this) != 0) {
+        ALOGE("%s: unable to start flush thread", mThreadName);
+        mRunning = false;
+    }
+    pthread_mutex_unlock(&mLock);
+}
+
+void EventBatch::stop(JNIEnv* env) {
+    pthread_mutex_lock(&mLock);
+    if (!mRunning) {
+        pthread_mutex_unlock(&mLock);
+        return;
+    }
+    if (mCount > 0) deliverLocked(env);
+    mRunning = false;
+    pthread_cond_signal(&mCond);
+    pthread_mutex_unlock(&mLock);
+    pthread_join(mThread, NULL);
+}
+
+uint8_t* EventBatch::begin(JNIEnv* env, uint8_t type, size_t length) {
+    if (HEADER_SIZE + length > CAPACITY || length > 0xFFFF) {
+        ALOGW("%s: record type %d too large to batch (%zu)", mThreadName, type, length);
+        return NULL;
+    }
+    pthread_mutex_lock(&mLock);
+    if (!mRunning) {
+        pthread_mutex_unlock(&mLock);
+        return NULL;
+    }
+    if (mLength + HEADER_SIZE + length > CAPACITY) {
+        deliverLocked(env);
+        if (!mRunning) {
+            pthread_mutex_unlock(&mLock);
+            return NULL;
+        }
+    }
+    if (mCount == 0) {
+        clock_gettime(CLOCK_MONOTONIC, &mDeadline);
+        mDeadline.tv_nsec += FLUSH_DELAY_MS * 1000000L;
+        if (mDeadline.tv_nsec >= 1000000000L) {
+            mDeadline.tv_sec++;
+            mDeadline.tv_nsec -= 1000000000L;
+        }
+        pthread_cond_signal(&mCond);
+    }
+    uint8_t* p = mBuffer + mLength;
+    p = putU8(p, type);
+    p = putU16(p, (uint16_t) length);
+    mLength += HEADER_SIZE + length;
+    mCount++;
+    // The lock stays held until commit() so the flush thread never sees a
+    // half-written record.
+    return p;
+}
+
+void EventBatch::commit(JNIEnv* env) {
+    int64_t now = monotonicNs();
+    bool burst = (now - mLastEventNs) < BURST_GAP_NS;
+    mLastEventNs = now;
+    if (mCount >= mMaxEvents) {
+        deliverLocked(env);
+        if (burst && mMaxEvents < MAX_BATCH_EVENTS) {
+            mMaxEvents *= 2;
+        }
+    }
+    pthread_mutex_unlock(&mLock);
+}
+
+void EventBatch::flush(JNIEnv* env) {
+    pthread_mutex_lock(&mLock);
+    if (mCount > 0) {
+        deliverLocked(env);
+    } else {
+        // Wait out a timer delivery still in Java, so the caller's own
+        // callback cannot overtake or overlap it.
+        pthread_mutex_lock(&mDeliverLock);
+        pthread_mutex_unlock(&mDeliverLock);
+    }
+    pthread_mutex_unlock(&mLock);
+}
+
+void* EventBatch::flushThread(void* arg) {
+    ((EventBatch*) arg)->run();
+    return NULL;
+}
+
+void EventBatch::run() {
+    JavaVM* vm = AndroidRuntime::getJavaVM();
+    JNIEnv* env = NULL;
+    JavaVMAttachArgs args;
+    args.version = JNI_VERSION_1_6;
+    args.name = (char*) mThreadName;
+    args.group = NULL;
+    if (vm->AttachCurrentThread(&env, &args) != JNI_OK) {
+        ALOGE("%s: unable to attach flush thread", mThreadName);
+        return;
+    }
+
+    pthread_mutex_lock(&mLock);
+    while (mRunning) {
+        if (mCount == 0) {
+            pthread_cond_wait(&mCond, &mLock);
+            continue;
+        }
+        if (pthread_cond_timedwait(&mCond, &mLock, &mDeadline) == ETIMEDOUT
+                && mRunning && mCount > 0) {
+            // Timer flushes mean the load did not fill a batch: shrink it so
+            // the next records reach Java sooner.
+            if (mCount < mMaxEvents / 2) {
+                mMaxEvents = mMaxEvents / 2 < MIN_BATCH_EVENTS
+                        ? MIN_BATCH_EVENTS : mMaxEvents / 2;
+            }
+            deliverLocked(env);
+        }
+    }
+    pthread_mutex_unlock(&mLock);
+
+    vm->DetachCurrentThread();
+}
+
+void EventBatch::deliverLocked(JNIEnv* env) {
+    // Copy the records out so the buffer is free again before Java runs.
+    jint count = mCount;
+    jbyteArray events = env->NewByteArray(mLength);
+    if (events == NULL) {
+        ALOGE("%s: unable to allocate %zu byte batch, dropping %d events", mThreadName,
+              mLength, mCount);
+        env->ExceptionClear();
+    } else {
+        env->SetByteArrayRegion(events, 0, mLength, (jbyte*) mBuffer);
+    }
+    mLength = 0;
+    mCount = 0;
+
+    // Taking mDeliverLock before dropping mLock keeps batches in the order
+    // they were cut, and only one thread is ever inside Java at a time.
+    pthread_mutex_lock(&mDeliverLock);
+    pthread_mutex_unlock(&mLock);
+    if (events != NULL) {
+        mDeliver(env, events, count);
+        checkAndClearExceptionFromCallback(env, mThreadName);
+        env->DeleteLocalRef(events);
+    }
+    pthread_mutex_unlock(&mDeliverLock);
+    pthread_mutex_lock(&mLock);
+}
+
+uint8_t* EventBatch::putU8(uint8_t* p, uint8_t value) {
+    *p++ = value;
+    return p;
+}
+
+uint8_t* EventBatch::putU16(uint8_t* p, uint16_t value) {
+    *p++ = value & 0xFF;
+    *p++ = (value >> 8) & 0xFF;
+    return p;
+}
+
+uint8_t* EventBatch::putU32(uint8_t* p, uint32_t value) {
+    p = putU16(p, value & 0xFFFF);
+    return putU16(p, (value >> 16) & 0xFFFF);
+}
+
+uint8_t* EventBatch::putU64(uint8_t* p, uint64_t value) {
+    p = putU32(p, (uint32_t) (value & 0xFFFFFFFF));
+    return putU32(p, (uint32_t) (value >> 32));
+}
+
+uint8_t* EventBatch::putBytes(uint8_t* p, const void* data, size_t length) {
+    memcpy(p, data, length);
+    return p + length;
+}
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef COM_ANDROID_BLUETOOTH_EVENT_BATCH_H
+#define COM_ANDROID_BLUETOOTH_EVENT_BATCH_H
+
+#include "jni.h"
+
+#include <pthread.h>
+#include <stdint.h>
+#include <stddef.h>
+#include <time.h>
+
+namespace android {
+
+/**
+ * Collects high-rate HAL callbacks into one packed buffer and hands them to
+ * Java in a single call, amortizing the JNI transition and array allocation
+ * across a burst.
+ *
+ * Each record is laid out as [type:u8][length:u16][payload], all integers
+ * little-endian; com.android.bluetooth.NativeEventReader decodes the same
+ * format. Records are written by the HAL callback thread only. A batch is
+ * delivered when it reaches the current batch size, when the buffer is full,
+ * when flush() is called (callers do this before any unbatched callback so
+ * Java sees events in HAL order), or at the latest FLUSH_DELAY_MS after its
+ * first record by a helper thread. The batch size doubles while records
+ * arrive back to back and halves when the timer finds a batch mostly empty,
+ * so a quiet link still gets one-event batches with no added latency.
+ *
+ * A batch is copied out under mLock and handed to Java with only
+ * mDeliverLock held, so the HAL thread can queue records while another batch
+ * is being delivered. Deliveries never overlap and arrive in order. A timer
+ * flush runs on the helper thread rather than the HAL callback thread, but
+ * it cannot run concurrently with any HAL callback into Java: every
+ * unbatched callback flushes first, which waits for a delivery in progress,
+ * and only the HAL thread adds records.
+ */
+class EventBatch {
+public:
+    typedef void (*DeliverCallback)(JNIEnv* env, jbyteArray events, jint count);
+
+    EventBatch(const char* threadName, DeliverCallback deliver);
+
+    /** Starts the flush thread. Records are rejected until this is called. */
+    void start();
+
+    /** Delivers anything pending on |env| and stops the flush thread. */
+    void stop(JNIEnv* env);
+
+    /**
+     * Reserves |length| bytes of payload for a record of |type| and returns a
+     * writer positioned at the payload, or NULL if the batch is not running
+     * or the record cannot fit. On success the caller must fill exactly
+     * |length| bytes and then call commit().
+     */
+    uint8_t* begin(JNIEnv* env, uint8_t type, size_t length);
+
+    void commit(JNIEnv* env);
+
+    /** Delivers any pending records now, on |env|. */
+    void flush(JNIEnv* env);
+
+    static uint8_t* putU8(uint8_t* p, uint8_t value);
+    static uint8_t* putU16(uint8_t* p, uint16_t value);
+    static uint8_t* putU32(uint8_t* p, uint32_t value);
+    static uint8_t* putU64(uint8_t* p, uint64_t value);
+    static uint8_t* putBytes(uint8_t* p, const void* data, size_t length);
+
+private:
+    static const size_t CAPACITY = 16 * 1024;
+    static const size_t HEADER_SIZE = 3;
+
+    static void* flushThread(void* arg);
+    void run();
+    // Called and returns with mLock held, but drops it while Java runs.
+    void deliverLocked(JNIEnv* env);
+
+    const char* mThreadName;
+    DeliverCallback mDeliver;
+
+    pthread_mutex_t mLock;
+    pthread_mutex_t mDeliverLock;
+    pthread_cond_t mCond;
+    pthread_t mThread;
+    bool mRunning;
+
+    uint8_t mBuffer[CAPACITY];
+    size_t mLength;
+    jint mCount;
+    jint mMaxEvents;
+    struct timespec mDeadline;
+    int64_t mLastEventNs;
+};
+
+}
+
+#endif /* COM_ANDROID_BLUETOOTH_EVENT_BATCH_H */
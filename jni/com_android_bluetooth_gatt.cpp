@@ -20,12 +20,22 @@
 #define LOG_NDEBUG 0
 
 #define CHECK_CALLBACK_ENV                                                      \
+   if (!checkCallbackThread()) {                                                \
+       error("Callback: '%s' is not called on the correct thread", __FUNCTION__);\
+       return;                                                                  \
+   }                                                                            \
+   sEventBatch.flush(sCallbackEnv);
+
+// For callbacks that go through sEventBatch; everything else flushes the
+// batch first so Java still sees events in the order the stack sent them.
+#define CHECK_BATCHED_CALLBACK_ENV                                              \
    if (!checkCallbackThread()) {                                                \
        error("Callback: '%s' is not called on the correct thread", __FUNCTION__);\
        return;                                                                  \
    }
 
 #include "com_android_bluetooth.h"
+#include "com_android_bluetooth_event_batch.h"
 #include "hardware/bt_gatt.h"
 #include "utils/Log.h"
 #include "android_runtime/AndroidRuntime.h"
@@ -41,6 +51,13 @@
 
 #define BD_ADDR_LEN 6
 
+// Record types for GattService.onBatchedEvents()
+#define BATCH_SCAN_RESULT   1
+#define BATCH_NOTIFY        2
+#define BATCH_REMOTE_RSSI   3
+
+#define ADV_DATA_LEN 62
+
 #define UUID_PARAMS(uuid_ptr) \
     uuid_lsb(uuid_ptr),  uuid_msb(uuid_ptr)
 
@@ -172,6 +189,7 @@ static jmethodID method_onBatchScanStartStopped;
 static jmethodID method_onBatchScanReports;
 static jmethodID method_onBatchScanThresholdCrossed;
 static jmethodID method_onTrackAdvFoundLost;
+static jmethodID method_onBatchedEvents;
 
 /**
  * Server callback methods
@@ -200,6 +218,13 @@ static const btgatt_interface_t *sGattIf = NULL;
 static jobject mCallbacksObj = NULL;
 static JNIEnv *sCallbackEnv = NULL;
 
+static void deliver_batched_events(JNIEnv* env, jbyteArray events, jint count)
+{
+    env->CallVoidMethod(mCallbacksObj, method_onBatchedEvents, events, count);
+}
+
+static EventBatch sEventBatch("BT Gatt Event Batch", deliver_batched_events);
+
 static bool checkCallbackThread() {
     sCallbackEnv = getCallbackEnv();
 
@@ -222,7 +247,18 @@ void btgattc_register_app_cb(int status, int clientIf, bt_uuid_t *app_uuid)
 
 void btgattc_scan_result_cb(bt_bdaddr_t* bda, int rssi, uint8_t* adv_data)
 {
-    CHECK_CALLBACK_ENV
+    CHECK_BATCHED_CALLBACK_ENV
+
+    uint8_t* p = sEventBatch.begin(sCallbackEnv, BATCH_SCAN_RESULT,
+            BD_ADDR_LEN + 4 + ADV_DATA_LEN);
+    if (p != NULL)
+    {
+        p = EventBatch::putBytes(p, bda->address, BD_ADDR_LEN);
+        p = EventBatch::putU32(p, rssi);
+        EventBatch::putBytes(p, adv_data, ADV_DATA_LEN);
+        sEventBatch.commit(sCallbackEnv);
+        return;
+    }
 
     char c_address[32];
     snprintf(c_address, sizeof(c_address),"%02X:%02X:%02X:%02X:%02X:%02X",
@@ -230,8 +266,8 @@ void btgattc_scan_result_cb(bt_bdaddr_t* bda, int rssi, uint8_t* adv_data)
         bda->address[3], bda->address[4], bda->address[5]);
 
     jstring address = sCallbackEnv->NewStringUTF(c_address);
-    jbyteArray jb = sCallbackEnv->NewByteArray(62);
-    sCallbackEnv->SetByteArrayRegion(jb, 0, 62, (jbyte *) adv_data);
+    jbyteArray jb = sCallbackEnv->NewByteArray(ADV_DATA_LEN);
+    sCallbackEnv->SetByteArrayRegion(jb, 0, ADV_DATA_LEN, (jbyte *) adv_data);
 
     sCallbackEnv->CallVoidMethod(mCallbacksObj, method_onScanResult
         , address, rssi, jb);
@@ -330,7 +366,29 @@ void btgattc_register_for_notification_cb(int conn_id, int registered, int statu
 
 void btgattc_notify_cb(int conn_id, btgatt_notify_params_t *p_data)
 {
-    CHECK_CALLBACK_ENV
+    CHECK_BATCHED_CALLBACK_ENV
+
+    uint8_t* p = sEventBatch.begin(sCallbackEnv, BATCH_NOTIFY,
+            4 + BD_ADDR_LEN + 3 * 4 + 4 * 8 + 1 + p_data->len);
+    if (p != NULL)
+    {
+        btgatt_srvc_id_t* srvc_id = &p_data->srvc_id;
+        btgatt_gatt_id_t* char_id = &p_data->char_id;
+        p = EventBatch::putU32(p, conn_id);
+        p = EventBatch::putBytes(p, p_data->bda.address, BD_ADDR_LEN);
+        p = EventBatch::putU32(p, srvc_id->is_primary ?
+                BTGATT_SERVICE_TYPE_PRIMARY : BTGATT_SERVICE_TYPE_SECONDARY);
+        p = EventBatch::putU32(p, srvc_id->id.inst_id);
+        p = EventBatch::putU64(p, uuid_lsb(&srvc_id->id.uuid));
+        p = EventBatch::putU64(p, uuid_msb(&srvc_id->id.uuid));
+        p = EventBatch::putU32(p, char_id->inst_id);
+        p = EventBatch::putU64(p, uuid_lsb(&char_id->uuid));
+        p = EventBatch::putU64(p, uuid_msb(&char_id->uuid));
+        p = EventBatch::putU8(p, p_data->is_notify ? 1 : 0);
+        EventBatch::putBytes(p, p_data->value, p_data->len);
+        sEventBatch.commit(sCallbackEnv);
+        return;
+    }
 
     char c_address[32];
     snprintf(c_address, sizeof(c_address), "%02X:%02X:%02X:%02X:%02X:%02X",
@@ -425,7 +483,18 @@ void btgattc_write_descriptor_cb(int conn_id, int status, btgatt_write_params_t
 
 void btgattc_remote_rssi_cb(int client_if,bt_bdaddr_t* bda, int rssi, int status)
 {
-    CHECK_CALLBACK_ENV
+    CHECK_BATCHED_CALLBACK_ENV
+
+    uint8_t* p = sEventBatch.begin(sCallbackEnv, BATCH_REMOTE_RSSI, 4 + BD_ADDR_LEN + 4 + 4);
+    if (p != NULL)
+    {
+        p = EventBatch::putU32(p, client_if);
+        p = EventBatch::putBytes(p, bda->address, BD_ADDR_LEN);
+        p = EventBatch::putU32(p, rssi);
+        EventBatch::putU32(p, status);
+        sEventBatch.commit(sCallbackEnv);
+        return;
+    }
 
     char c_address[32];
     snprintf(c_address, sizeof(c_address),"%02X:%02X:%02X:%02X:%02X:%02X",
@@ -811,6 +880,7 @@ static void classInitNative(JNIEnv* env, jclass clazz) {
 
     method_onClientRegistered = env->GetMethodID(clazz, "onClientRegistered", "(IIJJ)V");
     method_onScanResult = env->GetMethodID(clazz, "onScanResult", "(Ljava/lang/String;I[B)V");
+    method_onBatchedEvents = env->GetMethodID(clazz, "onBatchedEvents", "([BI)V");
     method_onConnected   = env->GetMethodID(clazz, "onConnected", "(IIILjava/lang/String;)V");
     method_onDisconnected = env->GetMethodID(clazz, "onDisconnected", "(IIILjava/lang/String;)V");
     method_onReadCharacteristic = env->GetMethodID(clazz, "onReadCharacteristic", "(IIIIJJIJJI[B)V");
@@ -900,6 +970,7 @@ static void initializeNative(JNIEnv *env, jobject object) {
     }
 
     mCallbacksObj = env->NewGlobalRef(object);
+    sEventBatch.start();
 }
 
 static void cleanupNative(JNIEnv *env, jobject object) {
@@ -911,6 +982,8 @@ static void cleanupNative(JNIEnv *env, jobject object) {
         sGattIf = NULL;
     }
 
+    sEventBatch.stop(env);
+
     if (mCallbacksObj != NULL) {
         env->DeleteGlobalRef(mCallbacksObj);
         mCallbacksObj = NULL;
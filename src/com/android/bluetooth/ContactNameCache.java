@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.CursorWindowAllocationException;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Phone number to visible contact lookups shared by MAP and PBAP.
+ *
+ * Results of PhoneLookup queries are kept per normalized number in a bounded
+ * LRU map, including numbers that match no contact, so a message listing or
+ * search that names the same few correspondents many times queries the
+ * contacts provider once per number. The whole cache is dropped when anything
+ * under ContactsContract.AUTHORITY_URI changes.
+ *
+ * @hide
+ */
+final public class ContactNameCache {
+    private static final String TAG = "ContactNameCache";
+    private static final boolean V = Log.isLoggable(TAG, Log.VERBOSE);
+
+    private static final int MAX_ENTRIES = 512;
+
+    private static final String[] PROJECTION = new String[] {
+            Contacts._ID, Contacts.DISPLAY_NAME
+    };
+
+    private static final String SELECTION = Contacts.IN_VISIBLE_GROUP + "=1";
+
+    // the provider's collation, which names listing entries
+    private static final String ORDER_BY = Contacts.DISPLAY_NAME + " ASC";
+
+    private static final Comparator<Contact> BY_ID = new Comparator<Contact>() {
+        @Override
+        public int compare(Contact a, Contact b) {
+            return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+        }
+    };
+
+    /**
+     * One visible contact matching a number.
+     */
+    public static final class Contact {
+        public final long id;
+        public final String name;
+
+        Contact(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    /**
+     * The lookup result for one number.
+     */
+    private static final class Entry {
+        // ordered by contact id
+        final List<Contact> mContacts;
+        // display name of the first match in display name order
+        final String mName;
+
+        Entry(List<Contact> contacts, String name) {
+            mContacts = contacts;
+            mName = name;
+        }
+    }
+
+    private static final Entry NO_MATCH = new Entry(Collections.<Contact>emptyList(), null);
+
+    private static ContactNameCache sInstance;
+
+    private final ContentResolver mResolver;
+
+    // normalized number -> matches, NO_MATCH for none
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    // bumped on every invalidation, so a query that raced a contacts change
+    // does not store its stale result
+    private int mGeneration;
+    private int mHits;
+    private int mNegativeHits;
+    private int mMisses;
+    private int mInvalidations;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    private ContactNameCache(Context context) {
+        mResolver = context.getContentResolver();
+        mResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true, mObserver);
+    }
+
+    public static synchronized ContactNameCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactNameCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the visible contacts matching {@code number} ordered by contact
+     *         id, an empty list if there are none, or null if the lookup
+     *         failed
+     */
+    public List<Contact> lookup(String number) {
+        Entry entry = lookupEntry(number);
+        return entry != null ? entry.mContacts : null;
+    }
+
+    /**
+     * @return the display name of the visible contact matching
+     *         {@code number} that the contacts provider sorts first by display
+     *         name, or null
+     */
+    public String lookupName(String number) {
+        Entry entry = lookupEntry(number);
+        return entry != null ? entry.mName : null;
+    }
+
+    private Entry lookupEntry(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return NO_MATCH;
+        }
+        String key = PhoneNumberUtils.normalizeNumber(number);
+        if (TextUtils.isEmpty(key)) {
+            // not a dialable number, e.g. an email address
+            key = number;
+        }
+        int generation;
+        synchronized (this) {
+            Entry cached = mEntries.get(key);
+            if (cached != null) {
+                if (cached == NO_MATCH) {
+                    mNegativeHits++;
+                } else {
+                    mHits++;
+                }
+                return cached;
+            }
+            mMisses++;
+            generation = mGeneration;
+        }
+
+        Entry entry = query(number);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mEntries.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    private Entry query(String number) {
+        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
+        Cursor c = null;
+        try {
+            c = mResolver.query(uri, PROJECTION, SELECTION, null, ORDER_BY);
+            if (c == null) {
+                return null;
+            }
+            if (c.getCount() == 0) {
+                return NO_MATCH;
+            }
+            ArrayList<Contact> matches = new ArrayList<Contact>(c.getCount());
+            while (c.moveToNext()) {
+                matches.add(new Contact(c.getLong(0), c.getString(1)));
+            }
+            String name = matches.get(0).name;
+            Collections.sort(matches, BY_ID);
+            if (V) Log.v(TAG, "Number " + number + " matched " + matches.size() + " contacts");
+            return new Entry(Collections.unmodifiableList(matches), name);
+        } catch (CursorWindowAllocationException e) {
+            Log.e(TAG, "CursorWindowAllocationException while looking up a number");
+            return null;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    synchronized void invalidate() {
+        if (V) Log.v(TAG, "Contacts changed, dropping " + mEntries.size() + " entries");
+        mEntries.clear();
+        mGeneration++;
+        mInvalidations++;
+    }
+
+    public static void dump(PrintWriter writer) {
+        ContactNameCache cache;
+        synchronized (ContactNameCache.class) {
+            cache = sInstance;
+        }
+        if (cache != null) {
+            cache.dumpStats(writer);
+        }
+    }
+
+    private synchronized void dumpStats(PrintWriter writer) {
+        int total = mHits + mNegativeHits + mMisses;
+        writer.println("Contact name cache: entries=" + mEntries.size() + "/" + MAX_ENTRIES
+                + " lookups=" + total + " hits=" + mHits + " negativeHits=" + mNegativeHits
+                + " misses=" + mMisses + " hitRate="
+                + (total > 0 ? (mHits + mNegativeHits) * 100 / total : 0) + "%"
+                + " invalidations=" + mInvalidations);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes a batch of events packed by the native EventBatch
+ * (jni/com_android_bluetooth_event_batch.h).
+ *
+ * A batch is a sequence of records laid out as [type:u8][length:u16][payload]
+ * with little-endian integers. Call {@link #next()} to move to each record,
+ * then read its payload fields in the order the native side wrote them.
+ * Unread payload bytes are skipped by the following {@link #next()}.
+ *
+ * @hide
+ */
+public final class NativeEventReader {
+    private static final int RECORD_HEADER_LEN = 3;
+
+    private final ByteBuffer mBuffer;
+    private int mRemainingRecords;
+    private int mType;
+    private int mRecordEnd;
+
+    public NativeEventReader(byte[] events, int count) {
+        mBuffer = ByteBuffer.wrap(events).order(ByteOrder.LITTLE_ENDIAN);
+        mRemainingRecords = count;
+    }
+
+    /**
+     * Move to the next record.
+     *
+     * @return false once every record has been visited
+     */
+    public boolean next() {
+        mBuffer.position(mRecordEnd);
+        if (mRemainingRecords == 0 || mBuffer.remaining() < RECORD_HEADER_LEN) {
+            return false;
+        }
+        mRemainingRecords--;
+        mType = mBuffer.get() & 0xFF;
+        int length = mBuffer.getShort() & 0xFFFF;
+        mRecordEnd = mBuffer.position() + length;
+        if (mRecordEnd > mBuffer.limit()) {
+            throw new IllegalStateException("Truncated record of type " + mType);
+        }
+        return true;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public boolean readBoolean() {
+        return mBuffer.get() != 0;
+    }
+
+    public int readUnsignedByte() {
+        return mBuffer.get() & 0xFF;
+    }
+
+    public int readUnsignedShort() {
+        return mBuffer.getShort() & 0xFFFF;
+    }
+
+    public int readInt() {
+        return mBuffer.getInt();
+    }
+
+    public long readLong() {
+        return mBuffer.getLong();
+    }
+
+    /**
+     * @return the next six bytes as a "XX:XX:XX:XX:XX:XX" address string
+     */
+    public String readAddress() {
+        return Utils.getAddressStringFromByte(readAddressBytes());
+    }
+
+    public byte[] readAddressBytes() {
+        return readBytes(Utils.BD_ADDR_LEN);
+    }
+
+    public byte[] readBytes(int length) {
+        byte[] value = new byte[length];
+        mBuffer.get(value);
+        return value;
+    }
+
+    /**
+     * @return every byte left in the current record
+     */
+    public byte[] readRemaining() {
+        return readBytes(mRecordEnd - mBuffer.position());
+    }
+}
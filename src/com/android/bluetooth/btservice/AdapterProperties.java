@@ -484,6 +484,7 @@ class AdapterProperties {
         Intent intent;
         int type;
         byte[] val;
+        AdapterTimeline.mark(AdapterTimeline.ADAPTER_PROPERTIES);
         for (int i = 0; i < types.length; i++) {
             val = values[i];
             type = types[i];
@@ -592,6 +593,11 @@ class AdapterProperties {
                     setDiscoverableTimeout(mDiscoverableTimeout);
             }
         }
+        // The bonded device list is complete by now; forget any cached
+        // devices that were unpaired while the adapter was off.
+        if (mRemoteDevices != null) {
+            mRemoteDevices.pruneCache(getBondedDevices());
+        }
     }
 
     private boolean mBluetoothDisabling=false;
@@ -59,17 +59,15 @@ import com.android.bluetooth.hid.HidService;
 import com.android.bluetooth.hfp.HeadsetService;
 import com.android.bluetooth.hdp.HealthService;
 import com.android.bluetooth.pan.PanService;
+import com.android.bluetooth.ContactNameCache;
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.RemoteDevices.DeviceProperties;
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Set;
-import java.util.Map;
-import java.util.Iterator;
-import java.util.Map.Entry;
 import java.util.List;
 import android.content.pm.PackageManager;
 import android.os.ServiceManager;
@@ -162,7 +160,7 @@ public class AdapterService extends Service {
     private boolean mProfilesStarted;
     private boolean mNativeAvailable;
     private boolean mCleaningUp;
-    private HashMap<String,Integer> mProfileServicesState = new HashMap<String,Integer>();
+    private ProfileStartupOrchestrator mProfileStartup;
     private RemoteCallbackList<IBluetoothCallback> mCallbacks;//Only BluetoothManagerService should be registered
     private int mCurrentRequestId;
     private boolean mQuietmode = false;
@@ -262,17 +260,11 @@ public class AdapterService extends Service {
     }
 
     private void processProfileServiceStateChanged(String serviceName, int state) {
-        boolean doUpdate=false;
+        boolean doUpdate;
         boolean isTurningOn;
         boolean isTurningOff;
 
-        synchronized (mProfileServicesState) {
-            Integer prevState = mProfileServicesState.get(serviceName);
-            if (prevState != null && prevState != state) {
-                mProfileServicesState.put(serviceName,state);
-                doUpdate=true;
-            }
-        }
+        doUpdate = mProfileStartup.onStateChanged(serviceName, state);
         debugLog("onProfileServiceStateChange() serviceName=" + serviceName
             + ", state=" + state +", doUpdate=" + doUpdate);
 
@@ -288,16 +280,9 @@ public class AdapterService extends Service {
         if (isTurningOff) {
             //Process stop or disable pending
             //Check if all services are stopped if so, do cleanup
-            synchronized (mProfileServicesState) {
-                Iterator<Map.Entry<String,Integer>> i = mProfileServicesState.entrySet().iterator();
-                while (i.hasNext()) {
-                    Map.Entry<String,Integer> entry = i.next();
-                    if (BluetoothAdapter.STATE_OFF != entry.getValue()) {
-                        debugLog("onProfileServiceStateChange() - Profile still running: "
-                            + entry.getKey());
-                        return;
-                    }
-                }
+            if (!mProfileStartup.isComplete()) {
+                debugLog("onProfileServiceStateChange() - Profiles still running");
+                return;
             }
             debugLog("onProfileServiceStateChange() - All profile services stopped...");
             //Send message to state machine
@@ -306,16 +291,9 @@ public class AdapterService extends Service {
         } else if (isTurningOn) {
             //Process start pending
             //Check if all services are started if so, update state
-            synchronized (mProfileServicesState) {
-                Iterator<Map.Entry<String,Integer>> i = mProfileServicesState.entrySet().iterator();
-                while (i.hasNext()) {
-                    Map.Entry<String,Integer> entry = i.next();
-                    if (BluetoothAdapter.STATE_ON != entry.getValue()) {
-                        debugLog("onProfileServiceStateChange() - Profile still not running:"
-                            + entry.getKey());
-                        return;
-                    }
-                }
+            if (!mProfileStartup.isComplete()) {
+                debugLog("onProfileServiceStateChange() - Profiles still not running");
+                return;
             }
             debugLog("onProfileServiceStateChange() - All profile services started.");
             mProfilesStarted=true;
@@ -332,6 +310,7 @@ public class AdapterService extends Service {
         mAdapterProperties = new AdapterProperties(this);
         mAdapterStateMachine =  AdapterState.make(this, mAdapterProperties);
         mJniCallbacks =  new JniCallbacks(mAdapterStateMachine, mAdapterProperties);
+        mProfileStartup = new ProfileStartupOrchestrator(this);
         initNative();
         mNativeAvailable=true;
         mCallbacks = new RemoteCallbackList<IBluetoothCallback>();
@@ -361,12 +340,12 @@ public class AdapterService extends Service {
 
     void processStart() {
         debugLog("processStart()");
+        AdapterTimeline.mark(AdapterTimeline.PROCESS_START);
         Class[] supportedProfileServices = Config.getSupportedProfiles();
         //Initialize data objects
-        for (int i=0; i < supportedProfileServices.length;i++) {
-            mProfileServicesState.put(supportedProfileServices[i].getName(),BluetoothAdapter.STATE_OFF);
-        }
+        mProfileStartup.init(supportedProfileServices);
         mRemoteDevices = new RemoteDevices(this);
+        mRemoteDevices.loadCachedProperties();
         mAdapterProperties.init(mRemoteDevices);
 
         debugLog("processStart() - Make Bond State Machine");
@@ -380,7 +359,7 @@ public class AdapterService extends Service {
         //Start profile services
         if (!mProfilesStarted && supportedProfileServices.length >0) {
             //Startup all profile services
-            setProfileServiceState(supportedProfileServices,BluetoothAdapter.STATE_ON);
+            mProfileStartup.setTargetState(BluetoothAdapter.STATE_ON);
         }else {
             debugLog("processStart() - Profile Services alreay started");
             mAdapterStateMachine.sendMessage(mAdapterStateMachine.obtainMessage(AdapterState.STARTED));
@@ -394,7 +373,7 @@ public class AdapterService extends Service {
     boolean stopProfileServices() {
         Class[] supportedProfileServices = Config.getSupportedProfiles();
         if (mProfilesStarted && supportedProfileServices.length>0) {
-            setProfileServiceState(supportedProfileServices,BluetoothAdapter.STATE_OFF);
+            mProfileStartup.setTargetState(BluetoothAdapter.STATE_OFF);
             return true;
         }
         debugLog("stopProfileServices() - No profiles services to stop or already stopped.");
@@ -469,8 +448,8 @@ public class AdapterService extends Service {
             mJniCallbacks.cleanup();
         }
 
-        if (mProfileServicesState != null) {
-            mProfileServicesState.clear();
+        if (mProfileStartup != null) {
+            mProfileStartup.clear();
         }
 
         clearAdapterService();
@@ -529,43 +508,6 @@ public class AdapterService extends Service {
         }
     };
 
-    @SuppressWarnings("rawtypes")
-    private void setProfileServiceState(Class[] services, int state) {
-        if (state != BluetoothAdapter.STATE_ON && state != BluetoothAdapter.STATE_OFF) {
-            debugLog("setProfileServiceState() - Invalid state, leaving...");
-            return;
-        }
-
-        int expectedCurrentState= BluetoothAdapter.STATE_OFF;
-        int pendingState = BluetoothAdapter.STATE_TURNING_ON;
-        if (state == BluetoothAdapter.STATE_OFF) {
-            expectedCurrentState= BluetoothAdapter.STATE_ON;
-            pendingState = BluetoothAdapter.STATE_TURNING_OFF;
-        }
-
-        for (int i=0; i <services.length;i++) {
-            String serviceName = services[i].getName();
-            Integer serviceState = mProfileServicesState.get(serviceName);
-            if(serviceState != null && serviceState != expectedCurrentState) {
-                debugLog("setProfileServiceState() - Unable to " 
-                    + (state == BluetoothAdapter.STATE_OFF ? "start" : "stop" )
-                    + " service " + serviceName
-                    + ". Invalid state: " + serviceState);
-                continue;
-            }
-
-            debugLog("setProfileServiceState() - "
-                + (state == BluetoothAdapter.STATE_OFF ? "Stopping" : "Starting")
-                + " service " + serviceName);
-
-            mProfileServicesState.put(serviceName,pendingState);
-            Intent intent = new Intent(this,services[i]);
-            intent.putExtra(EXTRA_ACTION,ACTION_SERVICE_STATE_CHANGED);
-            intent.putExtra(BluetoothAdapter.EXTRA_STATE,state);
-            startService(intent);
-        }
-    }
-
     private boolean isAvailable() {
         return !mCleaningUp;
     }
@@ -1790,6 +1732,37 @@ public class AdapterService extends Service {
         }
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+        for (String arg : args) {
+            if ("--timeline".equals(arg)) {
+                AdapterTimeline.dump(writer, true);
+                return;
+            }
+        }
+
+        AdapterProperties adapterProperties = mAdapterProperties;
+        if (adapterProperties != null) {
+            writer.println("Bluetooth Adapter state: " + adapterProperties.getState());
+        }
+        AdapterTimeline.dump(writer, false);
+        RemoteDevices remoteDevices = mRemoteDevices;
+        if (remoteDevices != null) {
+            remoteDevices.dump(writer);
+        }
+        BondStateMachine bondStateMachine = mBondStateMachine;
+        if (bondStateMachine != null) {
+            bondStateMachine.dump(writer);
+        }
+        ProfileStartupOrchestrator profileStartup = mProfileStartup;
+        if (profileStartup != null) {
+            profileStartup.dump(writer);
+        }
+        ContactNameCache.dump(writer);
+    }
+
     private void debugLog(String msg) {
         if (DBG) Log.d(TAG +"(" +hashCode()+")", msg);
     }
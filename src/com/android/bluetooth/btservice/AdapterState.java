@@ -128,6 +128,7 @@ final class AdapterState extends StateMachine {
             switch(msg.what) {
                case USER_TURN_ON:
                    if (DBG) Log.d(TAG,"CURRENT_STATE=OFF, MESSAGE = USER_TURN_ON");
+                   AdapterTimeline.mark(AdapterTimeline.USER_TURN_ON);
                    notifyAdapterStateChange(BluetoothAdapter.STATE_TURNING_ON);
                    mPendingCommandState.setTurningOn(true);
                    transitionTo(mPendingCommandState);
@@ -170,6 +171,7 @@ final class AdapterState extends StateMachine {
             switch(msg.what) {
                case USER_TURN_OFF:
                    if (DBG) Log.d(TAG,"CURRENT_STATE=ON, MESSAGE = USER_TURN_OFF");
+                   AdapterTimeline.mark(AdapterTimeline.USER_TURN_OFF);
                    notifyAdapterStateChange(BluetoothAdapter.STATE_TURNING_OFF);
                    mPendingCommandState.setTurningOff(true);
                    transitionTo(mPendingCommandState);
@@ -256,8 +258,10 @@ final class AdapterState extends StateMachine {
                     if (DBG) Log.d(TAG,"CURRENT_STATE=PENDING, MESSAGE = STARTED, isTurningOn=" + isTurningOn + ", isTurningOff=" + isTurningOff);
                     //Remove start timeout
                     removeMessages(START_TIMEOUT);
+                    AdapterTimeline.mark(AdapterTimeline.PROFILES_STARTED);
 
                     //Enable
+                    AdapterTimeline.mark(AdapterTimeline.ENABLE_NATIVE);
                     boolean ret = adapterService.enableNative();
                     if (!ret) {
                         Log.e(TAG, "Error while turning Bluetooth On");
@@ -273,18 +277,23 @@ final class AdapterState extends StateMachine {
                     if (DBG) Log.d(TAG,"CURRENT_STATE=PENDING, MESSAGE = ENABLE_READY, isTurningOn=" + isTurningOn + ", isTurningOff=" + isTurningOff);
                     removeMessages(ENABLE_TIMEOUT);
                     adapterProperties.onBluetoothReady();
+                    AdapterTimeline.mark(AdapterTimeline.BLUETOOTH_READY);
                     mPendingCommandState.setTurningOn(false);
                     transitionTo(mOnState);
                     notifyAdapterStateChange(BluetoothAdapter.STATE_ON);
+                    AdapterTimeline.mark(AdapterTimeline.STATE_ON);
                     break;
 
                 case SET_SCAN_MODE_TIMEOUT:
                      Log.w(TAG,"Timeout will setting scan mode..Continuing with disable...");
+                     AdapterTimeline.mark(AdapterTimeline.TIMEOUT, "SET_SCAN_MODE_TIMEOUT");
                      //Fall through
                 case BEGIN_DISABLE: {
                     if (DBG) Log.d(TAG,"CURRENT_STATE=PENDING, MESSAGE = BEGIN_DISABLE, isTurningOn=" + isTurningOn + ", isTurningOff=" + isTurningOff);
                     removeMessages(SET_SCAN_MODE_TIMEOUT);
+                    AdapterTimeline.mark(AdapterTimeline.SCAN_MODE_NONE);
                     sendMessageDelayed(DISABLE_TIMEOUT, DISABLE_TIMEOUT_DELAY);
+                    AdapterTimeline.mark(AdapterTimeline.DISABLE_NATIVE);
                     boolean ret = adapterService.disableNative();
                     if (!ret) {
                         removeMessages(DISABLE_TIMEOUT);
@@ -316,12 +325,15 @@ final class AdapterState extends StateMachine {
                 case STOPPED:
                     if (DBG) Log.d(TAG,"CURRENT_STATE=PENDING, MESSAGE = STOPPED, isTurningOn=" + isTurningOn + ", isTurningOff=" + isTurningOff);
                     removeMessages(STOP_TIMEOUT);
+                    AdapterTimeline.mark(AdapterTimeline.PROFILES_STOPPED);
                     setTurningOff(false);
                     transitionTo(mOffState);
                     notifyAdapterStateChange(BluetoothAdapter.STATE_OFF);
+                    AdapterTimeline.mark(AdapterTimeline.STATE_OFF);
                     break;
                 case START_TIMEOUT:
                     if (DBG) Log.d(TAG,"CURRENT_STATE=PENDING, MESSAGE = START_TIMEOUT, isTurningOn=" + isTurningOn + ", isTurningOff=" + isTurningOff);
+                    AdapterTimeline.mark(AdapterTimeline.TIMEOUT, "START_TIMEOUT");
                     errorLog("Error enabling Bluetooth");
                     mPendingCommandState.setTurningOn(false);
                     transitionTo(mOffState);
@@ -329,6 +341,7 @@ final class AdapterState extends StateMachine {
                     break;
                 case ENABLE_TIMEOUT:
                     if (DBG) Log.d(TAG,"CURRENT_STATE=PENDING, MESSAGE = ENABLE_TIMEOUT, isTurningOn=" + isTurningOn + ", isTurningOff=" + isTurningOff);
+                    AdapterTimeline.mark(AdapterTimeline.TIMEOUT, "ENABLE_TIMEOUT");
                     errorLog("Error enabling Bluetooth");
                     mPendingCommandState.setTurningOn(false);
                     transitionTo(mOffState);
@@ -336,12 +349,14 @@ final class AdapterState extends StateMachine {
                     break;
                 case STOP_TIMEOUT:
                     if (DBG) Log.d(TAG,"CURRENT_STATE=PENDING, MESSAGE = STOP_TIMEOUT, isTurningOn=" + isTurningOn + ", isTurningOff=" + isTurningOff);
+                    AdapterTimeline.mark(AdapterTimeline.TIMEOUT, "STOP_TIMEOUT");
                     errorLog("Error stopping Bluetooth profiles");
                     mPendingCommandState.setTurningOff(false);
                     transitionTo(mOffState);
                     break;
                 case DISABLE_TIMEOUT:
                     if (DBG) Log.d(TAG,"CURRENT_STATE=PENDING, MESSAGE = DISABLE_TIMEOUT, isTurningOn=" + isTurningOn + ", isTurningOff=" + isTurningOff);
+                    AdapterTimeline.mark(AdapterTimeline.TIMEOUT, "DISABLE_TIMEOUT");
                     errorLog("Error disabling Bluetooth");
                     mPendingCommandState.setTurningOff(false);
                     transitionTo(mOnState);
@@ -372,9 +387,11 @@ final class AdapterState extends StateMachine {
 
     void stateChangeCallback(int status) {
         if (status == AbstractionLayer.BT_STATE_OFF) {
+            AdapterTimeline.mark(AdapterTimeline.STACK_OFF);
             sendMessage(DISABLED);
         } else if (status == AbstractionLayer.BT_STATE_ON) {
             // We should have got the property change for adapter and remote devices.
+            AdapterTimeline.mark(AdapterTimeline.STACK_ON);
             sendMessage(ENABLED_READY);
         } else {
             errorLog("Incorrect status in stateChangeCallback");
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * Fixed-size ring buffer of timestamped adapter enable/disable phases.
+ *
+ * Marks are cheap enough to leave on in production: one monotonic clock read
+ * and three array stores under a lock, with no allocation. The buffer is
+ * printed by the AdapterService dump, either readable or, with
+ * {@code --timeline}, as one line per event for collection tools.
+ */
+final class AdapterTimeline {
+    static final int USER_TURN_ON = 1;
+    static final int PROCESS_START = 2;
+    static final int PROFILE_START_BEGIN = 3;
+    static final int PROFILE_START_END = 4;
+    static final int PROFILES_STARTED = 5;
+    static final int ENABLE_NATIVE = 6;
+    static final int ADAPTER_PROPERTIES = 7;
+    static final int STACK_ON = 8;
+    static final int BLUETOOTH_READY = 9;
+    static final int STATE_ON = 10;
+
+    static final int USER_TURN_OFF = 20;
+    static final int SCAN_MODE_NONE = 21;
+    static final int DISABLE_NATIVE = 22;
+    static final int STACK_OFF = 23;
+    static final int PROFILE_STOP_BEGIN = 24;
+    static final int PROFILE_STOP_END = 25;
+    static final int PROFILES_STOPPED = 26;
+    static final int STATE_OFF = 27;
+
+    static final int TIMEOUT = 40;
+
+    private static final int CAPACITY = 128;
+
+    private static final long[] sTimestamps = new long[CAPACITY];
+    private static final int[] sEvents = new int[CAPACITY];
+    private static final String[] sDetails = new String[CAPACITY];
+    private static int sNext;
+    private static int sCount;
+
+    private AdapterTimeline() {}
+
+    static void mark(int event) {
+        mark(event, null);
+    }
+
+    /**
+     * Record {@code event} at the current monotonic time.
+     *
+     * @param detail optional constant string, e.g. a profile name
+     */
+    static void mark(int event, String detail) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        synchronized (AdapterTimeline.class) {
+            sTimestamps[sNext] = now;
+            sEvents[sNext] = event;
+            sDetails[sNext] = detail;
+            sNext = (sNext + 1) % CAPACITY;
+            if (sCount < CAPACITY) sCount++;
+        }
+    }
+
+    static synchronized void dump(PrintWriter writer, boolean machineReadable) {
+        int first = (sNext - sCount + CAPACITY) % CAPACITY;
+        if (!machineReadable) {
+            writer.println("Adapter timeline (" + sCount + " events):");
+        }
+        long previous = 0;
+        for (int i = 0; i < sCount; i++) {
+            int index = (first + i) % CAPACITY;
+            long timestamp = sTimestamps[index];
+            String detail = sDetails[index] == null ? "" : sDetails[index];
+            if (machineReadable) {
+                writer.println(timestamp + "," + sEvents[index] + "," + detail);
+            } else {
+                long deltaMs = (i == 0) ? 0 : (timestamp - previous) / 1000000;
+                writer.println("  " + (timestamp / 1000000) + "ms (+" + deltaMs + "ms) "
+                        + eventToString(sEvents[index]) + " " + detail);
+            }
+            previous = timestamp;
+        }
+    }
+
+    private static String eventToString(int event) {
+        switch (event) {
+            case USER_TURN_ON: return "USER_TURN_ON";
+            case PROCESS_START: return "PROCESS_START";
+            case PROFILE_START_BEGIN: return "PROFILE_START_BEGIN";
+            case PROFILE_START_END: return "PROFILE_START_END";
+            case PROFILES_STARTED: return "PROFILES_STARTED";
+            case ENABLE_NATIVE: return "ENABLE_NATIVE";
+            case ADAPTER_PROPERTIES: return "ADAPTER_PROPERTIES";
+            case STACK_ON: return "STACK_ON";
+            case BLUETOOTH_READY: return "BLUETOOTH_READY";
+            case STATE_ON: return "STATE_ON";
+            case USER_TURN_OFF: return "USER_TURN_OFF";
+            case SCAN_MODE_NONE: return "SCAN_MODE_NONE";
+            case DISABLE_NATIVE: return "DISABLE_NATIVE";
+            case STACK_OFF: return "STACK_OFF";
+            case PROFILE_STOP_BEGIN: return "PROFILE_STOP_BEGIN";
+            case PROFILE_STOP_END: return "PROFILE_STOP_END";
+            case PROFILES_STOPPED: return "PROFILES_STOPPED";
+            case STATE_OFF: return "STATE_OFF";
+            case TIMEOUT: return "TIMEOUT";
+            default: return "UNKNOWN(" + event + ")";
+        }
+    }
+}
@@ -26,21 +26,29 @@ import com.android.bluetooth.hfp.HeadsetService;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.Log;
 
+import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.RemoteDevices.DeviceProperties;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
 
 /**
  * This state machine handles Bluetooth Adapter State.
  * States:
  *      {@link StableState} :  No device is in bonding / unbonding state.
  *      {@link PendingCommandState} : Some device is in bonding / unbonding state.
+ *
+ * Outgoing bond requests beyond the configured number of concurrent pairings
+ * are queued in arrival order and started as earlier bonds complete.
  * TODO(BT) This class can be removed and this logic moved to the stack.
  */
 
@@ -66,6 +74,38 @@ final class BondStateMachine extends StateMachine {
     private PendingCommandState mPendingCommandState = new PendingCommandState();
     private StableState mStableState = new StableState();
 
+    /**
+     * Per-device state of a bond that is queued or in progress.
+     */
+    private static final class BondingContext {
+        final BluetoothDevice mDevice;
+        final int mTransport;
+        final long mRequestTime;
+        long mStartTime;
+
+        BondingContext(BluetoothDevice device, int transport) {
+            mDevice = device;
+            mTransport = transport;
+            mRequestTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    // Written on the state machine thread; guarded by mBondsLock so dump()
+    // can read them from a binder thread.
+    private final Object mBondsLock = new Object();
+    private final HashMap<BluetoothDevice, BondingContext> mActiveBonds =
+            new HashMap<BluetoothDevice, BondingContext>();
+    private final LinkedList<BondingContext> mQueuedBonds = new LinkedList<BondingContext>();
+    private final int mMaxConcurrentBonds;
+
+    // Bond latency statistics, measured from createBondNative() (or the first
+    // BONDING callback for incoming pairings) to the final bond state.
+    private int mBondsSucceeded;
+    private int mBondsFailed;
+    private long mTotalBondTimeMs;
+    private long mMaxBondTimeMs;
+    private long mTotalQueueTimeMs;
+
     private BondStateMachine(AdapterService service,
             AdapterProperties prop, RemoteDevices remoteDevices) {
         super("BondStateMachine:");
@@ -75,6 +115,8 @@ final class BondStateMachine extends StateMachine {
         mAdapterService = service;
         mAdapterProperties = prop;
         mAdapter = BluetoothAdapter.getDefaultAdapter();
+        int maxBonds = service.getResources().getInteger(R.integer.max_concurrent_bonds);
+        mMaxConcurrentBonds = (maxBonds > 0) ? maxBonds : Integer.MAX_VALUE;
         setInitialState(mStableState);
     }
 
@@ -100,6 +142,17 @@ final class BondStateMachine extends StateMachine {
         @Override
         public void enter() {
             infoLog("StableState(): Entering Off State");
+            // Nothing is pending any more; drop contexts whose completion
+            // was never reported so they do not hold a bonding slot, and
+            // resubmit the bonds still waiting for one.
+            synchronized (mBondsLock) {
+                mActiveBonds.clear();
+                for (BondingContext queued : mQueuedBonds) {
+                    sendMessage(obtainMessage(CREATE_BOND, queued.mTransport, 0,
+                            queued.mDevice));
+                }
+                mQueuedBonds.clear();
+            }
         }
 
         @Override
@@ -121,6 +174,7 @@ final class BondStateMachine extends StateMachine {
                 if (newState == BluetoothDevice.BOND_BONDING)
                 {
                     sendIntent(dev, newState, 0);
+                    onBondStarted(dev, BluetoothDevice.TRANSPORT_AUTO);
                     transitionTo(mPendingCommandState);
                 }
                 else
@@ -166,12 +220,16 @@ final class BondStateMachine extends StateMachine {
 
             switch (msg.what) {
                 case CREATE_BOND:
+                    if (queueBondIfBusy(dev, msg.arg1)) {
+                        break;
+                    }
                     result = createBond(dev, msg.arg1, false);
                     break;
                 case REMOVE_BOND:
                     result = removeBond(dev, false);
                     break;
                 case CANCEL_BOND:
+                    if (unqueueBond(dev)) break;
                     result = cancelBond(dev);
                     break;
                 case BONDING_STATE_CHANGE:
@@ -182,6 +240,8 @@ final class BondStateMachine extends StateMachine {
                     {
                         /* this is either none/bonded, remove and transition */
                         result = !mDevices.remove(dev);
+                        onBondFinished(dev, newState == BluetoothDevice.BOND_BONDED);
+                        startQueuedBonds(mDevices);
                         if (mDevices.isEmpty()) {
                             // Whenever mDevices is empty, then we need to
                             // set result=false. Else, we will end up adding
@@ -208,8 +268,11 @@ final class BondStateMachine extends StateMachine {
                            //setProfilePriorty(dev);
                         }
                     }
-                    else if(!mDevices.contains(dev))
-                        result=true;
+                    else {
+                        onBondStarted(dev, BluetoothDevice.TRANSPORT_AUTO);
+                        if(!mDevices.contains(dev))
+                            result=true;
+                    }
                     break;
                 case SSP_REQUEST:
                     int passkey = msg.arg1;
@@ -286,11 +349,100 @@ final class BondStateMachine extends StateMachine {
             } else if (transition) {
                 transitionTo(mPendingCommandState);
             }
+            onBondStarted(dev, transport);
             return true;
         }
         return false;
     }
 
+    /**
+     * Queue the bond if the maximum number of bonds is already running.
+     *
+     * @return true if the bond must not be started now
+     */
+    private boolean queueBondIfBusy(BluetoothDevice dev, int transport) {
+        synchronized (mBondsLock) {
+            if (mActiveBonds.size() < mMaxConcurrentBonds) return false;
+            if (mActiveBonds.containsKey(dev)) return true;
+            for (BondingContext queued : mQueuedBonds) {
+                if (queued.mDevice.equals(dev)) return true;
+            }
+            infoLog("Queueing bond with " + dev + ", " + mActiveBonds.size() + " in progress");
+            mQueuedBonds.add(new BondingContext(dev, transport));
+            return true;
+        }
+    }
+
+    private boolean unqueueBond(BluetoothDevice dev) {
+        synchronized (mBondsLock) {
+            for (BondingContext queued : mQueuedBonds) {
+                if (queued.mDevice.equals(dev)) {
+                    mQueuedBonds.remove(queued);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Start queued bonds while there is room, in the order they were requested.
+    private void startQueuedBonds(ArrayList<BluetoothDevice> pendingDevices) {
+        while (true) {
+            BondingContext next;
+            synchronized (mBondsLock) {
+                if (mQueuedBonds.isEmpty() || mActiveBonds.size() >= mMaxConcurrentBonds) {
+                    break;
+                }
+                next = mQueuedBonds.removeFirst();
+                mTotalQueueTimeMs += SystemClock.elapsedRealtime() - next.mRequestTime;
+            }
+            if (createBond(next.mDevice, next.mTransport, false)
+                    && !pendingDevices.contains(next.mDevice)) {
+                pendingDevices.add(next.mDevice);
+            }
+        }
+    }
+
+    private void onBondStarted(BluetoothDevice dev, int transport) {
+        synchronized (mBondsLock) {
+            if (mActiveBonds.containsKey(dev)) return;
+            BondingContext context = new BondingContext(dev, transport);
+            context.mStartTime = context.mRequestTime;
+            mActiveBonds.put(dev, context);
+        }
+    }
+
+    private void onBondFinished(BluetoothDevice dev, boolean success) {
+        long duration;
+        synchronized (mBondsLock) {
+            BondingContext context = mActiveBonds.remove(dev);
+            if (context == null) return;
+            duration = SystemClock.elapsedRealtime() - context.mStartTime;
+            if (success) {
+                mBondsSucceeded++;
+            } else {
+                mBondsFailed++;
+            }
+            mTotalBondTimeMs += duration;
+            if (duration > mMaxBondTimeMs) mMaxBondTimeMs = duration;
+        }
+        infoLog("Bond with " + dev + (success ? " completed" : " failed")
+                + " after " + duration + "ms");
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mBondsLock) {
+            int finished = mBondsSucceeded + mBondsFailed;
+            writer.println("Bonding: active=" + mActiveBonds.size() + " queued="
+                    + mQueuedBonds.size() + " maxConcurrent="
+                    + (mMaxConcurrentBonds == Integer.MAX_VALUE
+                            ? "unlimited" : String.valueOf(mMaxConcurrentBonds)));
+            writer.println("  succeeded=" + mBondsSucceeded + " failed=" + mBondsFailed
+                    + " avgMs=" + (finished == 0 ? 0 : mTotalBondTimeMs / finished)
+                    + " maxMs=" + mMaxBondTimeMs + " totalQueuedMs=" + mTotalQueueTimeMs);
+        }
+    }
+
     private void sendDisplayPinIntent(byte[] address, int pin, int variant) {
         Intent intent = new Intent(BluetoothDevice.ACTION_PAIRING_REQUEST);
         intent.putExtra(BluetoothDevice.EXTRA_DEVICE, mRemoteDevices.getDevice(address));
@@ -310,6 +462,9 @@ final class BondStateMachine extends StateMachine {
         }
         if (oldState == newState) return;
         mAdapterProperties.onBondStateChanged(device, newState);
+        if (newState == BluetoothDevice.BOND_NONE) {
+            mRemoteDevices.onBondStateNone(device);
+        }
 
         Intent intent = new Intent(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
         intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
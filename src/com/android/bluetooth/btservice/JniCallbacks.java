@@ -16,7 +16,16 @@
 
 package com.android.bluetooth.btservice;
 
+import android.util.Log;
+
+import com.android.bluetooth.NativeEventReader;
+
 final class JniCallbacks {
+    private static final String TAG = "BluetoothJniCallbacks";
+
+    // Record types packed by the native event batch, see
+    // com_android_bluetooth_btservice_AdapterService.cpp
+    private static final int BATCH_DEVICE_PROPERTIES = 1;
 
     private RemoteDevices mRemoteDevices;
     private AdapterProperties mAdapterProperties;
@@ -54,6 +63,41 @@ final class JniCallbacks {
         mRemoteDevices.devicePropertyChangedCallback(address, types, val);
     }
 
+    /**
+     * Unpacks a batch of high-rate callbacks queued by the native layer and
+     * dispatches each one as if it had been delivered on its own.
+     */
+    void batchedEventsCallback(byte[] events, int count) {
+        NativeEventReader reader = new NativeEventReader(events, count);
+        while (reader.next()) {
+            try {
+                switch (reader.getType()) {
+                    case BATCH_DEVICE_PROPERTIES:
+                        decodeDeviceProperties(reader);
+                        break;
+                    default:
+                        Log.w(TAG, "Unknown batched event type " + reader.getType());
+                        break;
+                }
+            } catch (RuntimeException e) {
+                // Match the per-callback isolation of unbatched delivery.
+                Log.e(TAG, "Exception handling batched event " + reader.getType(), e);
+            }
+        }
+    }
+
+    private void decodeDeviceProperties(NativeEventReader reader) {
+        byte[] address = reader.readAddressBytes();
+        int count = reader.readUnsignedByte();
+        int[] types = new int[count];
+        byte[][] values = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            types[i] = reader.readInt();
+            values[i] = reader.readBytes(reader.readUnsignedShort());
+        }
+        devicePropertyChangedCallback(address, types, values);
+    }
+
     void deviceFoundCallback(byte[] address) {
         mRemoteDevices.deviceFoundCallback(address);
     }
@@ -173,7 +173,9 @@ public abstract class ProfileService extends Service {
             Log.e(mName, "Error starting profile. BluetoothAdapter is null");
         } else {
             if (DBG) log("start()");
+            AdapterTimeline.mark(AdapterTimeline.PROFILE_START_BEGIN, mName);
             mStartError = !start();
+            AdapterTimeline.mark(AdapterTimeline.PROFILE_START_END, mName);
             if (!mStartError) {
                 notifyProfileServiceStateChanged(BluetoothAdapter.STATE_ON);
             } else {
@@ -183,7 +185,10 @@ public abstract class ProfileService extends Service {
     }
 
     private void doStop(Intent intent) {
-        if (stop()) {
+        AdapterTimeline.mark(AdapterTimeline.PROFILE_STOP_BEGIN, mName);
+        boolean stopped = stop();
+        AdapterTimeline.mark(AdapterTimeline.PROFILE_STOP_END, mName);
+        if (stopped) {
             if (DBG) log("stop()");
             notifyProfileServiceStateChanged(BluetoothAdapter.STATE_OFF);
             stopSelf();
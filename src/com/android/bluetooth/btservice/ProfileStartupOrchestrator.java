@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.bluetooth.a2dp.A2dpSinkService;
+import com.android.bluetooth.avrcp.AvrcpControllerService;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Starts and stops the profile services on behalf of {@link AdapterService}.
+ *
+ * Profiles are started in dependency order: every profile whose dependencies
+ * are already running is dispatched at once, and dependents are dispatched as
+ * soon as the last of their dependencies reports {@link BluetoothAdapter#STATE_ON}.
+ * Stopping runs the same graph in reverse. A running count of profiles that
+ * have not yet reached the requested state makes the "all started" /
+ * "all stopped" check constant time.
+ */
+final class ProfileStartupOrchestrator {
+    private static final boolean DBG = false;
+    private static final String TAG = "BluetoothProfileStartup";
+
+    /**
+     * Start-order dependencies: each entry lists a profile followed by the
+     * profiles that must be running before it is started. Profiles not
+     * listed here have no dependencies.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final Class[][] DEPENDENCIES = {
+        // The AVRCP controller is only meaningful alongside the A2DP sink role.
+        { AvrcpControllerService.class, A2dpSinkService.class },
+    };
+
+    private final class ProfileEntry {
+        @SuppressWarnings("rawtypes")
+        final Class mService;
+        final ArrayList<ProfileEntry> mDependencies = new ArrayList<ProfileEntry>();
+        final ArrayList<ProfileEntry> mDependents = new ArrayList<ProfileEntry>();
+        int mState = BluetoothAdapter.STATE_OFF;
+        boolean mWaiting;
+        long mDispatchTime;
+        long mStartLatencyMs = -1;
+        long mStopLatencyMs = -1;
+
+        @SuppressWarnings("rawtypes")
+        ProfileEntry(Class service) {
+            mService = service;
+        }
+    }
+
+    private final AdapterService mAdapterService;
+    private final LinkedHashMap<String, ProfileEntry> mProfiles =
+            new LinkedHashMap<String, ProfileEntry>();
+    private int mTargetState = BluetoothAdapter.STATE_OFF;
+    private int mRemaining;
+
+    ProfileStartupOrchestrator(AdapterService service) {
+        mAdapterService = service;
+    }
+
+    /**
+     * Register the supported profile services, all initially off.
+     */
+    @SuppressWarnings("rawtypes")
+    synchronized void init(Class[] services) {
+        mProfiles.clear();
+        for (Class service : services) {
+            mProfiles.put(service.getName(), new ProfileEntry(service));
+        }
+        for (Class[] dependency : DEPENDENCIES) {
+            ProfileEntry dependent = mProfiles.get(dependency[0].getName());
+            if (dependent == null) continue;
+            for (int i = 1; i < dependency.length; i++) {
+                ProfileEntry required = mProfiles.get(dependency[i].getName());
+                if (required == null) continue;
+                dependent.mDependencies.add(required);
+                required.mDependents.add(dependent);
+            }
+        }
+        mTargetState = BluetoothAdapter.STATE_OFF;
+        mRemaining = 0;
+    }
+
+    synchronized void clear() {
+        mProfiles.clear();
+        mRemaining = 0;
+    }
+
+    /**
+     * Move every registered profile towards {@code state}, which must be
+     * {@link BluetoothAdapter#STATE_ON} or {@link BluetoothAdapter#STATE_OFF}.
+     */
+    synchronized void setTargetState(int state) {
+        if (state != BluetoothAdapter.STATE_ON && state != BluetoothAdapter.STATE_OFF) {
+            debugLog("setTargetState() - Invalid state, leaving...");
+            return;
+        }
+        int expectedCurrentState = (state == BluetoothAdapter.STATE_ON)
+                ? BluetoothAdapter.STATE_OFF : BluetoothAdapter.STATE_ON;
+
+        mTargetState = state;
+        mRemaining = 0;
+        for (ProfileEntry entry : mProfiles.values()) {
+            entry.mWaiting = false;
+            entry.mDispatchTime = 0;
+            if (entry.mState == state) continue;
+            mRemaining++;
+            if (entry.mState != expectedCurrentState) {
+                debugLog("setTargetState() - Unable to "
+                        + (state == BluetoothAdapter.STATE_ON ? "start" : "stop")
+                        + " service " + entry.mService.getName()
+                        + ". Invalid state: " + entry.mState);
+                continue;
+            }
+            entry.mWaiting = true;
+        }
+        dispatchReady();
+    }
+
+    /**
+     * Record a state change reported by a profile service.
+     *
+     * @return false if the profile is unknown or already in {@code state}
+     */
+    synchronized boolean onStateChanged(String serviceName, int state) {
+        ProfileEntry entry = mProfiles.get(serviceName);
+        if (entry == null || entry.mState == state) {
+            return false;
+        }
+        int prevState = entry.mState;
+        entry.mState = state;
+
+        if (state == mTargetState) {
+            mRemaining--;
+            // Only profiles dispatched in this round have a meaningful latency
+            if (entry.mDispatchTime != 0) {
+                long latency = SystemClock.elapsedRealtime() - entry.mDispatchTime;
+                entry.mDispatchTime = 0;
+                if (state == BluetoothAdapter.STATE_ON) {
+                    entry.mStartLatencyMs = latency;
+                } else {
+                    entry.mStopLatencyMs = latency;
+                }
+                debugLog("onStateChanged() - " + serviceName + " reached " + state
+                        + " in " + latency + "ms, " + mRemaining + " remaining");
+            } else {
+                debugLog("onStateChanged() - " + serviceName + " reached " + state
+                        + ", " + mRemaining + " remaining");
+            }
+            dispatchReady();
+        } else if (prevState == mTargetState) {
+            mRemaining++;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if every registered profile is in the last requested state
+     */
+    synchronized boolean isComplete() {
+        return mRemaining == 0;
+    }
+
+    private void dispatchReady() {
+        boolean starting = (mTargetState == BluetoothAdapter.STATE_ON);
+        for (ProfileEntry entry : mProfiles.values()) {
+            if (!entry.mWaiting) continue;
+            if (!isReady(entry, starting)) continue;
+
+            entry.mWaiting = false;
+            entry.mState = starting ? BluetoothAdapter.STATE_TURNING_ON
+                    : BluetoothAdapter.STATE_TURNING_OFF;
+            entry.mDispatchTime = SystemClock.elapsedRealtime();
+            debugLog((starting ? "Starting" : "Stopping") + " service "
+                    + entry.mService.getName());
+
+            Intent intent = new Intent(mAdapterService, entry.mService);
+            intent.putExtra(AdapterService.EXTRA_ACTION,
+                    AdapterService.ACTION_SERVICE_STATE_CHANGED);
+            intent.putExtra(BluetoothAdapter.EXTRA_STATE, mTargetState);
+            mAdapterService.startService(intent);
+        }
+    }
+
+    // A profile may start once its dependencies run, and may stop once
+    // nothing that depends on it is still running. A blocker that is stuck
+    // in an unexpected state is ignored rather than holding up the rest.
+    private boolean isReady(ProfileEntry entry, boolean starting) {
+        ArrayList<ProfileEntry> blockers = starting ? entry.mDependencies : entry.mDependents;
+        for (ProfileEntry blocker : blockers) {
+            if (blocker.mState == mTargetState) continue;
+            if (blocker.mWaiting
+                    || blocker.mState == BluetoothAdapter.STATE_TURNING_ON
+                    || blocker.mState == BluetoothAdapter.STATE_TURNING_OFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Profile services (" + mRemaining + " pending):");
+        for (ProfileEntry entry : mProfiles.values()) {
+            writer.println("  " + entry.mService.getSimpleName() + ": state=" + entry.mState
+                    + " lastStartMs=" + entry.mStartLatencyMs
+                    + " lastStopMs=" + entry.mStopLatencyMs);
+        }
+    }
+
+    private void debugLog(String msg) {
+        if (DBG) Log.d(TAG, msg);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothMasInstance;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.ParcelUuid;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Persistent snapshot of the properties of bonded remote devices.
+ *
+ * The snapshot is loaded into {@link RemoteDevices} before the stack is
+ * enabled so name, class, type and UUID queries can be answered while the
+ * HAL is still replaying its property callbacks. Every property update the
+ * HAL delivers for a bonded device is written back, so the snapshot converges
+ * to the stack's view as soon as the adapter is up.
+ */
+final class RemoteDeviceCache {
+    private static final boolean DBG = false;
+    private static final String TAG = "BluetoothRemoteDeviceCache";
+
+    private static final String PREFERENCE_FILE = "bonded_device_properties";
+
+    private static final String KEY_NAME = ".name";
+    private static final String KEY_ALIAS = ".alias";
+    private static final String KEY_CLASS = ".class";
+    private static final String KEY_TYPE = ".type";
+    private static final String KEY_UUIDS = ".uuids";
+    private static final String KEY_MAS = ".mas";
+
+    private static final String UUID_SEPARATOR = ",";
+    private static final String MAS_SEPARATOR = "|";
+    // id, channel, message types, name. The name is last so it may contain
+    // the separator itself.
+    private static final int MAS_FIELDS = 4;
+
+    private final SharedPreferences mPref;
+
+    /**
+     * Cached values for a single device, as read back from disk.
+     */
+    static final class Entry {
+        String mAddress;
+        String mName;
+        String mAlias;
+        int mBluetoothClass;
+        int mDeviceType;
+        ParcelUuid[] mUuids;
+        ArrayList<BluetoothMasInstance> mMasInstances;
+    }
+
+    RemoteDeviceCache(Context context) {
+        mPref = context.getSharedPreferences(PREFERENCE_FILE, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return every device stored in the snapshot
+     */
+    ArrayList<Entry> load() {
+        Set<String> addresses = new HashSet<String>();
+        for (String key : mPref.getAll().keySet()) {
+            int index = key.indexOf('.');
+            if (index > 0) addresses.add(key.substring(0, index));
+        }
+
+        ArrayList<Entry> entries = new ArrayList<Entry>(addresses.size());
+        for (String address : addresses) {
+            try {
+                Entry entry = new Entry();
+                entry.mAddress = address;
+                entry.mName = mPref.getString(address + KEY_NAME, null);
+                entry.mAlias = mPref.getString(address + KEY_ALIAS, null);
+                entry.mBluetoothClass = mPref.getInt(address + KEY_CLASS, 0);
+                entry.mDeviceType = mPref.getInt(address + KEY_TYPE, 0);
+                entry.mUuids = decodeUuids(mPref.getString(address + KEY_UUIDS, null));
+                entry.mMasInstances = decodeMasInstances(
+                        mPref.getStringSet(address + KEY_MAS, null));
+                entries.add(entry);
+            } catch (RuntimeException e) {
+                // A corrupt entry only costs us the fast path for that device.
+                Log.w(TAG, "Dropping unreadable cache entry for " + address, e);
+                remove(address);
+            }
+        }
+        if (DBG) Log.d(TAG, "load(): " + entries.size() + " devices");
+        return entries;
+    }
+
+    void save(String address, String name, String alias, int bluetoothClass,
+            int deviceType, ParcelUuid[] uuids, ArrayList<BluetoothMasInstance> masInstances) {
+        if (address == null) return;
+        SharedPreferences.Editor editor = mPref.edit();
+        putOrRemove(editor, address + KEY_NAME, name);
+        putOrRemove(editor, address + KEY_ALIAS, alias);
+        editor.putInt(address + KEY_CLASS, bluetoothClass);
+        editor.putInt(address + KEY_TYPE, deviceType);
+        putOrRemove(editor, address + KEY_UUIDS, encodeUuids(uuids));
+        if (masInstances == null) {
+            editor.remove(address + KEY_MAS);
+        } else {
+            editor.putStringSet(address + KEY_MAS, encodeMasInstances(masInstances));
+        }
+        editor.apply();
+    }
+
+    void remove(String address) {
+        if (address == null) return;
+        mPref.edit()
+                .remove(address + KEY_NAME)
+                .remove(address + KEY_ALIAS)
+                .remove(address + KEY_CLASS)
+                .remove(address + KEY_TYPE)
+                .remove(address + KEY_UUIDS)
+                .remove(address + KEY_MAS)
+                .apply();
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (value == null) {
+            editor.remove(key);
+        } else {
+            editor.putString(key, value);
+        }
+    }
+
+    private static String encodeUuids(ParcelUuid[] uuids) {
+        if (uuids == null) return null;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < uuids.length; i++) {
+            if (i > 0) sb.append(UUID_SEPARATOR);
+            sb.append(uuids[i].toString());
+        }
+        return sb.toString();
+    }
+
+    private static ParcelUuid[] decodeUuids(String value) {
+        if (value == null) return null;
+        if (value.length() == 0) return new ParcelUuid[0];
+        String[] parts = TextUtils.split(value, UUID_SEPARATOR);
+        ParcelUuid[] uuids = new ParcelUuid[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            uuids[i] = ParcelUuid.fromString(parts[i]);
+        }
+        return uuids;
+    }
+
+    private static Set<String> encodeMasInstances(ArrayList<BluetoothMasInstance> instances) {
+        Set<String> values = new HashSet<String>();
+        for (BluetoothMasInstance inst : instances) {
+            values.add(inst.getId() + MAS_SEPARATOR + inst.getChannel() + MAS_SEPARATOR
+                    + inst.getMsgTypes() + MAS_SEPARATOR + inst.getName());
+        }
+        return values;
+    }
+
+    private static ArrayList<BluetoothMasInstance> decodeMasInstances(Set<String> values) {
+        if (values == null) return null;
+        ArrayList<BluetoothMasInstance> instances =
+                new ArrayList<BluetoothMasInstance>(values.size());
+        for (String value : values) {
+            String[] parts = value.split("\\" + MAS_SEPARATOR, MAS_FIELDS);
+            if (parts.length != MAS_FIELDS) {
+                throw new IllegalArgumentException("Malformed MAS instance: " + value);
+            }
+            instances.add(new BluetoothMasInstance(Integer.parseInt(parts[0]), parts[3],
+                    Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+        }
+        return instances;
+    }
+}
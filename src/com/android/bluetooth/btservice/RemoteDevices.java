@@ -27,9 +27,11 @@ import android.os.Message;
 import android.os.ParcelUuid;
 import android.util.Log;
 
+import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.RemoteDevices.DeviceProperties;
 
+import java.io.PrintWriter;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -44,8 +46,7 @@ final class RemoteDevices {
 
     private static BluetoothAdapter mAdapter;
     private static AdapterService mAdapterService;
-    private static ArrayList<BluetoothDevice> mSdpTracker;
-    private static ArrayList<BluetoothDevice> mSdpMasTracker;
+    private static SdpResultCache mSdpCache;
 
     private Object mObject = new Object();
 
@@ -56,22 +57,73 @@ final class RemoteDevices {
     private static final int MESSAGE_MAS_INSTANCE_INTENT = 2;
 
     private HashMap<BluetoothDevice, DeviceProperties> mDevices;
+    private RemoteDeviceCache mCache;
 
     RemoteDevices(AdapterService service) {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mAdapterService = service;
-        mSdpTracker = new ArrayList<BluetoothDevice>();
-        mSdpMasTracker = new ArrayList<BluetoothDevice>();
+        mSdpCache = new SdpResultCache(
+                service.getResources().getInteger(R.integer.sdp_cache_ttl_ms));
         mDevices = new HashMap<BluetoothDevice, DeviceProperties>();
+        mCache = new RemoteDeviceCache(service);
     }
 
+    /**
+     * Seed the device table from the persisted snapshot of bonded devices.
+     * Must be called before the stack is enabled; property callbacks from
+     * the HAL then overwrite the cached values as they arrive.
+     */
+    void loadCachedProperties() {
+        ArrayList<RemoteDeviceCache.Entry> entries = mCache.load();
+        synchronized (mDevices) {
+            for (RemoteDeviceCache.Entry entry : entries) {
+                BluetoothDevice device = mAdapter.getRemoteDevice(entry.mAddress);
+                if (mDevices.containsKey(device)) continue;
+                DeviceProperties prop = new DeviceProperties();
+                prop.mAddress = Utils.getBytesFromAddress(entry.mAddress);
+                prop.mName = entry.mName;
+                prop.mAlias = entry.mAlias;
+                prop.mBluetoothClass = entry.mBluetoothClass;
+                prop.mDeviceType = entry.mDeviceType;
+                prop.mUuids = entry.mUuids;
+                prop.mMasInstances = entry.mMasInstances;
+                mDevices.put(device, prop);
+            }
+        }
+        debugLog("loadCachedProperties: restored " + entries.size() + " devices");
+    }
 
-    void cleanup() {
-        if (mSdpTracker !=null)
-            mSdpTracker.clear();
+    /**
+     * Drop persisted entries for devices the stack no longer reports as
+     * bonded, e.g. when the bond was removed while the adapter was off.
+     */
+    void pruneCache(BluetoothDevice[] bondedDevices) {
+        ArrayList<BluetoothDevice> bonded = new ArrayList<BluetoothDevice>(
+                Arrays.asList(bondedDevices));
+        synchronized (mDevices) {
+            for (BluetoothDevice device : mDevices.keySet()) {
+                if (!bonded.contains(device)) {
+                    mCache.remove(device.getAddress());
+                }
+            }
+        }
+    }
 
-        if (mSdpMasTracker != null)
-            mSdpMasTracker.clear();
+    // Only bonded devices are persisted; discovery results come and go too
+    // quickly to be worth a disk write.
+    private void updateCache(DeviceProperties prop) {
+        synchronized (mObject) {
+            if (prop.mBondState != BluetoothDevice.BOND_BONDED) return;
+            mCache.save(Utils.getAddressStringFromByte(prop.mAddress), prop.mName,
+                    prop.mAlias, prop.mBluetoothClass, prop.mDeviceType, prop.mUuids,
+                    prop.mMasInstances);
+        }
+    }
+
+
+    void cleanup() {
+        if (mSdpCache != null)
+            mSdpCache.clear();
 
         if (mDevices != null)
             mDevices.clear();
@@ -117,6 +169,7 @@ final class RemoteDevices {
         private int mDeviceType;
         private String mAlias;
         private int mBondState;
+        private ArrayList<BluetoothMasInstance> mMasInstances;
 
         DeviceProperties() {
             mBondState = BluetoothDevice.BOND_NONE;
@@ -176,6 +229,15 @@ final class RemoteDevices {
             }
         }
 
+        /**
+         * @return the mMasInstances
+         */
+        ArrayList<BluetoothMasInstance> getMasInstances() {
+            synchronized (mObject) {
+                return mMasInstances;
+            }
+        }
+
         /**
          * @return the mAlias
          */
@@ -193,6 +255,7 @@ final class RemoteDevices {
                 this.mAlias = mAlias;
                 mAdapterService.setDevicePropertyNative(mAddress,
                     AbstractionLayer.BT_PROPERTY_REMOTE_FRIENDLY_NAME, mAlias.getBytes());
+                updateCache(this);
             }
         }
 
@@ -209,7 +272,10 @@ final class RemoteDevices {
                     without waiting for the ACTION_UUID intent.
                     This was resulting in multiple calls to connect().*/
                     mUuids = null;
+                    mMasInstances = null;
+                    mCache.remove(Utils.getAddressStringFromByte(mAddress));
                 }
+                updateCache(this);
             }
         }
 
@@ -232,7 +298,7 @@ final class RemoteDevices {
         mAdapterService.sendBroadcast(intent, AdapterService.BLUETOOTH_ADMIN_PERM);
 
         //Remove the outstanding UUID request
-        mSdpTracker.remove(device);
+        mSdpCache.mUuids.finish(device, false);
     }
 
 
@@ -244,8 +310,8 @@ final class RemoteDevices {
         if (instances != null)  intent.putExtra(BluetoothDevice.EXTRA_MAS_INSTANCE, instances);
         mAdapterService.sendBroadcast(intent, AdapterService.BLUETOOTH_ADMIN_PERM);
 
-        //Remove the outstanding UUID request
-        mSdpMasTracker.remove(device);
+        //Remove the outstanding MAS instance request
+        mSdpCache.mMasInstances.finish(device, false);
     }
     void devicePropertyChangedCallback(byte[] address, int[] types, byte[][] values) {
         Intent intent;
@@ -278,12 +344,7 @@ final class RemoteDevices {
                             debugLog("Remote Device name is: " + device.mName);
                             break;
                         case AbstractionLayer.BT_PROPERTY_REMOTE_FRIENDLY_NAME:
-                            if (device.mAlias != null) {
-                                System.arraycopy(val, 0, device.mAlias, 0, val.length);
-                            }
-                            else {
-                                device.mAlias = new String(val);
-                            }
+                            device.mAlias = new String(val);
                             break;
                         case AbstractionLayer.BT_PROPERTY_BDADDR:
                             device.mAddress = val;
@@ -302,6 +363,7 @@ final class RemoteDevices {
                         case AbstractionLayer.BT_PROPERTY_UUIDS:
                             int numUuids = val.length/AbstractionLayer.BT_UUID_SIZE;
                             device.mUuids = Utils.byteArrayToUuid(val);
+                            mSdpCache.mUuids.finish(bdDevice, true);
                             sendUuidIntent(bdDevice);
                             break;
                         case AbstractionLayer.BT_PROPERTY_TYPE_OF_DEVICE:
@@ -317,6 +379,7 @@ final class RemoteDevices {
                 }
             }
         }
+        updateCache(device);
     }
 
     void deviceFoundCallback(byte[] address) {
@@ -387,15 +450,38 @@ final class RemoteDevices {
             instances.add(inst);
         }
 
+        DeviceProperties prop = getDeviceProperties(device);
+        if (prop != null) {
+            synchronized (mObject) {
+                prop.mMasInstances = instances;
+            }
+            updateCache(prop);
+        }
+        mSdpCache.mMasInstances.finish(device,
+                status == AbstractionLayer.BT_STATUS_SUCCESS && prop != null);
+
         sendMasInstanceIntent(device, instances);
     }
 
+    /**
+     * Drop the cached SDP results of a device whose bond was removed.
+     */
+    void onBondStateNone(BluetoothDevice device) {
+        mSdpCache.invalidate(device);
+    }
+
     void fetchUuids(BluetoothDevice device) {
-        if (mSdpTracker.contains(device)) return;
-        mSdpTracker.add(device);
+        DeviceProperties prop = getDeviceProperties(device);
+        int result = mSdpCache.mUuids.begin(device, prop != null && prop.getUuids() != null);
+        if (result == SdpResultCache.QUERY_JOINED) return;
 
         Message message = mHandler.obtainMessage(MESSAGE_UUID_INTENT);
         message.obj = device;
+        if (result == SdpResultCache.QUERY_CACHED) {
+            debugLog("fetchUuids: answering " + device + " from cache");
+            mHandler.sendMessage(message);
+            return;
+        }
         mHandler.sendMessageDelayed(message, UUID_INTENT_DELAY);
 
         //mAdapterService.getDevicePropertyNative(Utils.getBytesFromAddress(device.getAddress()), AbstractionLayer.BT_PROPERTY_UUIDS);
@@ -403,11 +489,19 @@ final class RemoteDevices {
     }
 
     void fetchMasInstances(BluetoothDevice device) {
-        if (mSdpMasTracker.contains(device)) return;
-        mSdpMasTracker.add(device);
+        DeviceProperties prop = getDeviceProperties(device);
+        int result = mSdpCache.mMasInstances.begin(device,
+                prop != null && prop.getMasInstances() != null);
+        if (result == SdpResultCache.QUERY_JOINED) return;
 
         Message message = mHandler.obtainMessage(MESSAGE_MAS_INSTANCE_INTENT);
         message.obj = device;
+        if (result == SdpResultCache.QUERY_CACHED) {
+            debugLog("fetchMasInstances: answering " + device + " from cache");
+            message.arg1 = 1;
+            mHandler.sendMessage(message);
+            return;
+        }
         mHandler.sendMessageDelayed(message, MAS_INSTANCE_INTENT_DELAY);
 
         mAdapterService.getRemoteMasInstancesNative(Utils.getBytesFromAddress(device.getAddress()));
@@ -426,13 +520,20 @@ final class RemoteDevices {
             case MESSAGE_MAS_INSTANCE_INTENT:
                 BluetoothDevice dev = (BluetoothDevice)msg.obj;
                 if (dev != null) {
-                    sendMasInstanceIntent(dev, null);
+                    // arg1 is set when answering from the SDP cache
+                    DeviceProperties prop = getDeviceProperties(dev);
+                    sendMasInstanceIntent(dev,
+                            (msg.arg1 != 0 && prop != null) ? prop.getMasInstances() : null);
                 }
                 break;
             }
         }
     };
 
+    void dump(PrintWriter writer) {
+        mSdpCache.dump(writer);
+    }
+
     private void errorLog(String msg) {
         Log.e(TAG, msg);
     }
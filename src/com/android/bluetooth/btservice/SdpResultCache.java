@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Book-keeping for SDP queries issued by {@link RemoteDevices}.
+ *
+ * Tracks which devices have a query outstanding, so concurrent requests join
+ * the running query instead of issuing another one, and when each device last
+ * returned a result, so a repeated request within the TTL is answered from
+ * the values already held in {@link RemoteDevices.DeviceProperties}.
+ */
+final class SdpResultCache {
+    /** A query for this device is already running; wait for its result. */
+    static final int QUERY_JOINED = 0;
+    /** A result younger than the TTL is available; no query needed. */
+    static final int QUERY_CACHED = 1;
+    /** A new query must be issued. */
+    static final int QUERY_REQUIRED = 2;
+
+    /**
+     * State for one kind of SDP query (service UUIDs, MAS instances).
+     */
+    final class Query {
+        private final String mName;
+        private final HashSet<BluetoothDevice> mPending = new HashSet<BluetoothDevice>();
+        private final HashMap<BluetoothDevice, Long> mCompleted =
+                new HashMap<BluetoothDevice, Long>();
+        private int mHits;
+        private int mJoins;
+        private int mMisses;
+
+        private Query(String name) {
+            mName = name;
+        }
+
+        /**
+         * Decide how to serve a request for {@code device}. When
+         * {@link #QUERY_REQUIRED} is returned the device is marked in flight
+         * and the caller must issue the query.
+         *
+         * @param haveResult whether a previous result is still held in memory
+         */
+        int begin(BluetoothDevice device, boolean haveResult) {
+            synchronized (SdpResultCache.this) {
+                if (mPending.contains(device)) {
+                    mJoins++;
+                    return QUERY_JOINED;
+                }
+                Long completed = mCompleted.get(device);
+                if (haveResult && completed != null
+                        && SystemClock.elapsedRealtime() - completed < mTtlMs) {
+                    mHits++;
+                    return QUERY_CACHED;
+                }
+                mMisses++;
+                mPending.add(device);
+                return QUERY_REQUIRED;
+            }
+        }
+
+        /**
+         * Mark the query for {@code device} as no longer in flight. Results
+         * nobody asked for, e.g. UUIDs from inquiry EIR, are not recorded as
+         * a completed query.
+         *
+         * @param success whether a result was actually received, as opposed
+         *        to the request timing out
+         */
+        void finish(BluetoothDevice device, boolean success) {
+            synchronized (SdpResultCache.this) {
+                if (mPending.remove(device) && success) {
+                    mCompleted.put(device, SystemClock.elapsedRealtime());
+                }
+            }
+        }
+
+        /**
+         * Forget the last result for {@code device}, so the next request
+         * issues a new query.
+         */
+        void invalidate(BluetoothDevice device) {
+            synchronized (SdpResultCache.this) {
+                mCompleted.remove(device);
+            }
+        }
+
+        private void clear() {
+            mPending.clear();
+            mCompleted.clear();
+        }
+
+        private void dump(PrintWriter writer) {
+            int total = mHits + mJoins + mMisses;
+            writer.println("  " + mName + ": requests=" + total + " cached=" + mHits
+                    + " joined=" + mJoins + " queried=" + mMisses
+                    + " inFlight=" + mPending.size());
+        }
+    }
+
+    private final long mTtlMs;
+    final Query mUuids = new Query("UUID");
+    final Query mMasInstances = new Query("MAS");
+
+    SdpResultCache(long ttlMs) {
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * Forget all results for {@code device}, e.g. once it is unpaired; a
+     * re-paired device may offer different services.
+     */
+    synchronized void invalidate(BluetoothDevice device) {
+        mUuids.invalidate(device);
+        mMasInstances.invalidate(device);
+    }
+
+    synchronized void clear() {
+        mUuids.clear();
+        mMasInstances.clear();
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("SDP result cache (ttl=" + mTtlMs + "ms):");
+        mUuids.dump(writer);
+        mMasInstances.dump(writer);
+    }
+}
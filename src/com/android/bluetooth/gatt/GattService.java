@@ -39,6 +39,7 @@ import android.os.RemoteException;
 import android.os.SystemClock;
 import android.util.Log;
 
+import com.android.bluetooth.NativeEventReader;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.ProfileService;
 
@@ -140,6 +141,12 @@ public class GattService extends ProfileService {
     private AdvertiseManager mAdvertiseManager;
     private ScanManager mScanManager;
 
+    // Record types packed by the native event batch, see
+    // com_android_bluetooth_gatt.cpp
+    private static final int BATCH_SCAN_RESULT = 1;
+    private static final int BATCH_NOTIFY = 2;
+    private static final int BATCH_REMOTE_RSSI = 3;
+
     /**
      * Reliable write queue
      */
@@ -543,6 +550,58 @@ public class GattService extends ProfileService {
      * Callback functions - CLIENT
      *************************************************************************/
 
+    /**
+     * Unpacks a batch of scan results, notifications and RSSI reads queued
+     * by the native layer and dispatches each one to its usual handler.
+     */
+    void onBatchedEvents(byte[] events, int count) {
+        NativeEventReader reader = new NativeEventReader(events, count);
+        while (reader.next()) {
+            try {
+                switch (reader.getType()) {
+                    case BATCH_SCAN_RESULT: {
+                        String address = reader.readAddress();
+                        int rssi = reader.readInt();
+                        onScanResult(address, rssi, reader.readRemaining());
+                        break;
+                    }
+                    case BATCH_NOTIFY: {
+                        int connId = reader.readInt();
+                        String address = reader.readAddress();
+                        int srvcType = reader.readInt();
+                        int srvcInstId = reader.readInt();
+                        long srvcUuidLsb = reader.readLong();
+                        long srvcUuidMsb = reader.readLong();
+                        int charInstId = reader.readInt();
+                        long charUuidLsb = reader.readLong();
+                        long charUuidMsb = reader.readLong();
+                        boolean isNotify = reader.readBoolean();
+                        onNotify(connId, address, srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb,
+                                charInstId, charUuidLsb, charUuidMsb, isNotify,
+                                reader.readRemaining());
+                        break;
+                    }
+                    case BATCH_REMOTE_RSSI: {
+                        int clientIf = reader.readInt();
+                        String address = reader.readAddress();
+                        int rssi = reader.readInt();
+                        int status = reader.readInt();
+                        onReadRemoteRssi(clientIf, address, rssi, status);
+                        break;
+                    }
+                    default:
+                        Log.w(TAG, "onBatchedEvents() - unknown event type " + reader.getType());
+                        break;
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "onBatchedEvents() - exception delivering event", e);
+            } catch (RuntimeException e) {
+                // Match the per-callback isolation of unbatched delivery.
+                Log.e(TAG, "onBatchedEvents() - exception handling event", e);
+            }
+        }
+    }
+
     void onScanResult(String address, int rssi, byte[] adv_data) {
         if (VDBG) Log.d(TAG, "onScanResult() - address=" + address
                     + ", rssi=" + rssi);
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Finds the rows of a message table that changed since the last look.
+ *
+ * Each row has a state: a weighted sum of the columns whose changes matter
+ * to the caller. Rows with an _ID above the highest one read so far are new
+ * and are read directly. For the older rows the provider computes COUNT(*)
+ * and the SUM of the state over an _ID range, which is compared with the
+ * same sums over the states recorded here; a range that differs is halved
+ * until it holds few enough rows to read and compare one by one. An
+ * unchanged table therefore costs two small queries instead of a read of
+ * every row.
+ *
+ * The whole table is read instead on the first update after
+ * FULL_RECONCILE_INTERVAL_MS, when one update needs more than
+ * MAX_RANGE_QUERIES range queries, and for good if the provider rejects the
+ * aggregate projection.
+ *
+ * Callers serialize calls to load() and update().
+ */
+abstract class BluetoothMapChangeTracker {
+    private static final String TAG = "BluetoothMapChangeTracker";
+    private static final boolean D = BluetoothMapService.DEBUG;
+    private static final boolean V = BluetoothMapService.VERBOSE;
+
+    /** Ranges with at most this many rows on both sides are read row by row. */
+    private static final int LEAF_ROWS = 64;
+
+    /** Range queries one update may make before reading the whole table. */
+    private static final int MAX_RANGE_QUERIES = 32;
+
+    /** Longest time between two reads of the whole table. */
+    private static final long FULL_RECONCILE_INTERVAL_MS = 15 * 60 * 1000;
+
+    private final String mName;
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String[] mStateColumns;
+    private final long[] mStateWeights;
+    private final String[] mFingerprintProjection;
+
+    // _ID -> state of every row as last read, kept in the value
+    private BluetoothMapMsgTable mStates = new BluetoothMapMsgTable();
+
+    // sum of the states in mStates; the row count is mStates.size()
+    private long mStateSum;
+
+    private long mWatermark = -1;
+    private long mLastFullReconcile;
+    private boolean mFingerprintUnsupported = false;
+    private int mRangeQueries;
+
+    // sorted snapshot of mStates used while bisecting
+    private long[] mIds;
+    private long[] mPrefixStates;
+
+    /**
+     * @param projection the columns read for changed rows; must contain
+     *        _ID and the state columns
+     * @param stateColumns integer columns making up the row state
+     * @param stateWeights the weight of each state column
+     */
+    BluetoothMapChangeTracker(String name, ContentResolver resolver, Uri uri,
+            String[] projection, String[] stateColumns, long[] stateWeights) {
+        mName = name;
+        mResolver = resolver;
+        mUri = uri;
+        mProjection = projection;
+        mStateColumns = stateColumns;
+        mStateWeights = stateWeights;
+
+        StringBuilder state = new StringBuilder();
+        for (int i = 0; i < stateColumns.length; i++) {
+            if (i > 0) state.append(" + ");
+            state.append("IFNULL(").append(stateColumns[i]).append(",0)*")
+                    .append(stateWeights[i]);
+        }
+        mFingerprintProjection = new String[] { "COUNT(*)", "SUM(" + state + ")" };
+    }
+
+    /**
+     * A row was added, or its state changed, or the whole table is being
+     * read. c is positioned on the row.
+     * @param initial true while load() reads the table
+     */
+    abstract void onRow(Cursor c, long id, boolean initial);
+
+    /**
+     * A row read earlier no longer exists.
+     */
+    abstract void onRowDeleted(long id);
+
+    /**
+     * Forget all recorded rows and read the whole table, passing every row
+     * to onRow() with initial set.
+     */
+    void load() {
+        mStates.clear();
+        mStateSum = 0;
+        mWatermark = -1;
+        reconcileAll(true);
+    }
+
+    /**
+     * Find the rows changed since the last load() or update() and pass them
+     * to onRow() and onRowDeleted().
+     */
+    void update() {
+        long now = SystemClock.elapsedRealtime();
+        if (mWatermark < 0 || mFingerprintUnsupported
+                || now - mLastFullReconcile >= FULL_RECONCILE_INTERVAL_MS) {
+            reconcileAll(false);
+            return;
+        }
+
+        long watermark = mWatermark;
+        // every recorded row is at or below the watermark until new rows
+        // are read
+        long localCount = mStates.size();
+        long localSum = mStateSum;
+        boolean complete;
+        mRangeQueries = 0;
+        try {
+            // Rows added since the last look
+            reconcileRange(watermark + 1, Long.MAX_VALUE, 0, 0);
+
+            long[] remote = queryFingerprint(0, watermark);
+            if (remote == null) {
+                return;
+            }
+            if (remote[0] == localCount && remote[1] == localSum) {
+                complete = true;
+            } else {
+                snapshot(watermark);
+                complete = bisect(0, watermark, 0, mIds.length, remote[0], remote[1]);
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, mName + ": aggregate query failed, reading whole table from now on", e);
+            mFingerprintUnsupported = true;
+            complete = false;
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, mName + ": aggregate query rejected, reading whole table from now on", e);
+            mFingerprintUnsupported = true;
+            complete = false;
+        } finally {
+            mIds = null;
+            mPrefixStates = null;
+        }
+
+        if (!complete) {
+            reconcileAll(false);
+        } else if (V) {
+            Log.v(TAG, mName + ": updated with " + mRangeQueries + " range queries");
+        }
+    }
+
+    private long getState(Cursor c, int[] stateIndexes) {
+        long state = 0;
+        for (int i = 0; i < stateIndexes.length; i++) {
+            state += c.getLong(stateIndexes[i]) * mStateWeights[i];
+        }
+        return state;
+    }
+
+    private int[] getStateIndexes(Cursor c) {
+        int[] indexes = new int[mStateColumns.length];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = c.getColumnIndexOrThrow(mStateColumns[i]);
+        }
+        return indexes;
+    }
+
+    private String rangeSelection(long lo, long hi) {
+        return BaseColumns._ID + " BETWEEN " + lo + " AND " + hi;
+    }
+
+    /**
+     * @return COUNT(*) in [0] and the sum of the row states in [1] over the
+     *         rows with an _ID in [lo, hi], or null if the provider is gone
+     */
+    private long[] queryFingerprint(long lo, long hi) {
+        Cursor c = mResolver.query(mUri, mFingerprintProjection, rangeSelection(lo, hi),
+                null, null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            return new long[] { c.getLong(0), c.getLong(1) };
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Sort the recorded rows with an _ID up to hi into mIds, with the running
+     * sum of their states in mPrefixStates.
+     */
+    private void snapshot(long hi) {
+        long[] ids = new long[mStates.size()];
+        int n = 0;
+        for (int slot = mStates.nextSlot(0); slot >= 0; slot = mStates.nextSlot(slot + 1)) {
+            if (mStates.getId(slot) <= hi) {
+                ids[n++] = mStates.getId(slot);
+            }
+        }
+        mIds = Arrays.copyOf(ids, n);
+        Arrays.sort(mIds);
+        mPrefixStates = new long[n + 1];
+        for (int i = 0; i < n; i++) {
+            mPrefixStates[i + 1] = mPrefixStates[i] + mStates.getValue(mStates.find(mIds[i]));
+        }
+    }
+
+    /**
+     * Find and reconcile the changed rows with an _ID in [lo, hi], where the
+     * provider has count rows with states adding up to sum and the recorded
+     * rows are mIds[from, to).
+     * @return false if this took more than MAX_RANGE_QUERIES queries
+     */
+    private boolean bisect(long lo, long hi, int from, int to, long count, long sum) {
+        if (to - from == count && mPrefixStates[to] - mPrefixStates[from] == sum) {
+            return true;
+        }
+        if (++mRangeQueries > MAX_RANGE_QUERIES) {
+            return false;
+        }
+        if ((count <= LEAF_ROWS && to - from <= LEAF_ROWS) || lo == hi) {
+            reconcileRange(lo, hi, from, to);
+            return true;
+        }
+        long mid = lo + (hi - lo) / 2;
+        long[] left = queryFingerprint(lo, mid);
+        if (left == null) {
+            return false;
+        }
+        int split = from;
+        while (split < to && mIds[split] <= mid) {
+            split++;
+        }
+        return bisect(lo, mid, from, split, left[0], left[1])
+                && bisect(mid + 1, hi, split, to, count - left[0], sum - left[1]);
+    }
+
+    /**
+     * Read the rows with an _ID in [lo, hi] and pass the added and changed
+     * ones on. The recorded rows in the range are mIds[from, to); any of
+     * them not read again were deleted.
+     */
+    private void reconcileRange(long lo, long hi, int from, int to) {
+        Cursor c = mResolver.query(mUri, mProjection, rangeSelection(lo, hi), null,
+                BaseColumns._ID);
+        if (c == null) {
+            return;
+        }
+        BluetoothMapMsgTable seen = new BluetoothMapMsgTable();
+        try {
+            int idIndex = c.getColumnIndexOrThrow(BaseColumns._ID);
+            int[] stateIndexes = getStateIndexes(c);
+            while (c.moveToNext()) {
+                long id = c.getLong(idIndex);
+                long state = getState(c, stateIndexes);
+                int slot = mStates.find(id);
+                boolean changed = slot < 0 || mStates.getValue(slot) != state;
+                if (slot >= 0) {
+                    mStateSum -= mStates.getValue(slot);
+                }
+                mStateSum += state;
+                mStates.put(id, 0, state);
+                seen.put(id, 0, 0);
+                if (id > mWatermark) {
+                    mWatermark = id;
+                }
+                if (changed) {
+                    onRow(c, id, false);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        for (int i = from; i < to; i++) {
+            long id = mIds[i];
+            if (seen.find(id) < 0) {
+                mStateSum -= mStates.getValue(mStates.find(id));
+                mStates.remove(id);
+                onRowDeleted(id);
+            }
+        }
+    }
+
+    /**
+     * Read every row. Unless initial, all rows are passed to onRow() and the
+     * recorded rows not read again to onRowDeleted().
+     */
+    private void reconcileAll(boolean initial) {
+        if (D) Log.d(TAG, mName + ": reading whole table");
+        Cursor c = mResolver.query(mUri, mProjection, null, null, BaseColumns._ID);
+        if (c == null) {
+            return;
+        }
+        BluetoothMapMsgTable states = new BluetoothMapMsgTable();
+        long sum = 0;
+        long watermark = -1;
+        try {
+            int idIndex = c.getColumnIndexOrThrow(BaseColumns._ID);
+            int[] stateIndexes = getStateIndexes(c);
+            while (c.moveToNext()) {
+                long id = c.getLong(idIndex);
+                long state = getState(c, stateIndexes);
+                states.put(id, 0, state);
+                sum += state;
+                mStates.remove(id);
+                if (id > watermark) {
+                    watermark = id;
+                }
+                onRow(c, id, initial);
+            }
+        } finally {
+            c.close();
+        }
+        // whatever is left was deleted
+        for (int slot = mStates.nextSlot(0); slot >= 0; slot = mStates.nextSlot(slot + 1)) {
+            onRowDeleted(mStates.getId(slot));
+        }
+        mStates = states;
+        mStateSum = sum;
+        mWatermark = Math.max(watermark, mWatermark);
+        mLastFullReconcile = SystemClock.elapsedRealtime();
+    }
+}
@@ -27,8 +27,6 @@ import android.provider.BaseColumns;
 import com.android.bluetooth.mapapi.BluetoothMapContract;
 import com.android.bluetooth.mapapi.BluetoothMapContract.MessageColumns;
 import android.provider.ContactsContract;
-import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.PhoneLookup;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Sms;
 import android.telephony.PhoneNumberUtils;
@@ -37,6 +35,7 @@ import android.text.util.Rfc822Token;
 import android.text.util.Rfc822Tokenizer;
 import android.util.Log;
 
+import com.android.bluetooth.ContactNameCache;
 import com.android.bluetooth.map.BluetoothMapSmsPdu.SmsPdu;
 import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
 import com.google.android.mms.pdu.CharacterSets;
@@ -54,6 +53,7 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 
 public class BluetoothMapContent {
@@ -91,9 +91,29 @@ public class BluetoothMapContent {
 
     public static final String INSERT_ADDRES_TOKEN = "insert-address-token";
 
+    private static final String[] MMS_ADDR_PROJECTION = new String[] {
+        Mms.Addr.TYPE,
+        Mms.Addr.ADDRESS
+    };
+
+    /* Lets SQLite count SMS and MMS rows instead of filling a cursor window */
+    private static final String[] COUNT_PROJECTION = new String[] {
+        "COUNT(*)"
+    };
+
+    private static final String[] ID_PROJECTION = new String[] {
+        BaseColumns._ID
+    };
+
     private Context mContext;
     private ContentResolver mResolver;
     private String mBaseEmailUri = null;
+    private BluetoothMapContentObserver mObserver = null;
+
+    /* uri and selection -> number of matching messages, valid for
+     * mCountCacheGeneration of mObserver */
+    private final HashMap<String, Integer> mCountCache = new HashMap<String, Integer>();
+    private int mCountCacheGeneration = -1;
 
     static final String[] SMS_PROJECTION = new String[] {
         BaseColumns._ID,
@@ -133,6 +153,8 @@ public class BluetoothMapContent {
         int mPhoneType = 0;
         String mPhoneNum = null;
         String mPhoneAlphaTag = null;
+        /* MMS id -> {from, to} addresses read during this listing request */
+        final HashMap<Long, String[]> mMmsAddresses = new HashMap<Long, String[]>();
         /*column indices used to optimize queries */
         public int mEmailColThreadId        = -1;
         public int mEmailColProtected       = -1;
@@ -208,12 +230,22 @@ public class BluetoothMapContent {
     }
 
     public BluetoothMapContent(final Context context, String emailBaseUri) {
+        this(context, emailBaseUri, null);
+    }
+
+    /**
+     * @param observer the content observer of the MAS instance; while it is
+     *        registered, message counts are cached until it sees a change
+     */
+    public BluetoothMapContent(final Context context, String emailBaseUri,
+            BluetoothMapContentObserver observer) {
         mContext = context;
         mResolver = mContext.getContentResolver();
         if (mResolver == null) {
             if (D) Log.d(TAG, "getContentResolver failed");
         }
         mBaseEmailUri = emailBaseUri;
+        mObserver = observer;
     }
 
 
@@ -602,8 +634,8 @@ public class BluetoothMapContent {
                     address = c.getString(c.getColumnIndex(Sms.ADDRESS));
                 }
             } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
-                long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-                address = getAddressMms(mResolver, id, MMS_TO);
+                long id = c.getLong(fi.mMmsColId);
+                address = getAddressMms(fi, id, MMS_TO);
             } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL) {
                 /* Might be another way to handle addresses */
                 address = setRecipientAddressingEmail(e, c,fi);
@@ -630,12 +662,7 @@ public class BluetoothMapContent {
                 }
             } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
                 long id = c.getLong(fi.mMmsColId);
-                String phone;
-                if(e.getRecipientAddressing() != null){
-                    phone = getAddressMms(mResolver, id, MMS_TO);
-                } else {
-                    phone = e.getRecipientAddressing();
-                }
+                String phone = getAddressMms(fi, id, MMS_TO);
                 if (phone != null && !phone.isEmpty())
                     name = getContactNameFromPhone(phone);
             } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL) {
@@ -678,7 +705,7 @@ public class BluetoothMapContent {
                 }
             } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
                 long id = c.getLong(fi.mMmsColId);
-                tempAddress = getAddressMms(mResolver, id, MMS_FROM);
+                tempAddress = getAddressMms(fi, id, MMS_FROM);
                 address = PhoneNumberUtils.extractNetworkPortion(tempAddress);
                 if(address == null || address.length() < 1){
                     address = tempAddress; // if the number is a service acsii text just use it
@@ -708,12 +735,7 @@ public class BluetoothMapContent {
                 }
             } else if (fi.mMsgType == FilterInfo.TYPE_MMS) {
                 long id = c.getLong(fi.mMmsColId);
-                String phone;
-                if(e.getSenderAddressing() != null){
-                    phone = getAddressMms(mResolver, id, MMS_FROM);
-                } else {
-                    phone = e.getSenderAddressing();
-                }
+                String phone = getAddressMms(fi, id, MMS_FROM);
                 if (phone != null && !phone.isEmpty() )
                     name = getContactNameFromPhone(phone);
             } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL) {
@@ -834,24 +856,7 @@ public class BluetoothMapContent {
     }
 
     private String getContactNameFromPhone(String phone) {
-        String name = null;
-
-        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
-            Uri.encode(phone));
-
-        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME};
-        String selection = Contacts.IN_VISIBLE_GROUP + "=1";
-        String orderBy = Contacts.DISPLAY_NAME + " ASC";
-
-        Cursor c = mResolver.query(uri, projection, selection, null, orderBy);
-
-        if (c != null && c.getCount() >= 1) {
-            c.moveToFirst();
-            name = c.getString(c.getColumnIndex(Contacts.DISPLAY_NAME));
-        }
-
-        c.close();
-        return name;
+        return ContactNameCache.getInstance(mContext).lookupName(phone);
     }
 
     static public String getAddressMms(ContentResolver r, long id, int type) {
@@ -873,14 +878,58 @@ public class BluetoothMapContent {
         return addr;
     }
 
+    /**
+     * Get the originator (MMS_FROM) or first recipient (MMS_TO) of an MMS in
+     * the listing request described by fi. Both addresses are read with one
+     * query the first time the message is asked for and kept in fi, so
+     * filtering and the listing fields of a message share a single lookup.
+     */
+    private String getAddressMms(FilterInfo fi, long id, int type) {
+        String[] addresses = fi.mMmsAddresses.get(id);
+        if (addresses == null) {
+            addresses = getAddressesMms(mResolver, id);
+            fi.mMmsAddresses.put(id, addresses);
+        }
+        return type == MMS_FROM ? addresses[0] : addresses[1];
+    }
+
+    /**
+     * @return the first MMS_FROM address in [0] and the first MMS_TO address
+     *         in [1] of MMS id, each null if the message has none
+     */
+    private static String[] getAddressesMms(ContentResolver r, long id) {
+        String[] addresses = new String[2];
+        String selection = Mms.Addr.MSG_ID + "=" + id + " AND (" + Mms.Addr.TYPE + "="
+                + MMS_FROM + " OR " + Mms.Addr.TYPE + "=" + MMS_TO + ")";
+        Uri uriAddress = Uri.parse(Mms.CONTENT_URI + "/" + id + "/addr");
+        Cursor c = r.query(uriAddress, MMS_ADDR_PROJECTION, selection, null, null);
+
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    int index = c.getInt(0) == MMS_FROM ? 0 : 1;
+                    if (addresses[index] == null) {
+                        String addr = c.getString(1);
+                        if (INSERT_ADDRES_TOKEN.equals(addr))
+                            addr = "";
+                        addresses[index] = addr;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return addresses;
+    }
+
     /**
      * Matching functions for originator and recipient for MMS
      * @return true if found a match
      */
     private boolean matchRecipientMms(Cursor c, FilterInfo fi, String recip) {
         boolean res;
-        long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-        String phone = getAddressMms(mResolver, id, MMS_TO);
+        long id = c.getLong(fi.mMmsColId);
+        String phone = getAddressMms(fi, id, MMS_TO);
         if (phone != null && phone.length() > 0) {
             if (phone.matches(recip)) {
                 if (V) Log.v(TAG, "matchRecipientMms: match recipient phone = " + phone);
@@ -959,8 +1008,8 @@ public class BluetoothMapContent {
 
     private boolean matchOriginatorMms(Cursor c, FilterInfo fi, String orig) {
         boolean res;
-        long id = c.getLong(c.getColumnIndex(BaseColumns._ID));
-        String phone = getAddressMms(mResolver, id, MMS_FROM);
+        long id = c.getLong(fi.mMmsColId);
+        String phone = getAddressMms(fi, id, MMS_FROM);
         if (phone != null && phone.length() > 0) {
             if (phone.matches(orig)) {
                 if (V) Log.v(TAG, "matchOriginatorMms: match originator phone = " + phone);
@@ -1361,6 +1410,21 @@ public class BluetoothMapContent {
      */
     public BluetoothMapMessageListing msgListing(BluetoothMapFolderElement folderElement,
             BluetoothMapAppParams ap) {
+        return msgListing(folderElement, ap, false);
+    }
+
+    /**
+     * Get a listing of message in folder after applying filter.
+     * @param folder Must contain a valid folder string != null
+     * @param ap Parameters specifying message content and filters
+     * @param deferDetails if true, the addressing, names, subject and other
+     *        fields that need contact lookups or further cursor reads are
+     *        only loaded as each element is encoded; the caller must then
+     *        close the returned listing
+     * @return Listing object containing requested messages
+     */
+    public BluetoothMapMessageListing msgListing(BluetoothMapFolderElement folderElement,
+            BluetoothMapAppParams ap, boolean deferDetails) {
         if (D) Log.d(TAG, "msgListing: folderName = " + folderElement.getName()
                 + " folderId = " + folderElement.getEmailFolderId()
                 + " messageType = " + ap.getFilterMessageType() );
@@ -1409,17 +1473,9 @@ public class BluetoothMapContent {
                     smsCursor = mResolver.query(Sms.CONTENT_URI,
                             SMS_PROJECTION, where, null, Sms.DATE + " DESC" + limit);
                     if (smsCursor != null) {
-                        BluetoothMapMessageListingElement e = null;
                         // store column index so we dont have to look them up anymore (optimization)
                         if(D) Log.d(TAG, "Found " + smsCursor.getCount() + " sms messages.");
                         fi.setSmsColumns(smsCursor);
-                        while (smsCursor.moveToNext()) {
-                            if (matchAddresses(smsCursor, fi, ap)) {
-                                if(V) printSms(smsCursor);
-                                e = element(smsCursor, fi, ap);
-                                bmList.add(e);
-                            }
-                        }
                     }
                 }
             }
@@ -1441,18 +1497,9 @@ public class BluetoothMapContent {
                 mmsCursor = mResolver.query(Mms.CONTENT_URI,
                         MMS_PROJECTION, where, null, Mms.DATE + " DESC" + limit);
                 if (mmsCursor != null) {
-                    BluetoothMapMessageListingElement e = null;
                     // store column index so we dont have to look them up anymore (optimization)
                     fi.setMmsColumns(mmsCursor);
-                    int cnt = 0;
                     if(D) Log.d(TAG, "Found " + mmsCursor.getCount() + " mms messages.");
-                    while (mmsCursor.moveToNext()) {
-                        if (matchAddresses(mmsCursor, fi, ap)) {
-                            if(V) printMms(mmsCursor);
-                            e = element(mmsCursor, fi, ap);
-                            bmList.add(e);
-                        }
-                    }
                 }
             }
         }
@@ -1475,61 +1522,156 @@ public class BluetoothMapContent {
                 emailCursor = mResolver.query(contentUri, BluetoothMapContract.BT_MESSAGE_PROJECTION,
                         where, null, BluetoothMapContract.MessageColumns.DATE + " DESC" + limit);
                 if (emailCursor != null) {
-                    BluetoothMapMessageListingElement e = null;
                     // store column index so we dont have to look them up anymore (optimization)
                     fi.setEmailColumns(emailCursor);
-                    int cnt = 0;
-                    while (emailCursor.moveToNext()) {
-                        if(V) printEmail(emailCursor);
-                        if(D) Log.d(TAG, "Found " + emailCursor.getCount() + " email messages.");
-                        e = element(emailCursor, fi, ap);
-                        bmList.add(e);
-                    }
-                //   emailCursor.close();
+                    if(D) Log.d(TAG, "Found " + emailCursor.getCount() + " email messages.");
+                }
+            }
+        }
+
+        mergeListing(bmList, new Cursor[] { smsCursor, mmsCursor, emailCursor }, fi, ap,
+                offsetNum, countNum);
+        ListingDetailLoader details = new ListingDetailLoader(smsCursor, mmsCursor,
+                emailCursor, fi, ap);
+        if (deferDetails) {
+            bmList.setDetailLoader(details);
+        } else {
+            for (BluetoothMapMessageListingElement ele : bmList.getList()) {
+                details.load(ele);
+            }
+            details.close();
+        }
+        if(D)Log.d(TAG, "messagelisting end");
+        return bmList;
+    }
+
+    /** FilterInfo message type of each cursor passed to mergeListing */
+    private static final int[] MERGE_TYPES = new int[] {
+        FilterInfo.TYPE_SMS, FilterInfo.TYPE_MMS, FilterInfo.TYPE_EMAIL
+    };
+
+    /**
+     * Merge the date descending cursors into bmList, newest first, skipping
+     * the first offset matching messages and stopping after count (no limit
+     * if count <= 0). Only messages on the page become list elements, and
+     * no cursor is read further than the page needs. Messages with the same
+     * date keep the SMS, MMS, email order.
+     * @param cursors the SMS, MMS and email cursors; any may be null
+     */
+    private void mergeListing(BluetoothMapMessageListing bmList, Cursor[] cursors,
+            FilterInfo fi, BluetoothMapAppParams ap, int offset, int count) {
+        long[] dates = new long[cursors.length];
+        for (int i = 0; i < cursors.length; i++) {
+            dates[i] = nextMergeDate(cursors[i], MERGE_TYPES[i], fi, ap);
+        }
+        int skipped = 0;
+        while (count <= 0 || bmList.getCount() < count) {
+            int newest = -1;
+            for (int i = 0; i < cursors.length; i++) {
+                if (dates[i] != Long.MIN_VALUE && (newest < 0 || dates[i] > dates[newest])) {
+                    newest = i;
+                }
+            }
+            if (newest < 0) {
+                break;
+            }
+            Cursor c = cursors[newest];
+            fi.mMsgType = MERGE_TYPES[newest];
+            if (skipped < offset) {
+                skipped++;
+            } else {
+                if (V) {
+                    if (fi.mMsgType == FilterInfo.TYPE_SMS) printSms(c);
+                    else if (fi.mMsgType == FilterInfo.TYPE_MMS) printMms(c);
+                    else printEmail(c);
                 }
+                bmList.add(element(c, fi, ap));
+            }
+            dates[newest] = nextMergeDate(c, MERGE_TYPES[newest], fi, ap);
+        }
+        if (D) Log.d(TAG, "mergeListing: skipped " + skipped + ", listed " + bmList.getCount());
+    }
+
+    /**
+     * Move c to its next message matching the address filters.
+     * @return the date of that message in ms, or Long.MIN_VALUE if there is none
+     */
+    private long nextMergeDate(Cursor c, int msgType, FilterInfo fi,
+            BluetoothMapAppParams ap) {
+        if (c == null) {
+            return Long.MIN_VALUE;
+        }
+        fi.mMsgType = msgType;
+        while (c.moveToNext()) {
+            if (msgType == FilterInfo.TYPE_SMS) {
+                if (matchAddresses(c, fi, ap)) return c.getLong(fi.mSmsColDate);
+            } else if (msgType == FilterInfo.TYPE_MMS) {
+                if (matchAddresses(c, fi, ap)) return c.getLong(fi.mMmsColDate) * 1000L;
+            } else {
+                // The email provider applies the address filters in its query
+                return c.getLong(fi.mEmailColDate);
             }
         }
+        return Long.MIN_VALUE;
+    }
 
-        /* Enable this if post sorting and segmenting needed */
-        bmList.sort();
-        bmList.segment(ap.getMaxListCount(), offsetNum);
-        List<BluetoothMapMessageListingElement> list = bmList.getList();
-        int listSize = list.size();
-        Cursor tmpCursor = null;
-        for(int x=0;x<listSize;x++){
-            BluetoothMapMessageListingElement ele = list.get(x);
-            if((ele.getType().equals(TYPE.SMS_GSM)||ele.getType().equals(TYPE.SMS_CDMA)) && smsCursor != null){
-                tmpCursor = smsCursor;
-                fi.mMsgType = FilterInfo.TYPE_SMS;
-            }else if(ele.getType().equals(TYPE.MMS) && mmsCursor != null){
-                tmpCursor = mmsCursor;
-                fi.mMsgType = FilterInfo.TYPE_MMS;
-            }else if(ele.getType().equals(TYPE.EMAIL) && emailCursor != null){
-                tmpCursor = emailCursor;
-                fi.mMsgType = FilterInfo.TYPE_EMAIL;
+    /**
+     * Loads the listing fields of an element from the cursor row it was
+     * created from. Owns the cursors of the listing.
+     */
+    private class ListingDetailLoader implements BluetoothMapMessageListing.DetailLoader {
+        private final Cursor mSmsCursor;
+        private final Cursor mMmsCursor;
+        private final Cursor mEmailCursor;
+        private final FilterInfo mFi;
+        private final BluetoothMapAppParams mAp;
+
+        ListingDetailLoader(Cursor smsCursor, Cursor mmsCursor, Cursor emailCursor,
+                FilterInfo fi, BluetoothMapAppParams ap) {
+            mSmsCursor = smsCursor;
+            mMmsCursor = mmsCursor;
+            mEmailCursor = emailCursor;
+            mFi = fi;
+            mAp = ap;
+        }
+
+        @Override
+        public void load(BluetoothMapMessageListingElement ele) {
+            Cursor tmpCursor = null;
+            if((ele.getType().equals(TYPE.SMS_GSM)||ele.getType().equals(TYPE.SMS_CDMA)) && mSmsCursor != null){
+                tmpCursor = mSmsCursor;
+                mFi.mMsgType = FilterInfo.TYPE_SMS;
+            }else if(ele.getType().equals(TYPE.MMS) && mMmsCursor != null){
+                tmpCursor = mMmsCursor;
+                mFi.mMsgType = FilterInfo.TYPE_MMS;
+            }else if(ele.getType().equals(TYPE.EMAIL) && mEmailCursor != null){
+                tmpCursor = mEmailCursor;
+                mFi.mMsgType = FilterInfo.TYPE_EMAIL;
             }
             if(tmpCursor != null){
                 tmpCursor.moveToPosition(ele.getCursorIndex());
-                setSenderAddressing(ele, tmpCursor, fi, ap);
-                setSenderName(ele, tmpCursor, fi, ap);
-                setRecipientAddressing(ele, tmpCursor, fi, ap);
-                setRecipientName(ele, tmpCursor, fi, ap);
-                setSubject(ele, tmpCursor, fi, ap);
-                setSize(ele, tmpCursor, fi, ap);
-                setReceptionStatus(ele, tmpCursor, fi, ap);
-                setText(ele, tmpCursor, fi, ap);
-                setAttachmentSize(ele, tmpCursor, fi, ap);
-                setPriority(ele, tmpCursor, fi, ap);
-                setSent(ele, tmpCursor, fi, ap);
-                setProtected(ele, tmpCursor, fi, ap);
-                setThreadId(ele, tmpCursor, fi, ap);
+                setSenderAddressing(ele, tmpCursor, mFi, mAp);
+                setSenderName(ele, tmpCursor, mFi, mAp);
+                setRecipientAddressing(ele, tmpCursor, mFi, mAp);
+                setRecipientName(ele, tmpCursor, mFi, mAp);
+                setSubject(ele, tmpCursor, mFi, mAp);
+                setSize(ele, tmpCursor, mFi, mAp);
+                setReceptionStatus(ele, tmpCursor, mFi, mAp);
+                setText(ele, tmpCursor, mFi, mAp);
+                setAttachmentSize(ele, tmpCursor, mFi, mAp);
+                setPriority(ele, tmpCursor, mFi, mAp);
+                setSent(ele, tmpCursor, mFi, mAp);
+                setProtected(ele, tmpCursor, mFi, mAp);
+                setThreadId(ele, tmpCursor, mFi, mAp);
             }
         }
-        if(emailCursor != null)emailCursor.close();
-        if(smsCursor != null)smsCursor.close();
-        if(mmsCursor != null)mmsCursor.close();
-        if(D)Log.d(TAG, "messagelisting end");
-        return bmList;
+
+        @Override
+        public void close() {
+            if(mEmailCursor != null)mEmailCursor.close();
+            if(mSmsCursor != null)mSmsCursor.close();
+            if(mMmsCursor != null)mMmsCursor.close();
+        }
     }
 
     /**
@@ -1550,24 +1692,13 @@ public class BluetoothMapContent {
         if (smsSelected(fi, ap)  && folderElement.hasSmsMmsContent()) {
             fi.mMsgType = FilterInfo.TYPE_SMS;
             String where = setWhereFilter(folderElement, fi, ap);
-            Cursor c = mResolver.query(Sms.CONTENT_URI,
-                    SMS_PROJECTION, where, null, Sms.DATE + " DESC");
-
-            if (c != null) {
-                cnt = c.getCount();
-                c.close();
-            }
+            cnt = countMessages(Sms.CONTENT_URI, where, true);
         }
 
         if (mmsSelected(fi, ap)  && folderElement.hasSmsMmsContent()) {
             fi.mMsgType = FilterInfo.TYPE_MMS;
             String where = setWhereFilter(folderElement, fi, ap);
-            Cursor c = mResolver.query(Mms.CONTENT_URI,
-                    MMS_PROJECTION, where, null, Mms.DATE + " DESC");
-            if (c != null) {
-                cnt += c.getCount();
-                c.close();
-            }
+            cnt += countMessages(Mms.CONTENT_URI, where, true);
         }
 
         if (emailSelected(fi, ap) && folderElement.getEmailFolderId() != -1) {
@@ -1575,12 +1706,7 @@ public class BluetoothMapContent {
             String where = setWhereFilter(folderElement, fi, ap);
             if(!where.isEmpty()) {
                 Uri contentUri = Uri.parse(mBaseEmailUri + BluetoothMapContract.TABLE_MESSAGE);
-                Cursor c = mResolver.query(contentUri, BluetoothMapContract.BT_MESSAGE_PROJECTION,
-                        where, null, BluetoothMapContract.MessageColumns.DATE + " DESC");
-                if (c != null) {
-                    cnt += c.getCount();
-                    c.close();
-                }
+                cnt += countMessages(contentUri, where, false);
             }
         }
 
@@ -1589,7 +1715,9 @@ public class BluetoothMapContent {
     }
 
     /**
-     * Return true if there are unread messages in the requested list of messages
+     * Return true if there are unread messages in the requested list of messages.
+     * Message types are checked in turn, stopping at the first one with an
+     * unread message.
      * @param folder folder where the message listing should come from
      * @param ap application parameter object
      * @return true if unread messages are in the list, else false
@@ -1603,48 +1731,30 @@ public class BluetoothMapContent {
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
 
-       if (smsSelected(fi, ap)  && folderElement.hasSmsMmsContent()) {
+        if (smsSelected(fi, ap)  && folderElement.hasSmsMmsContent()) {
             fi.mMsgType = FilterInfo.TYPE_SMS;
             String where = setWhereFilterFolderType(folderElement, fi);
             where += " AND " + Sms.READ + "=0 ";
             where += setWhereFilterPeriod(ap, fi);
-            Cursor c = mResolver.query(Sms.CONTENT_URI,
-                SMS_PROJECTION, where, null, Sms.DATE + " DESC");
-
-            if (c != null) {
-                cnt = c.getCount();
-                c.close();
-            }
+            cnt = countMessages(Sms.CONTENT_URI, where, true);
         }
 
-        if (mmsSelected(fi, ap)  && folderElement.hasSmsMmsContent()) {
+        if (cnt == 0 && mmsSelected(fi, ap)  && folderElement.hasSmsMmsContent()) {
             fi.mMsgType = FilterInfo.TYPE_MMS;
             String where = setWhereFilterFolderType(folderElement, fi);
             where += " AND " + Mms.READ + "=0 ";
             where += setWhereFilterPeriod(ap, fi);
-            Cursor c = mResolver.query(Mms.CONTENT_URI,
-                MMS_PROJECTION, where, null, Sms.DATE + " DESC");
-
-            if (c != null) {
-                cnt += c.getCount();
-                c.close();
-            }
+            cnt = countMessages(Mms.CONTENT_URI, where, true);
         }
 
-
-        if (emailSelected(fi, ap) && folderElement.getEmailFolderId() != -1) {
+        if (cnt == 0 && emailSelected(fi, ap) && folderElement.getEmailFolderId() != -1) {
             fi.mMsgType = FilterInfo.TYPE_EMAIL;
             String where = setWhereFilterFolderType(folderElement, fi);
             if(!where.isEmpty()) {
                 where += " AND " + BluetoothMapContract.MessageColumns.FLAG_READ + "=0 ";
                 where += setWhereFilterPeriod(ap, fi);
                 Uri contentUri = Uri.parse(mBaseEmailUri + BluetoothMapContract.TABLE_MESSAGE);
-                Cursor c = mResolver.query(contentUri, BluetoothMapContract.BT_MESSAGE_PROJECTION,
-                        where, null, BluetoothMapContract.MessageColumns.DATE + " DESC");
-                if (c != null) {
-                    cnt += c.getCount();
-                    c.close();
-                }
+                cnt = countMessages(contentUri, where, false);
             }
         }
 
@@ -1652,6 +1762,59 @@ public class BluetoothMapContent {
         return (cnt>0)?true:false;
     }
 
+    /**
+     * Count the messages at uri matching where. The SMS and MMS providers
+     * take a COUNT(*) projection, so SQLite does the counting; the email
+     * provider is queried for ids only, unsorted, and the rows are counted.
+     * Counts are served from mCountCache while the content observer has not
+     * seen a change since they were stored.
+     * @param sqlCount true if the provider accepts a COUNT(*) projection
+     */
+    private int countMessages(Uri uri, String where, boolean sqlCount) {
+        String key = uri + "?" + where;
+        int generation = mObserver != null ? mObserver.getChangeGeneration() : -1;
+        if (generation != -1) {
+            if (generation != mCountCacheGeneration) {
+                mCountCache.clear();
+                mCountCacheGeneration = generation;
+            }
+            Integer cached = mCountCache.get(key);
+            if (cached != null) {
+                if (V) Log.v(TAG, "countMessages: cached " + cached + " for " + key);
+                return cached;
+            }
+        }
+
+        int cnt = 0;
+        Cursor c = mResolver.query(uri, sqlCount ? COUNT_PROJECTION : ID_PROJECTION, where,
+                null, null);
+        if (c != null) {
+            try {
+                if (!sqlCount) {
+                    cnt = c.getCount();
+                } else if (c.moveToFirst()) {
+                    cnt = c.getInt(0);
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        // don't keep a count that may have raced a change
+        if (generation != -1 && generation == mObserver.getChangeGeneration()) {
+            mCountCache.put(key, cnt);
+        }
+        return cnt;
+    }
+
+    /**
+     * Drop the cached message counts, for changes made through this MAS
+     * instance that the content observer may not have reported yet.
+     */
+    public void clearCountCache() {
+        mCountCache.clear();
+    }
+
     /**
      * Get the folder name of an SMS message or MMS message.
      * @param c the cursor pointing at the message
@@ -1703,21 +1866,13 @@ public class BluetoothMapContent {
         String[] emailAddresses = null;
         Cursor p;
 
-        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
-                Uri.encode(phone));
-
-        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME};
-        String selection = Contacts.IN_VISIBLE_GROUP + "=1";
-        String orderBy = Contacts._ID + " ASC";
-
         // Get the contact _ID and name
-        p = mResolver.query(uri, projection, selection, null, orderBy);
-        if (p != null && p.getCount() >= 1) {
-            p.moveToFirst();
-            contactId = p.getString(p.getColumnIndex(Contacts._ID));
-            contactName = p.getString(p.getColumnIndex(Contacts.DISPLAY_NAME));
+        List<ContactNameCache.Contact> contacts =
+                ContactNameCache.getInstance(mContext).lookup(phone);
+        if (contacts != null && !contacts.isEmpty()) {
+            contactId = Long.toString(contacts.get(0).id);
+            contactName = contacts.get(0).name;
         }
-        p.close();
 
         // Bail out if we are unable to find a contact, based on the phone number
         if(contactId == null) {
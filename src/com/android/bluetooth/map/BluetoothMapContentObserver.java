@@ -26,6 +26,7 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -98,7 +99,7 @@ public class BluetoothMapContentObserver {
     private BluetoothMapMasInstance mMasInstance = null;
     private int mMasId;
     private boolean mEnableSmsMms = false;
-    private boolean mObserverRegistered = false;
+    private volatile boolean mObserverRegistered = false;
     private BluetoothMapEmailSettingsItem mAccount;
     private String mAuthority = null;
 
@@ -132,15 +133,40 @@ public class BluetoothMapContentObserver {
     static final String[] SMS_PROJECTION_SHORT = new String[] {
         Sms._ID,
         Sms.THREAD_ID,
-        Sms.TYPE
+        Sms.TYPE,
+        Sms.DATE
     };
 
     static final String[] MMS_PROJECTION_SHORT = new String[] {
         Mms._ID,
         Mms.THREAD_ID,
         Mms.MESSAGE_TYPE,
-        Mms.MESSAGE_BOX
+        Mms.MESSAGE_BOX,
+        Mms.DATE
+    };
+
+    /* Columns whose changes the SMS and MMS change trackers look for, and
+     * their weights in the row state. The weights keep a change of one
+     * column from being cancelled out by a change of another. */
+    private static final String[] SMS_STATE_COLUMNS = new String[] {
+        Sms.DATE,
+        Sms.THREAD_ID,
+        Sms.TYPE
+    };
+    private static final long[] SMS_STATE_WEIGHTS = new long[] { 1, 1000003, 1009 };
+
+    private static final String[] MMS_STATE_COLUMNS = new String[] {
+        Mms.DATE,
+        Mms.THREAD_ID,
+        Mms.MESSAGE_BOX,
+        Mms.MESSAGE_TYPE
     };
+    private static final long[] MMS_STATE_WEIGHTS = new long[] { 1, 1000003, 1009, 7 };
+
+    /* Find the changed SMS and MMS rows on a change notification. Used with
+     * the lock of mMsgListSms and mMsgListMms held. */
+    private BluetoothMapChangeTracker mSmsTracker = null;
+    private BluetoothMapChangeTracker mMmsTracker = null;
 
     static final String[] EMAIL_PROJECTION_SHORT = new String[] {
         BluetoothMapContract.MessageColumns._ID,
@@ -172,6 +198,33 @@ public class BluetoothMapContentObserver {
         mEnableSmsMms = enableSmsMms;
         mSmsType = getSmsType();
         mMnsClient = mnsClient;
+
+        if (mEnableSmsMms) {
+            mSmsTracker = new BluetoothMapChangeTracker("SMS", mResolver, Sms.CONTENT_URI,
+                    SMS_PROJECTION_SHORT, SMS_STATE_COLUMNS, SMS_STATE_WEIGHTS) {
+                @Override
+                void onRow(Cursor c, long id, boolean initial) {
+                    handleSmsRow(c, id, initial);
+                }
+
+                @Override
+                void onRowDeleted(long id) {
+                    handleSmsDeleted(id);
+                }
+            };
+            mMmsTracker = new BluetoothMapChangeTracker("MMS", mResolver, Mms.CONTENT_URI,
+                    MMS_PROJECTION_SHORT, MMS_STATE_COLUMNS, MMS_STATE_WEIGHTS) {
+                @Override
+                void onRow(Cursor c, long id, boolean initial) {
+                    handleMmsRow(c, id, initial);
+                }
+
+                @Override
+                void onRowDeleted(long id) {
+                    handleMmsDeleted(id);
+                }
+            };
+        }
     }
 
     /**
@@ -195,6 +248,10 @@ public class BluetoothMapContentObserver {
         return smsType;
     }
 
+    /* Bumped for every change notified while registered, and on registration
+     * since changes made while unregistered were not seen */
+    private volatile int mChangeGeneration = 0;
+
     private final ContentObserver mObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
         @Override
         public void onChange(boolean selfChange) {
@@ -206,6 +263,7 @@ public class BluetoothMapContentObserver {
             if (V) Log.d(TAG, "onChange on thread: " + Thread.currentThread().getId()
                 + " Uri: " + uri.toString() + " selfchange: " + selfChange);
 
+            mChangeGeneration++;
             handleMsgListChanges(uri);
         }
     };
@@ -303,57 +361,14 @@ public class BluetoothMapContentObserver {
         }
     }
 
-    private class Msg {
-        long id;
-        int type;               // Used as folder for SMS/MMS
-        int threadId;           // Used for SMS/MMS at delete
-        long folderId = -1;     // Email folder ID
-        long oldFolderId = -1;  // Used for email undelete
-        boolean localInitiatedSend = false; // Used for MMS to filter out events
-        boolean transparent = false; // Used for EMAIL to delete message sent with transparency
-
-        public Msg(long id, int type, int threadId) {
-            this.id = id;
-            this.type = type;
-            this.threadId = threadId;
-        }
-        public Msg(long id, long folderId) {
-            this.id = id;
-            this.folderId = folderId;
-        }
-
-        /* Eclipse generated hashCode() and equals() to make
-         * hashMap lookup work independent of whether the obj
-         * is used for email or SMS/MMS and whether or not the
-         * oldFolder is set. */
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + (int) (id ^ (id >>> 32));
-            return result;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            Msg other = (Msg) obj;
-            if (id != other.id)
-                return false;
-            return true;
-        }
-    }
-
-    private Map<Long, Msg> mMsgListSms = new HashMap<Long, Msg>();
+    /* Tracked messages: the type is the SMS type or MMS message box and the
+     * value the thread id, used to detect deletes. For email the value is the
+     * folder id and the old value the folder before an MCE initiated delete. */
+    private final BluetoothMapMsgTable mMsgListSms = new BluetoothMapMsgTable();
 
-    private Map<Long, Msg> mMsgListMms = new HashMap<Long, Msg>();
+    private final BluetoothMapMsgTable mMsgListMms = new BluetoothMapMsgTable();
 
-    private Map<Long, Msg> mMsgListEmail = new HashMap<Long, Msg>();
+    private final BluetoothMapMsgTable mMsgListEmail = new BluetoothMapMsgTable();
 
     public int setNotificationRegistration(int notificationStatus) throws RemoteException {
         // Forward the request to the MNS thread as a message - including the MAS instance ID.
@@ -387,6 +402,8 @@ public class BluetoothMapContentObserver {
         if (mObserverRegistered)
             return;
 
+        mChangeGeneration++;
+
         /* Use MmsSms Uri since the Sms Uri is not notified on deletes */
         if(mEnableSmsMms){
             //this is sms/mms
@@ -416,6 +433,15 @@ public class BluetoothMapContentObserver {
         initMsgList();
     }
 
+    /**
+     * @return a value that changes whenever the messages of this instance may
+     *         have changed, or -1 while the observer is not registered and
+     *         changes go unnoticed
+     */
+    int getChangeGeneration() {
+        return mObserverRegistered ? mChangeGeneration : -1;
+    }
+
     public void unregisterObserver() {
         if (V) Log.d(TAG, "unregisterObserver");
         mResolver.unregisterContentObserver(mObserver);
@@ -446,67 +472,31 @@ public class BluetoothMapContentObserver {
         if (V) Log.d(TAG, "initMsgList");
 
         if(mEnableSmsMms) {
-
-            HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
-
-            Cursor c = mResolver.query(Sms.CONTENT_URI,
-                SMS_PROJECTION_SHORT, null, null, null);
-
-            if (c != null && c.moveToFirst()) {
-                do {
-                    long id = c.getLong(c.getColumnIndex(Sms._ID));
-                    int type = c.getInt(c.getColumnIndex(Sms.TYPE));
-                    int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
-
-                    Msg msg = new Msg(id, type, threadId);
-                    msgListSms.put(id, msg);
-                } while (c.moveToNext());
-                c.close();
-            }
             synchronized(mMsgListSms) {
                 mMsgListSms.clear();
-                mMsgListSms = msgListSms;
-            }
-
-            HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
-
-            c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION_SHORT, null, null, null);
-
-            if (c != null && c.moveToFirst()) {
-                do {
-                    long id = c.getLong(c.getColumnIndex(Mms._ID));
-                    int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
-                    int threadId = c.getInt(c.getColumnIndex(Mms.THREAD_ID));
-
-                    Msg msg = new Msg(id, type, threadId);
-                    msgListMms.put(id, msg);
-                } while (c.moveToNext());
-                c.close();
+                mSmsTracker.load();
             }
             synchronized(mMsgListMms) {
                 mMsgListMms.clear();
-                mMsgListMms = msgListMms;
+                mMmsTracker.load();
             }
         }
 
         if(mAccount != null) {
-            HashMap<Long, Msg> msgListEmail = new HashMap<Long, Msg>();
             Uri uri = mMessageUri;
             Cursor c = mProviderClient.query(uri, EMAIL_PROJECTION_SHORT, null, null, null);
 
-            if (c != null && c.moveToFirst()) {
-                do {
-                    long id = c.getLong(c.getColumnIndex(MessageColumns._ID));
-                    long folderId = c.getInt(c.getColumnIndex(BluetoothMapContract.MessageColumns.FOLDER_ID));
-
-                    Msg msg = new Msg(id, folderId);
-                    msgListEmail.put(id, msg);
-                } while (c.moveToNext());
-                c.close();
-            }
             synchronized(mMsgListEmail) {
                 mMsgListEmail.clear();
-                mMsgListEmail = msgListEmail;
+                if (c != null && c.moveToFirst()) {
+                    int idIndex = c.getColumnIndex(MessageColumns._ID);
+                    int folderIndex = c.getColumnIndex(
+                            BluetoothMapContract.MessageColumns.FOLDER_ID);
+                    do {
+                        mMsgListEmail.put(c.getLong(idIndex), 0, c.getInt(folderIndex));
+                    } while (c.moveToNext());
+                    c.close();
+                }
             }
         }
     }
@@ -514,276 +504,365 @@ public class BluetoothMapContentObserver {
     private void handleMsgListChangesSms() {
         if (V) Log.d(TAG, "handleMsgListChangesSms");
 
-        HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
-
-        Cursor c = mResolver.query(Sms.CONTENT_URI,
-            SMS_PROJECTION_SHORT, null, null, null);
-
         synchronized(mMsgListSms) {
-            if (c != null && c.moveToFirst()) {
-                do {
-                    long id = c.getLong(c.getColumnIndex(Sms._ID));
-                    int type = c.getInt(c.getColumnIndex(Sms.TYPE));
-                    int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
+            mSmsTracker.update();
+        }
+    }
+
+    /**
+     * Compare an added or changed SMS row with the tracked message and send
+     * the events for the difference. Caller holds the mMsgListSms lock.
+     */
+    private void handleSmsRow(Cursor c, long id, boolean initial) {
+        int type = c.getInt(c.getColumnIndex(Sms.TYPE));
+        int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
 
-                    Msg msg = mMsgListSms.remove(id);
+        if (initial) {
+            mMsgListSms.put(id, type, threadId);
+            return;
+        }
 
-                    /* We must filter out any actions made by the MCE, hence do not send e.g. a message
-                     * deleted and/or MessageShift for messages deleted by the MCE. */
+        int slot = mMsgListSms.find(id);
 
-                    if (msg == null) {
-                        /* New message */
-                        msg = new Msg(id, type, threadId);
-                        msgListSms.put(id, msg);
+        /* We must filter out any actions made by the MCE, hence do not send e.g. a message
+         * deleted and/or MessageShift for messages deleted by the MCE. */
 
-                        /* Incoming message from the network */
-                        Event evt = new Event(EVENT_TYPE_NEW, id, folderSms[type],
-                            null, mSmsType);
-                        sendEvent(evt);
-                    } else {
-                        /* Existing message */
-                        if (type != msg.type) {
-                            Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                            String oldFolder = folderSms[msg.type];
-                            String newFolder = folderSms[type];
-                            // Filter out the intermediate outbox steps
-                            if(!oldFolder.equals(newFolder)) {
-                                Event evt = new Event(EVENT_TYPE_SHIFT, id, folderSms[type],
-                                    oldFolder, mSmsType);
-                                sendEvent(evt);
-                            }
-                            msg.type = type;
-                        } else if(threadId != msg.threadId) {
-                            Log.d(TAG, "Message delete change: type: " + type + " old type: " + msg.type
-                                    + "\n    threadId: " + threadId + " old threadId: " + msg.threadId);
-                            if(threadId == DELETED_THREAD_ID) { // Message deleted
-                                Event evt = new Event(EVENT_TYPE_DELETE, id, BluetoothMapContract.FOLDER_NAME_DELETED,
-                                    folderSms[msg.type], mSmsType);
-                                sendEvent(evt);
-                                msg.threadId = threadId;
-                            } else { // Undelete
-                                Event evt = new Event(EVENT_TYPE_SHIFT, id, folderSms[msg.type],
-                                    BluetoothMapContract.FOLDER_NAME_DELETED, mSmsType);
-                                sendEvent(evt);
-                                msg.threadId = threadId;
-                            }
-                        }
-                        msgListSms.put(id, msg);
-                    }
-                } while (c.moveToNext());
-                c.close();
-            }
+        if (slot < 0) {
+            /* New message */
+            mMsgListSms.put(id, type, threadId);
 
-            for (Msg msg : mMsgListSms.values()) {
-                Event evt = new Event(EVENT_TYPE_DELETE, msg.id,
-                                        BluetoothMapContract.FOLDER_NAME_DELETED,
-                                        folderSms[msg.type], mSmsType);
-                sendEvent(evt);
+            /* Incoming message from the network */
+            Event evt = new Event(EVENT_TYPE_NEW, id, folderSms[type],
+                null, mSmsType);
+            sendEvent(evt);
+        } else {
+            /* Existing message */
+            int oldType = mMsgListSms.getType(slot);
+            long oldThreadId = mMsgListSms.getValue(slot);
+            if (type != oldType) {
+                Log.d(TAG, "new type: " + type + " old type: " + oldType);
+                String oldFolder = folderSms[oldType];
+                String newFolder = folderSms[type];
+                // Filter out the intermediate outbox steps
+                if(!oldFolder.equals(newFolder)) {
+                    Event evt = new Event(EVENT_TYPE_SHIFT, id, folderSms[type],
+                        oldFolder, mSmsType);
+                    sendEvent(evt);
+                }
+                mMsgListSms.setType(slot, type);
+            } else if(threadId != oldThreadId) {
+                Log.d(TAG, "Message delete change: type: " + type + " old type: " + oldType
+                        + "\n    threadId: " + threadId + " old threadId: " + oldThreadId);
+                if(threadId == DELETED_THREAD_ID) { // Message deleted
+                    Event evt = new Event(EVENT_TYPE_DELETE, id, BluetoothMapContract.FOLDER_NAME_DELETED,
+                        folderSms[oldType], mSmsType);
+                    sendEvent(evt);
+                    mMsgListSms.setValue(slot, threadId);
+                } else { // Undelete
+                    Event evt = new Event(EVENT_TYPE_SHIFT, id, folderSms[oldType],
+                        BluetoothMapContract.FOLDER_NAME_DELETED, mSmsType);
+                    sendEvent(evt);
+                    mMsgListSms.setValue(slot, threadId);
+                }
             }
+        }
+    }
 
-            mMsgListSms = msgListSms;
+    /**
+     * Caller holds the mMsgListSms lock.
+     */
+    private void handleSmsDeleted(long id) {
+        int slot = mMsgListSms.find(id);
+        if (slot >= 0) {
+            int type = mMsgListSms.getType(slot);
+            mMsgListSms.remove(id);
+            Event evt = new Event(EVENT_TYPE_DELETE, id,
+                                    BluetoothMapContract.FOLDER_NAME_DELETED,
+                                    folderSms[type], mSmsType);
+            sendEvent(evt);
         }
     }
 
     private void handleMsgListChangesMms() {
         if (V) Log.d(TAG, "handleMsgListChangesMms");
 
-        HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+        synchronized(mMsgListMms) {
+            mMmsTracker.update();
+        }
+    }
 
-        Cursor c = mResolver.query(Mms.CONTENT_URI,
-            MMS_PROJECTION_SHORT, null, null, null);
+    /**
+     * Compare an added or changed MMS row with the tracked message and send
+     * the events for the difference. Caller holds the mMsgListMms lock.
+     */
+    private void handleMmsRow(Cursor c, long id, boolean initial) {
+        int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
+        int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
+        int threadId = c.getInt(c.getColumnIndex(Mms.THREAD_ID));
 
-        synchronized(mMsgListMms) {
-            if (c != null && c.moveToFirst()) {
-                do {
-                    long id = c.getLong(c.getColumnIndex(Mms._ID));
-                    int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
-                    int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
-                    int threadId = c.getInt(c.getColumnIndex(Mms.THREAD_ID));
+        if (initial) {
+            mMsgListMms.put(id, type, threadId);
+            return;
+        }
 
-                    Msg msg = mMsgListMms.remove(id);
+        int slot = mMsgListMms.find(id);
 
-                    /* We must filter out any actions made by the MCE, hence do not send e.g. a message
-                     * deleted and/or MessageShift for messages deleted by the MCE. */
+        /* We must filter out any actions made by the MCE, hence do not send e.g. a message
+         * deleted and/or MessageShift for messages deleted by the MCE. */
 
-                    if (msg == null) {
-                        /* New message - only notify on retrieve conf */
-                        if (folderMms[type].equals(BluetoothMapContract.FOLDER_NAME_INBOX) &&
-                            mtype != MESSAGE_TYPE_RETRIEVE_CONF) {
-                                continue;
-                        }
+        if (slot < 0) {
+            /* New message - only notify on retrieve conf */
+            if (folderMms[type].equals(BluetoothMapContract.FOLDER_NAME_INBOX) &&
+                mtype != MESSAGE_TYPE_RETRIEVE_CONF) {
+                    return;
+            }
 
-                        msg = new Msg(id, type, threadId);
-                        msgListMms.put(id, msg);
+            mMsgListMms.put(id, type, threadId);
 
-                        /* Incoming message from the network */
-                        Event evt = new Event(EVENT_TYPE_NEW, id, folderMms[type],
-                                null, TYPE.MMS);
-                        sendEvent(evt);
-                    } else {
-                        /* Existing message */
-                        if (type != msg.type) {
-                            Log.d(TAG, "new type: " + type + " old type: " + msg.type);
-                            Event evt;
-                            if(msg.localInitiatedSend == false) {
-                                // Only send events about local initiated changes
-                                evt = new Event(EVENT_TYPE_SHIFT, id, folderMms[type],
-                                        folderMms[msg.type], TYPE.MMS);
-                                sendEvent(evt);
-                            }
-                            msg.type = type;
-
-                            if (folderMms[type].equals(BluetoothMapContract.FOLDER_NAME_SENT)
-                                    && msg.localInitiatedSend == true) {
-                                msg.localInitiatedSend = false; // Stop tracking changes for this message
-                                evt = new Event(EVENT_TYPE_SENDING_SUCCESS, id,
-                                    folderSms[type], null, TYPE.MMS);
-                                sendEvent(evt);
-                            }
-                        } else if(threadId != msg.threadId) {
-                            Log.d(TAG, "Message delete change: type: " + type + " old type: " + msg.type
-                                    + "\n    threadId: " + threadId + " old threadId: " + msg.threadId);
-                            if(threadId == DELETED_THREAD_ID) { // Message deleted
-                                Event evt = new Event(EVENT_TYPE_DELETE, id, BluetoothMapContract.FOLDER_NAME_DELETED,
-                                    folderMms[msg.type], TYPE.MMS);
-                                sendEvent(evt);
-                                msg.threadId = threadId;
-                            } else { // Undelete
-                                Event evt = new Event(EVENT_TYPE_SHIFT, id, folderMms[msg.type],
-                                    BluetoothMapContract.FOLDER_NAME_DELETED, TYPE.MMS);
-                                sendEvent(evt);
-                                msg.threadId = threadId;
-                            }
-                        }
-                        msgListMms.put(id, msg);
-                    }
-                } while (c.moveToNext());
-                c.close();
+            /* Incoming message from the network */
+            Event evt = new Event(EVENT_TYPE_NEW, id, folderMms[type],
+                    null, TYPE.MMS);
+            sendEvent(evt);
+        } else {
+            /* Existing message */
+            int oldType = mMsgListMms.getType(slot);
+            long oldThreadId = mMsgListMms.getValue(slot);
+            boolean localInitiatedSend = mMsgListMms.hasFlag(slot,
+                    BluetoothMapMsgTable.FLAG_LOCAL_INITIATED_SEND);
+            if (type != oldType) {
+                Log.d(TAG, "new type: " + type + " old type: " + oldType);
+                Event evt;
+                if(localInitiatedSend == false) {
+                    // Only send events about local initiated changes
+                    evt = new Event(EVENT_TYPE_SHIFT, id, folderMms[type],
+                            folderMms[oldType], TYPE.MMS);
+                    sendEvent(evt);
+                }
+                mMsgListMms.setType(slot, type);
+
+                if (folderMms[type].equals(BluetoothMapContract.FOLDER_NAME_SENT)
+                        && localInitiatedSend == true) {
+                    // Stop tracking changes for this message
+                    mMsgListMms.setFlag(slot, BluetoothMapMsgTable.FLAG_LOCAL_INITIATED_SEND,
+                            false);
+                    evt = new Event(EVENT_TYPE_SENDING_SUCCESS, id,
+                        folderSms[type], null, TYPE.MMS);
+                    sendEvent(evt);
+                }
+            } else if(threadId != oldThreadId) {
+                Log.d(TAG, "Message delete change: type: " + type + " old type: " + oldType
+                        + "\n    threadId: " + threadId + " old threadId: " + oldThreadId);
+                if(threadId == DELETED_THREAD_ID) { // Message deleted
+                    Event evt = new Event(EVENT_TYPE_DELETE, id, BluetoothMapContract.FOLDER_NAME_DELETED,
+                        folderMms[oldType], TYPE.MMS);
+                    sendEvent(evt);
+                    mMsgListMms.setValue(slot, threadId);
+                } else { // Undelete
+                    Event evt = new Event(EVENT_TYPE_SHIFT, id, folderMms[oldType],
+                        BluetoothMapContract.FOLDER_NAME_DELETED, TYPE.MMS);
+                    sendEvent(evt);
+                    mMsgListMms.setValue(slot, threadId);
+                }
             }
+        }
+    }
 
-            for (Msg msg : mMsgListMms.values()) {
-                Event evt = new Event(EVENT_TYPE_DELETE, msg.id,
-                                        BluetoothMapContract.FOLDER_NAME_DELETED,
-                                        folderMms[msg.type], TYPE.MMS);
-                sendEvent(evt);
+    /**
+     * Caller holds the mMsgListMms lock.
+     */
+    private void handleMmsDeleted(long id) {
+        int slot = mMsgListMms.find(id);
+        if (slot >= 0) {
+            int type = mMsgListMms.getType(slot);
+            mMsgListMms.remove(id);
+            Event evt = new Event(EVENT_TYPE_DELETE, id,
+                                    BluetoothMapContract.FOLDER_NAME_DELETED,
+                                    folderMms[type], TYPE.MMS);
+            sendEvent(evt);
+        }
+    }
+
+    /**
+     * @return the id of the message a change notification from the email
+     *         provider is about, or -1 if it may cover several messages
+     */
+    private static long getEmailMessageId(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        int n = segments.size();
+        if (n >= 2 && BluetoothMapContract.TABLE_MESSAGE.equals(segments.get(n - 2))) {
+            try {
+                return Long.parseLong(segments.get(n - 1));
+            } catch (NumberFormatException e) {
+                // not a message id
             }
-            mMsgListMms = msgListMms;
         }
+        return -1;
     }
 
     private void handleMsgListChangesEmail(Uri uri)  throws RemoteException{
         if (V) Log.v(TAG, "handleMsgListChangesEmail uri: " + uri.toString());
 
-        // TODO: Change observer to handle accountId and message ID if present
-
-        HashMap<Long, Msg> msgListEmail = new HashMap<Long, Msg>();
+        long msgId = getEmailMessageId(uri);
+        if (msgId != -1) {
+            // Only this message changed, no need to read the others
+            Cursor c = mProviderClient.query(mMessageUri, EMAIL_PROJECTION_SHORT,
+                    BluetoothMapContract.MessageColumns._ID + "=" + msgId, null, null);
+            if (c == null) {
+                return;
+            }
+            synchronized(mMsgListEmail) {
+                if (c.moveToFirst()) {
+                    handleEmailRow(c);
+                } else {
+                    int slot = mMsgListEmail.find(msgId);
+                    if (slot >= 0) {
+                        handleEmailDeleted(slot);
+                        mMsgListEmail.remove(msgId);
+                    }
+                }
+            }
+            c.close();
+            return;
+        }
 
         Cursor c = mProviderClient.query(mMessageUri, EMAIL_PROJECTION_SHORT, null, null, null);
 
         synchronized(mMsgListEmail) {
+            BluetoothMapMsgTable seen = new BluetoothMapMsgTable();
             if (c != null && c.moveToFirst()) {
                 do {
-                    long id = c.getLong(c.getColumnIndex(BluetoothMapContract.MessageColumns._ID));
-                    int folderId = c.getInt(c.getColumnIndex(
-                            BluetoothMapContract.MessageColumns.FOLDER_ID));
-                    Msg msg = mMsgListEmail.remove(id);
-                    BluetoothMapFolderElement folderElement = mFolders.getEmailFolderById(folderId);
-                    String newFolder;
-                    if(folderElement != null) {
-                        newFolder = folderElement.getFullPath();
-                    } else {
-                        newFolder = "unknown"; // This can happen if a new folder is created while connected
-                    }
-
-                    /* We must filter out any actions made by the MCE, hence do not send e.g. a message
-                     * deleted and/or MessageShift for messages deleted by the MCE. */
-
-                    if (msg == null) {
-                        /* New message */
-                        msg = new Msg(id, folderId);
-                        msgListEmail.put(id, msg);
-                        Event evt = new Event(EVENT_TYPE_NEW, id, newFolder,
-                            null, TYPE.EMAIL);
-                        sendEvent(evt);
-                    } else {
-                        /* Existing message */
-                        if (folderId != msg.folderId) {
-                            if (D) Log.d(TAG, "new folderId: " + folderId + " old folderId: " + msg.folderId);
-                            BluetoothMapFolderElement oldFolderElement = mFolders.getEmailFolderById(msg.folderId);
-                            String oldFolder;
-                            if(oldFolderElement != null) {
-                                oldFolder = oldFolderElement.getFullPath();
-                            } else {
-                                // This can happen if a new folder is created while connected
-                                oldFolder = "unknown";
-                            }
-                            BluetoothMapFolderElement deletedFolder =
-                                    mFolders.getEmailFolderByName(BluetoothMapContract.FOLDER_NAME_DELETED);
-                            BluetoothMapFolderElement sentFolder =
-                                    mFolders.getEmailFolderByName(BluetoothMapContract.FOLDER_NAME_SENT);
-                            /*
-                             *  If the folder is now 'deleted', send a deleted-event in stead of a shift
-                             *  or if message is sent initiated by MAP Client, then send sending-success
-                             *  otherwise send folderShift
-                             */
-                            if(deletedFolder != null && deletedFolder.getEmailFolderId() == folderId) {
-                                Event evt = new Event(EVENT_TYPE_DELETE, msg.id, newFolder,
-                                        oldFolder, TYPE.EMAIL);
-                                sendEvent(evt);
-                            } else if(sentFolder != null
-                                      && sentFolder.getEmailFolderId() == folderId
-                                      && msg.localInitiatedSend == true) {
-                                if(msg.transparent) {
-                                    mResolver.delete(ContentUris.withAppendedId(mMessageUri, id), null, null);
-                                } else {
-                                    msg.localInitiatedSend = false;
-                                    Event evt = new Event(EVENT_TYPE_SENDING_SUCCESS, msg.id,
-                                                          oldFolder, null, TYPE.EMAIL);
-                                    sendEvent(evt);
-                                }
-                            } else {
-                                Event evt = new Event(EVENT_TYPE_SHIFT, id, newFolder,
-                                                      oldFolder, TYPE.EMAIL);
-                                sendEvent(evt);
-                            }
-                            msg.folderId = folderId;
-                        }
-                        msgListEmail.put(id, msg);
-                    }
+                    seen.put(handleEmailRow(c), 0, 0);
                 } while (c.moveToNext());
                 c.close();
             }
 
             // For all messages no longer in the database send a delete notification
-            for (Msg msg : mMsgListEmail.values()) {
-                BluetoothMapFolderElement oldFolderElement = mFolders.getEmailFolderById(msg.folderId);
+            long[] deleted = new long[mMsgListEmail.size() - seen.size()];
+            int n = 0;
+            for (int slot = mMsgListEmail.nextSlot(0); slot >= 0;
+                    slot = mMsgListEmail.nextSlot(slot + 1)) {
+                long id = mMsgListEmail.getId(slot);
+                if (seen.find(id) < 0 && n < deleted.length) {
+                    deleted[n++] = id;
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                handleEmailDeleted(mMsgListEmail.find(deleted[i]));
+                mMsgListEmail.remove(deleted[i]);
+            }
+        }
+    }
+
+    /**
+     * Compare the email row at c with the tracked message and send the events
+     * for the difference. Caller holds the mMsgListEmail lock.
+     * @return the id of the message
+     */
+    private long handleEmailRow(Cursor c) {
+        long id = c.getLong(c.getColumnIndex(BluetoothMapContract.MessageColumns._ID));
+        int folderId = c.getInt(c.getColumnIndex(
+                BluetoothMapContract.MessageColumns.FOLDER_ID));
+        int slot = mMsgListEmail.find(id);
+        BluetoothMapFolderElement folderElement = mFolders.getEmailFolderById(folderId);
+        String newFolder;
+        if(folderElement != null) {
+            newFolder = folderElement.getFullPath();
+        } else {
+            newFolder = "unknown"; // This can happen if a new folder is created while connected
+        }
+
+        /* We must filter out any actions made by the MCE, hence do not send e.g. a message
+         * deleted and/or MessageShift for messages deleted by the MCE. */
+
+        if (slot < 0) {
+            /* New message */
+            mMsgListEmail.put(id, 0, folderId);
+            Event evt = new Event(EVENT_TYPE_NEW, id, newFolder,
+                null, TYPE.EMAIL);
+            sendEvent(evt);
+        } else {
+            /* Existing message */
+            long oldFolderId = mMsgListEmail.getValue(slot);
+            if (folderId != oldFolderId) {
+                if (D) Log.d(TAG, "new folderId: " + folderId + " old folderId: " + oldFolderId);
+                BluetoothMapFolderElement oldFolderElement = mFolders.getEmailFolderById(oldFolderId);
                 String oldFolder;
                 if(oldFolderElement != null) {
                     oldFolder = oldFolderElement.getFullPath();
                 } else {
+                    // This can happen if a new folder is created while connected
                     oldFolder = "unknown";
                 }
-                /* Some e-mail clients delete the message after sending, and creates a new message in sent.
-                 * We cannot track the message anymore, hence send both a send success and delete message.
+                BluetoothMapFolderElement deletedFolder =
+                        mFolders.getEmailFolderByName(BluetoothMapContract.FOLDER_NAME_DELETED);
+                BluetoothMapFolderElement sentFolder =
+                        mFolders.getEmailFolderByName(BluetoothMapContract.FOLDER_NAME_SENT);
+                /*
+                 *  If the folder is now 'deleted', send a deleted-event in stead of a shift
+                 *  or if message is sent initiated by MAP Client, then send sending-success
+                 *  otherwise send folderShift
                  */
-                if(msg.localInitiatedSend == true) {
-                    msg.localInitiatedSend = false;
-                    // If message is send with transparency don't set folder as message is deleted
-                    if (msg.transparent)
-                        oldFolder = null;
-                    Event evt = new Event(EVENT_TYPE_SENDING_SUCCESS, msg.id, oldFolder, null, TYPE.EMAIL);
+                if(deletedFolder != null && deletedFolder.getEmailFolderId() == folderId) {
+                    Event evt = new Event(EVENT_TYPE_DELETE, id, newFolder,
+                            oldFolder, TYPE.EMAIL);
                     sendEvent(evt);
-                }
-                /* As this message deleted is only send on a real delete - don't set folder.
-                 *  - only send delete event if message is not sent with transparency
-                 */
-                if (!msg.transparent) {
-
-                    Event evt = new Event(EVENT_TYPE_DELETE, msg.id, null, oldFolder, TYPE.EMAIL);
+                } else if(sentFolder != null
+                          && sentFolder.getEmailFolderId() == folderId
+                          && mMsgListEmail.hasFlag(slot,
+                                  BluetoothMapMsgTable.FLAG_LOCAL_INITIATED_SEND)) {
+                    if(mMsgListEmail.hasFlag(slot, BluetoothMapMsgTable.FLAG_TRANSPARENT)) {
+                        mResolver.delete(ContentUris.withAppendedId(mMessageUri, id), null, null);
+                    } else {
+                        mMsgListEmail.setFlag(slot,
+                                BluetoothMapMsgTable.FLAG_LOCAL_INITIATED_SEND, false);
+                        Event evt = new Event(EVENT_TYPE_SENDING_SUCCESS, id,
+                                              oldFolder, null, TYPE.EMAIL);
+                        sendEvent(evt);
+                    }
+                } else {
+                    Event evt = new Event(EVENT_TYPE_SHIFT, id, newFolder,
+                                          oldFolder, TYPE.EMAIL);
                     sendEvent(evt);
                 }
+                mMsgListEmail.setValue(slot, folderId);
             }
-            mMsgListEmail = msgListEmail;
+        }
+        return id;
+    }
+
+    /**
+     * Send the events for the tracked email message at slot, which is no
+     * longer in the database. The caller removes it afterwards and holds the
+     * mMsgListEmail lock.
+     */
+    private void handleEmailDeleted(int slot) {
+        long id = mMsgListEmail.getId(slot);
+        boolean transparent = mMsgListEmail.hasFlag(slot, BluetoothMapMsgTable.FLAG_TRANSPARENT);
+        BluetoothMapFolderElement oldFolderElement =
+                mFolders.getEmailFolderById(mMsgListEmail.getValue(slot));
+        String oldFolder;
+        if(oldFolderElement != null) {
+            oldFolder = oldFolderElement.getFullPath();
+        } else {
+            oldFolder = "unknown";
+        }
+        /* Some e-mail clients delete the message after sending, and creates a new message in sent.
+         * We cannot track the message anymore, hence send both a send success and delete message.
+         */
+        if(mMsgListEmail.hasFlag(slot, BluetoothMapMsgTable.FLAG_LOCAL_INITIATED_SEND)) {
+            // If message is send with transparency don't set folder as message is deleted
+            if (transparent)
+                oldFolder = null;
+            Event evt = new Event(EVENT_TYPE_SENDING_SUCCESS, id, oldFolder, null, TYPE.EMAIL);
+            sendEvent(evt);
+        }
+        /* As this message deleted is only send on a real delete - don't set folder.
+         *  - only send delete event if message is not sent with transparency
+         */
+        if (!transparent) {
+
+            Event evt = new Event(EVENT_TYPE_DELETE, id, null, oldFolder, TYPE.EMAIL);
+            sendEvent(evt);
         }
     }
 
@@ -813,7 +892,7 @@ public class BluetoothMapContentObserver {
                 getEmailFolderByName(BluetoothMapContract.FOLDER_NAME_DELETED);
         contentValues.put(BluetoothMapContract.MessageColumns._ID, handle);
         synchronized(mMsgListEmail) {
-            Msg msg = mMsgListEmail.get(handle);
+            int slot = mMsgListEmail.find(handle);
             if (status == BluetoothMapAppParams.STATUS_VALUE_YES) {
                 /* Set deleted folder id */
                 long folderId = -1;
@@ -826,10 +905,10 @@ public class BluetoothMapContentObserver {
                  * is handled by the synchronized statement. */
                 if(updateCount > 0) {
                     res = true;
-                    if (msg != null) {
-                        msg.oldFolderId = msg.folderId;
+                    if (slot >= 0) {
+                        mMsgListEmail.setOldValue(slot, mMsgListEmail.getValue(slot));
                         // Update the folder ID to avoid triggering an event for MCE initiated actions.
-                        msg.folderId = folderId;
+                        mMsgListEmail.setValue(slot, folderId);
                     }
                     if(D) Log.d(TAG, "Deleted MSG: " + handle + " from folderId: " + folderId);
                 } else {
@@ -839,12 +918,12 @@ public class BluetoothMapContentObserver {
             } else if (status == BluetoothMapAppParams.STATUS_VALUE_NO) {
                 /* Undelete message. move to old folder if we know it,
                  * else move to inbox - as dictated by the spec. */
-                if(msg != null && deleteFolder != null &&
-                        msg.folderId == deleteFolder.getEmailFolderId()) {
+                if(slot >= 0 && deleteFolder != null &&
+                        mMsgListEmail.getValue(slot) == deleteFolder.getEmailFolderId()) {
                     /* Only modify messages in the 'Deleted' folder */
                     long folderId = -1;
-                    if (msg != null && msg.oldFolderId != -1) {
-                        folderId = msg.oldFolderId;
+                    if (mMsgListEmail.getOldValue(slot) != -1) {
+                        folderId = mMsgListEmail.getOldValue(slot);
                     } else {
                         BluetoothMapFolderElement inboxFolder = mCurrentFolder.
                                 getEmailFolderByName(BluetoothMapContract.FOLDER_NAME_INBOX);
@@ -858,7 +937,7 @@ public class BluetoothMapContentObserver {
                     if(updateCount > 0) {
                         res = true;
                         // Update the folder ID to avoid triggering an event for MCE initiated actions.
-                        msg.folderId = folderId;
+                        mMsgListEmail.setValue(slot, folderId);
                     } else {
                         if(D)Log.d(TAG,"We did not delete the message, hence the old folder is unknown. Moving to inbox.");
                     }
@@ -867,8 +946,9 @@ public class BluetoothMapContentObserver {
             if(V) {
                 BluetoothMapFolderElement folderElement;
                 String folderName = "unknown";
-                if (msg != null) {
-                    folderElement = mCurrentFolder.getEmailFolderById(msg.folderId);
+                if (slot >= 0) {
+                    folderElement = mCurrentFolder.getEmailFolderById(
+                            mMsgListEmail.getValue(slot));
                     if(folderElement != null) {
                         folderName = folderElement.getName();
                     }
@@ -899,9 +979,9 @@ public class BluetoothMapContentObserver {
             if (threadId != DELETED_THREAD_ID) {
                 /* Set deleted thread id */
                 synchronized(mMsgListMms) {
-                    Msg msg = mMsgListMms.get(handle);
-                    if(msg != null) { // This will always be the case
-                        msg.threadId = DELETED_THREAD_ID;
+                    int slot = mMsgListMms.find(handle);
+                    if(slot >= 0) { // This will always be the case
+                        mMsgListMms.setValue(slot, DELETED_THREAD_ID);
                     }
                 }
                 updateThreadId(uri, Mms.THREAD_ID, DELETED_THREAD_ID);
@@ -945,9 +1025,9 @@ public class BluetoothMapContentObserver {
                 recipients.addAll(Arrays.asList(address));
                 Long oldThreadId = Telephony.Threads.getOrCreateThreadId(mContext, recipients);
                 synchronized(mMsgListMms) {
-                    Msg msg = mMsgListMms.get(handle);
-                    if(msg != null) { // This will always be the case
-                        msg.threadId = oldThreadId.intValue();
+                    int slot = mMsgListMms.find(handle);
+                    if(slot >= 0) { // This will always be the case
+                        mMsgListMms.setValue(slot, oldThreadId.intValue());
                     }
                 }
                 updateThreadId(uri, Mms.THREAD_ID, oldThreadId);
@@ -973,9 +1053,9 @@ public class BluetoothMapContentObserver {
             int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
             if (threadId != DELETED_THREAD_ID) {
                 synchronized(mMsgListSms) {
-                    Msg msg = mMsgListSms.get(handle);
-                    if(msg != null) { // This will always be the case
-                        msg.threadId = DELETED_THREAD_ID;
+                    int slot = mMsgListSms.find(handle);
+                    if(slot >= 0) { // This will always be the case
+                        mMsgListSms.setValue(slot, DELETED_THREAD_ID);
                     }
                 }
                 /* Set deleted thread id */
@@ -1009,9 +1089,9 @@ public class BluetoothMapContentObserver {
                 recipients.addAll(Arrays.asList(address));
                 Long oldThreadId = Telephony.Threads.getOrCreateThreadId(mContext, recipients);
                 synchronized(mMsgListSms) {
-                    Msg msg = mMsgListSms.get(handle);
-                    if(msg != null) { // This will always be the case
-                        msg.threadId = oldThreadId.intValue(); // The threadId is specified as an int, so it is safe to truncate
+                    int slot = mMsgListSms.find(handle);
+                    if(slot >= 0) { // This will always be the case
+                        mMsgListSms.setValue(slot, oldThreadId.intValue()); // The threadId is specified as an int, so it is safe to truncate
                     }
                 }
                 updateThreadId(uri, Sms.THREAD_ID, oldThreadId);
@@ -1205,13 +1285,14 @@ public class BluetoothMapContentObserver {
 
                 /* Extract the data for the inserted message, and store in local mirror, to
                  * avoid sending a NewMessage Event. */
-                Msg newMsg = new Msg(handle, folderId);
-                newMsg.transparent = (transparent == 1) ? true : false;
+                int slot = mMsgListEmail.put(handle, 0, folderId);
+                mMsgListEmail.setFlag(slot, BluetoothMapMsgTable.FLAG_TRANSPARENT,
+                        transparent == 1);
                 if ( folderId == folderElement.getEmailFolderByName(
                         BluetoothMapContract.FOLDER_NAME_OUTBOX).getEmailFolderId() ) {
-                    newMsg.localInitiatedSend = true;
+                    mMsgListEmail.setFlag(slot, BluetoothMapMsgTable.FLAG_LOCAL_INITIATED_SEND,
+                            true);
                 }
-                mMsgListEmail.put(handle, newMsg);
             }
         } else { // type SMS_* of MMS
             for (BluetoothMapbMessage.vCard recipient : recipientList) {
@@ -1274,8 +1355,7 @@ public class BluetoothMapContentObserver {
                                 long id = c.getLong(c.getColumnIndex(Sms._ID));
                                 int type = c.getInt(c.getColumnIndex(Sms.TYPE));
                                 int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
-                                Msg newMsg = new Msg(id, type, threadId);
-                                mMsgListSms.put(id, newMsg);
+                                mMsgListSms.put(id, type, threadId);
                                 c.close();
                             } else {
                                 return -1; // This can only happen, if the message is deleted just as it is added
@@ -1421,9 +1501,8 @@ public class BluetoothMapContentObserver {
                 /* We must filter out any actions made by the MCE. Add the new message to
                  * the list of known messages. */
 
-                Msg newMsg = new Msg(id, type, threadId);
-                newMsg.localInitiatedSend = true;
-                mMsgListMms.put(id, newMsg);
+                int slot = mMsgListMms.put(id, type, threadId);
+                mMsgListMms.setFlag(slot, BluetoothMapMsgTable.FLAG_LOCAL_INITIATED_SEND, true);
                 c.close();
             }
         } // Done adding changes, unlock access to mMsgListMms to allow sending MMS events again
@@ -15,6 +15,7 @@
 package com.android.bluetooth.map;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
@@ -34,6 +35,19 @@ public class BluetoothMapMessageListing {
 
     private List<BluetoothMapMessageListingElement> list;
 
+    /**
+     * Fills in the fields of an element that are only needed for encoding,
+     * so they can be read as the element is encoded rather than up front.
+     */
+    public interface DetailLoader {
+        void load(BluetoothMapMessageListingElement element);
+
+        /** Release whatever the loader holds, such as open cursors. */
+        void close();
+    }
+
+    private DetailLoader mDetailLoader;
+
     public BluetoothMapMessageListing(){
      list = new ArrayList<BluetoothMapMessageListingElement>();
     }
@@ -76,6 +90,25 @@ public class BluetoothMapMessageListing {
         return list;
     }
 
+    /**
+     * Defer loading the encoding-only fields of the elements to
+     * {@code loader}, which is called for each element as it is encoded and
+     * closed by {@link #close}.
+     */
+    public void setDetailLoader(DetailLoader loader) {
+        mDetailLoader = loader;
+    }
+
+    /**
+     * Release the detail loader, if any. Call once the list has been encoded.
+     */
+    public void close() {
+        if (mDetailLoader != null) {
+            mDetailLoader.close();
+            mDetailLoader = null;
+        }
+    }
+
     /**
      * Encode the list of BluetoothMapMessageListingElement(s) into a UTF-8
      * formatted XML-string in a trimmed byte array
@@ -89,16 +122,7 @@ public class BluetoothMapMessageListing {
         XmlSerializer xmlMsgElement = new FastXmlSerializer();
         try {
             xmlMsgElement.setOutput(sw);
-            xmlMsgElement.startDocument("UTF-8", true);
-            xmlMsgElement.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-            xmlMsgElement.startTag(null, "MAP-msg-listing");
-            xmlMsgElement.attribute(null, "version", "1.0");
-            // Do the XML encoding of list
-            for (BluetoothMapMessageListingElement element : list) {
-                element.encode(xmlMsgElement, includeThreadId); // Append the list element
-            }
-            xmlMsgElement.endTag(null, "MAP-msg-listing");
-            xmlMsgElement.endDocument();
+            encode(xmlMsgElement, includeThreadId);
         } catch (IllegalArgumentException e) {
             Log.w(TAG, e);
         } catch (IllegalStateException e) {
@@ -109,6 +133,43 @@ public class BluetoothMapMessageListing {
         return sw.toString().getBytes("UTF-8");
     }
 
+    /**
+     * Encode the list as UTF-8 XML straight into {@code out}, element by
+     * element, so the start of the listing can be sent while the rest is
+     * still being loaded and encoded. The stream is not closed.
+     *
+     * @throws IOException if writing to {@code out} failed, for instance
+     *             because the peer aborted the operation
+     */
+    public void encode(OutputStream out, boolean includeThreadId) throws IOException {
+        XmlSerializer xmlMsgElement = new FastXmlSerializer();
+        try {
+            xmlMsgElement.setOutput(out, "UTF-8");
+            encode(xmlMsgElement, includeThreadId);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, e);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, e);
+        }
+    }
+
+    private void encode(XmlSerializer xmlMsgElement, boolean includeThreadId)
+            throws IOException {
+        xmlMsgElement.startDocument("UTF-8", true);
+        xmlMsgElement.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        xmlMsgElement.startTag(null, "MAP-msg-listing");
+        xmlMsgElement.attribute(null, "version", "1.0");
+        // Do the XML encoding of list
+        for (BluetoothMapMessageListingElement element : list) {
+            if (mDetailLoader != null) {
+                mDetailLoader.load(element);
+            }
+            element.encode(xmlMsgElement, includeThreadId); // Append the list element
+        }
+        xmlMsgElement.endTag(null, "MAP-msg-listing");
+        xmlMsgElement.endDocument();
+    }
+
     public void sort() {
         Collections.sort(list);
     }
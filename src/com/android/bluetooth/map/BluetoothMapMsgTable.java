@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import java.util.Arrays;
+
+/**
+ * Per-message state kept by the MAP content observer, keyed by message id.
+ *
+ * An open-addressed hash table with linear probing over parallel primitive
+ * arrays, so a message costs a few array elements instead of a HashMap entry,
+ * a boxed key and an object. Each message has
+ *  - a type: the SMS type or the MMS message box,
+ *  - a value: the thread id of an SMS or MMS, the folder id of an email, or
+ *    the row state recorded by BluetoothMapChangeTracker,
+ *  - an old value: the folder of an email before the MCE deleted it, -1 if
+ *    unknown; only allocated once used,
+ *  - flags.
+ *
+ * Lookups return a slot, which stays valid until the next put(), remove()
+ * or clear(). Not thread safe.
+ */
+public final class BluetoothMapMsgTable {
+    /** Sent by the MCE; changes to it are not reported as events. */
+    public static final int FLAG_LOCAL_INITIATED_SEND = 1;
+
+    /** Pushed with transparency; deleted once sent. */
+    public static final int FLAG_TRANSPARENT = 2;
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mIds;
+    private int[] mTypes;
+    private long[] mValues;
+    private long[] mOldValues;
+    private byte[] mFlags;
+    private int mSize;
+
+    public BluetoothMapMsgTable() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        mIds = new long[capacity];
+        Arrays.fill(mIds, EMPTY);
+        mTypes = new int[capacity];
+        mValues = new long[capacity];
+        mFlags = new byte[capacity];
+        if (mOldValues != null) {
+            mOldValues = new long[capacity];
+            Arrays.fill(mOldValues, -1);
+        }
+    }
+
+    private int home(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (mIds.length - 1);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the slot of message id, or -1 if it is not in the table
+     */
+    public int find(long id) {
+        int mask = mIds.length - 1;
+        for (int i = home(id); mIds[i] != EMPTY; i = (i + 1) & mask) {
+            if (mIds[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add message id, or replace it if present. Its old value is reset to -1
+     * and its flags are cleared.
+     * @return the slot of the message
+     */
+    public int put(long id, int type, long value) {
+        if (id == EMPTY) {
+            throw new IllegalArgumentException("Invalid message id " + id);
+        }
+        // keep the load factor at most 3/4
+        if ((mSize + 1) * 4 > mIds.length * 3) {
+            grow();
+        }
+        int mask = mIds.length - 1;
+        int i = home(id);
+        while (mIds[i] != EMPTY && mIds[i] != id) {
+            i = (i + 1) & mask;
+        }
+        if (mIds[i] == EMPTY) {
+            mIds[i] = id;
+            mSize++;
+        }
+        mTypes[i] = type;
+        mValues[i] = value;
+        mFlags[i] = 0;
+        if (mOldValues != null) {
+            mOldValues[i] = -1;
+        }
+        return i;
+    }
+
+    /**
+     * @return true if message id was in the table
+     */
+    public boolean remove(long id) {
+        int i = find(id);
+        if (i < 0) {
+            return false;
+        }
+        // Shift the following entries of the probe sequence back, so no
+        // lookup meets a hole before reaching its entry.
+        int mask = mIds.length - 1;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (mIds[j] == EMPTY) {
+                break;
+            }
+            int k = home(mIds[j]);
+            // entry j may move to i unless its home lies cyclically in (i, j]
+            boolean stays = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+            if (!stays) {
+                move(j, i);
+                i = j;
+            }
+        }
+        mIds[i] = EMPTY;
+        mSize--;
+        return true;
+    }
+
+    private void move(int from, int to) {
+        mIds[to] = mIds[from];
+        mTypes[to] = mTypes[from];
+        mValues[to] = mValues[from];
+        mFlags[to] = mFlags[from];
+        if (mOldValues != null) {
+            mOldValues[to] = mOldValues[from];
+        }
+    }
+
+    private void grow() {
+        long[] ids = mIds;
+        int[] types = mTypes;
+        long[] values = mValues;
+        long[] oldValues = mOldValues;
+        byte[] flags = mFlags;
+        allocate(ids.length * 2);
+        int mask = mIds.length - 1;
+        for (int j = 0; j < ids.length; j++) {
+            if (ids[j] == EMPTY) {
+                continue;
+            }
+            int i = home(ids[j]);
+            while (mIds[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            mIds[i] = ids[j];
+            mTypes[i] = types[j];
+            mValues[i] = values[j];
+            mFlags[i] = flags[j];
+            if (oldValues != null) {
+                mOldValues[i] = oldValues[j];
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(mIds, EMPTY);
+        mSize = 0;
+    }
+
+    /**
+     * Walk the table with
+     * {@code for (int s = t.nextSlot(0); s >= 0; s = t.nextSlot(s + 1))}.
+     * @return the first used slot at or after slot, or -1 if there is none
+     */
+    public int nextSlot(int slot) {
+        for (int i = slot; i < mIds.length; i++) {
+            if (mIds[i] != EMPTY) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public long getId(int slot) {
+        return mIds[slot];
+    }
+
+    public int getType(int slot) {
+        return mTypes[slot];
+    }
+
+    public void setType(int slot, int type) {
+        mTypes[slot] = type;
+    }
+
+    public long getValue(int slot) {
+        return mValues[slot];
+    }
+
+    public void setValue(int slot, long value) {
+        mValues[slot] = value;
+    }
+
+    public long getOldValue(int slot) {
+        return mOldValues != null ? mOldValues[slot] : -1;
+    }
+
+    public void setOldValue(int slot, long value) {
+        if (mOldValues == null) {
+            mOldValues = new long[mIds.length];
+            Arrays.fill(mOldValues, -1);
+        }
+        mOldValues[slot] = value;
+    }
+
+    public boolean hasFlag(int slot, int flag) {
+        return (mFlags[slot] & flag) != 0;
+    }
+
+    public void setFlag(int slot, int flag, boolean set) {
+        if (set) {
+            mFlags[slot] |= flag;
+        } else {
+            mFlags[slot] &= ~flag;
+        }
+    }
+}
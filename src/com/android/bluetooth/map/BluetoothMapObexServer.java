@@ -130,7 +130,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                                    mCurrentFolder to root folder */
         mObserver.setFolderStructure(mCurrentFolder.getRoot());
 
-        mOutContent = new BluetoothMapContent(mContext, mBaseEmailUriString);
+        mOutContent = new BluetoothMapContent(mContext, mBaseEmailUriString, mObserver);
 
     }
 
@@ -316,6 +316,9 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         if (D) Log.d(TAG, "onPut(): enter");
         mIsAborted = false;
         notifyUpdateWakeLock();
+        // every PUT may change messages; don't answer the next size poll
+        // before the content observer has caught up
+        mOutContent.clearCountCache();
         HeaderSet request = null;
         String type, name;
         byte[] appParamRaw;
@@ -719,8 +722,8 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     /**
      * Generate and send the message listing response based on an application
      * parameter header. This function call will block until complete or aborted
-     * by the peer. Fragmentation of packets larger than the obex packet size
-     * will be handled by this function.
+     * by the peer. The listing is encoded straight into the OBEX body, so the
+     * first packets go out while later entries are still being loaded.
      *
      * @param op
      *            The OBEX operation.
@@ -731,12 +734,11 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
      */
     private int sendMessageListingRsp(Operation op, BluetoothMapAppParams appParams, String folderName){
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0, listSize;
+        int listSize;
         boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapMessageListing outList;
+        BluetoothMapMessageListing outList = null;
         if(appParams == null){
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -761,10 +763,9 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                 appParams.setStartOffset(0);
 
             if(appParams.getMaxListCount() != 0) {
-                outList = mOutContent.msgListing(folderToList, appParams);
-                // Generate the byte stream
+                // The entries' details are loaded while encoding, see below
+                outList = mOutContent.msgListing(folderToList, appParams, true);
                 outAppParams.setMessageListingSize(outList.getCount());
-                outBytes = outList.encode(mThreadIdSupport); // Include thread ID for clients that supports it.
                 hasUnread = outList.hasUnread();
             }
             else {
@@ -789,6 +790,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
 
         } catch (IOException e) {
             Log.w(TAG,"sendMessageListingRsp: IOException - sending OBEX_HTTP_BAD_REQUEST", e);
+            if(outList != null) outList.close();
             if(outStream != null) { try { outStream.close(); } catch (IOException ex) {} }
             if(mIsAborted == true) {
                 if(D) Log.d(TAG, "sendMessageListingRsp Operation Aborted");
@@ -798,26 +800,26 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             }
         } catch (IllegalArgumentException e) {
             Log.w(TAG,"sendMessageListingRsp: IllegalArgumentException - sending OBEX_HTTP_BAD_REQUEST", e);
+            if(outList != null) outList.close();
             if(outStream != null) { try { outStream.close(); } catch (IOException ex) {} }
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if(outBytes != null) {
+        if(outList != null) {
+            boolean complete = false;
             try {
-                while (bytesWritten < outBytes.length && mIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                // Include thread ID for clients that supports it.
+                outList.encode(outStream, mThreadIdSupport);
+                complete = true;
             } catch (IOException e) {
                 if(D) Log.w(TAG,e);
                 // We were probably aborted or disconnected
             } finally {
+                outList.close();
                 if(outStream != null) { try { outStream.close(); } catch (IOException e) {} }
             }
-            if(bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(TAG,"sendMessageListingRsp: bytesWritten != outBytes.length - sending OBEX_HTTP_BAD_REQUEST");
+            if(!complete && !mIsAborted) {
+                Log.w(TAG,"sendMessageListingRsp: listing not fully written - sending OBEX_HTTP_BAD_REQUEST");
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             }
         } else {
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a received file through its FileChannel.
+ *
+ * The destination is preallocated to the announced length so the file
+ * system can lay it out in one go, packets are gathered in a direct buffer
+ * that the channel writes without another copy, and the data is synced once
+ * when the file is complete instead of relying on writeback during the
+ * transfer.
+ */
+class BluetoothOppFileSink {
+    private static final String TAG = "BtOppFileSink";
+    private static final boolean D = Constants.DEBUG;
+    private static final boolean V = Constants.VERBOSE;
+
+    static final int BUFFER_SIZE = 0x10000;
+
+    private final FileOutputStream mOutput;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final long mStartTime;
+    private long mStartPosition;
+    private long mPosition;
+    private long mWriteTimeMs;
+
+    /**
+     * @param output the destination stream; closed by {@link #close}
+     * @param length the length announced by the sender, or 0 if unknown
+     * @param buffer a direct buffer of {@link #BUFFER_SIZE} bytes, which may
+     *        be reused for the next file once this sink is closed
+     */
+    BluetoothOppFileSink(FileOutputStream output, long length, ByteBuffer buffer) {
+        mOutput = output;
+        mChannel = output.getChannel();
+        mBuffer = buffer;
+        mBuffer.clear();
+        mStartTime = SystemClock.elapsedRealtime();
+        try {
+            // non-zero when appending to a resumed partial file
+            mStartPosition = mChannel.position();
+            mPosition = mStartPosition;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to get file position: " + e);
+        }
+        // Appending writes go to the end of the file, so only a new file is
+        // preallocated.
+        if (length > 0 && mStartPosition == 0) {
+            try {
+                Os.posix_fallocate(output.getFD(), 0, length);
+            } catch (ErrnoException e) {
+                // Not every file system supports it; the write path is the same.
+                if (V) Log.v(TAG, "Unable to preallocate " + length + " bytes: " + e);
+            } catch (IOException e) {
+                if (V) Log.v(TAG, "Unable to preallocate " + length + " bytes: " + e);
+            }
+        }
+    }
+
+    static ByteBuffer allocateBuffer() {
+        return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int chunk = Math.min(len, mBuffer.remaining());
+            mBuffer.put(b, off, chunk);
+            off += chunk;
+            len -= chunk;
+            if (!mBuffer.hasRemaining()) {
+                drain();
+            }
+        }
+    }
+
+    /**
+     * Write out what is buffered, trim any preallocated space past the data,
+     * close the file and log the throughput of the transfer.
+     *
+     * @param sync whether to sync the data to storage, normally only when the
+     *        whole file was received
+     */
+    void close(boolean sync) throws IOException {
+        long syncTimeMs = 0;
+        try {
+            drain();
+            if (mChannel.size() > mPosition) {
+                mChannel.truncate(mPosition);
+            }
+            if (sync) {
+                long start = SystemClock.elapsedRealtime();
+                mChannel.force(false);
+                syncTimeMs = SystemClock.elapsedRealtime() - start;
+            }
+        } finally {
+            mOutput.close();
+        }
+        if (D) {
+            long elapsedMs = Math.max(1, SystemClock.elapsedRealtime() - mStartTime);
+            long written = mPosition - mStartPosition;
+            Log.d(TAG, "Wrote " + written + " bytes in " + elapsedMs + " ms ("
+                    + (written * 1000 / 1024 / elapsedMs) + " KB/s), "
+                    + mWriteTimeMs + " ms in writes, " + syncTimeMs + " ms in sync");
+        }
+    }
+
+    private void drain() throws IOException {
+        mBuffer.flip();
+        long start = SystemClock.elapsedRealtime();
+        while (mBuffer.hasRemaining()) {
+            mPosition += mChannel.write(mBuffer);
+        }
+        mWriteTimeMs += SystemClock.elapsedRealtime() - start;
+        mBuffer.clear();
+    }
+}
@@ -51,6 +51,11 @@ import android.util.Pair;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This class provides a simplified interface on top of other Bluetooth service
@@ -100,6 +105,9 @@ public class BluetoothOppManager {
 
     private static final int ALLOWED_INSERT_SHARE_THREAD_NUMBER = 3;
 
+    // Threads looking up the MIME types of a multiple file share
+    private static final int MIME_RESOLVER_THREADS = 4;
+
     // used to judge if need continue sending process after received a
     // ENABLED_ACTION
     public boolean mSendingFlag;
@@ -425,20 +433,20 @@ public class BluetoothOppManager {
 
         /**
          * Insert multiple sending sessions to db, only used by Opp application.
+         * The MIME types are resolved in parallel, since each lookup is an IPC
+         * to the provider owning the file, and the shares are then inserted
+         * in a single transaction.
          */
         private void insertMultipleShare() {
             int count = mUris.size();
             Long ts = System.currentTimeMillis();
+            String[] contentTypes = resolveContentTypes();
+            ContentValues[] allValues = new ContentValues[count];
             for (int i = 0; i < count; i++) {
-                Uri fileUri = mUris.get(i);
-
                 ContentValues values = new ContentValues();
-                values.put(BluetoothShare.URI, fileUri.toString());
+                values.put(BluetoothShare.URI, mUris.get(i).toString());
 
-                ContentResolver contentResolver = mContext.getContentResolver();
-                fileUri = BluetoothOppUtility.originalUri(fileUri);
-                String contentType = contentResolver.getType(fileUri);
-                if (V) Log.v(TAG, "Got mimetype: " + contentType + "  Got uri: " + fileUri);
+                String contentType = contentTypes[i];
                 if (TextUtils.isEmpty(contentType)) {
                     contentType = mTypeOfMultipleFiles;
                 }
@@ -450,11 +458,53 @@ public class BluetoothOppManager {
                     values.put(BluetoothShare.USER_CONFIRMATION,
                             BluetoothShare.USER_CONFIRMATION_HANDOVER_CONFIRMED);
                 }
-                final Uri contentUri = mContext.getContentResolver().insert(
-                        BluetoothShare.CONTENT_URI, values);
-                if (V) Log.v(TAG, "Insert contentUri: " + contentUri + "  to device: "
-                            + getDeviceName(mRemoteDevice));
+                allValues[i] = values;
+            }
+            int inserted = mContext.getContentResolver().bulkInsert(
+                    BluetoothShare.CONTENT_URI, allValues);
+            if (V) Log.v(TAG, "Inserted " + inserted + " of " + count + " shares to device: "
+                        + getDeviceName(mRemoteDevice));
+        }
+
+        /**
+         * @return the MIME type reported for each of mUris, in order; null
+         *         where the lookup failed
+         */
+        private String[] resolveContentTypes() {
+            final ContentResolver contentResolver = mContext.getContentResolver();
+            int count = mUris.size();
+            String[] contentTypes = new String[count];
+            ExecutorService executor = Executors.newFixedThreadPool(
+                    Math.max(1, Math.min(count, MIME_RESOLVER_THREADS)));
+            try {
+                List<Future<String>> results = new ArrayList<Future<String>>(count);
+                for (int i = 0; i < count; i++) {
+                    final Uri fileUri = BluetoothOppUtility.originalUri(mUris.get(i));
+                    results.add(executor.submit(new Callable<String>() {
+                        @Override
+                        public String call() {
+                            String contentType = contentResolver.getType(fileUri);
+                            if (V) Log.v(TAG, "Got mimetype: " + contentType + "  Got uri: "
+                                    + fileUri);
+                            return contentType;
+                        }
+                    }));
+                }
+                for (int i = 0; i < count; i++) {
+                    try {
+                        contentTypes[i] = results.get(i).get();
+                    } catch (ExecutionException e) {
+                        Log.w(TAG, "Unable to get mimetype of " + mUris.get(i) + ": "
+                                + e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while resolving mimetypes");
+                Thread.currentThread().interrupt();
+            } finally {
+                executor.shutdownNow();
             }
+            return contentTypes;
         }
 
          /**
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.media.MediaScannerConnection.MediaScannerConnectionClient;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Message;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Media scanning of received files over a shared MediaScannerConnection.
+ *
+ * The connection is opened by the first file queued and stays open while
+ * more files arrive, so a batch of received files costs one connect and
+ * disconnect instead of one per file. Queued files are handed to the scanner
+ * a few at a time, and each result is reported to the service handler as a
+ * MEDIA_SCANNED or MEDIA_SCANNED_FAILED message with the share id in arg1.
+ * A share stays queued until the handler calls resultHandled(), so it is not
+ * scanned again while its result is still on its way to the provider.
+ * The connection is closed once nothing was queued for IDLE_DISCONNECT_MS.
+ */
+class BluetoothOppMediaScanner implements MediaScannerConnectionClient {
+    private static final String TAG = "BtOppMediaScanner";
+    private static final boolean V = Constants.VERBOSE;
+
+    /** Files handed to the media scanner without a result yet. */
+    private static final int MAX_SCANS_IN_FLIGHT = 8;
+
+    /** How long the connection is kept open after the last result. */
+    private static final int IDLE_DISCONNECT_MS = 3000;
+
+    private final MediaScannerConnection mConnection;
+    private final Handler mCallback;
+    private final int mScannedWhat;
+    private final int mFailedWhat;
+
+    // shares waiting to be handed to the scanner
+    private final ArrayDeque<BluetoothOppShareInfo> mPending =
+            new ArrayDeque<BluetoothOppShareInfo>();
+
+    // file path -> share id, for files handed to the scanner
+    private final HashMap<String, Integer> mInFlight = new HashMap<String, Integer>();
+
+    // ids of every share pending, in flight or with its result not handled
+    private final HashSet<Integer> mQueuedIds = new HashSet<Integer>();
+
+    private boolean mConnecting;
+
+    private final Runnable mDisconnect = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BluetoothOppMediaScanner.this) {
+                if (mPending.isEmpty() && mInFlight.isEmpty() && !mConnecting) {
+                    if (V) Log.v(TAG, "Idle, disconnecting");
+                    mConnection.disconnect();
+                }
+            }
+        }
+    };
+
+    /**
+     * @param handler receives the scan results
+     * @param scannedWhat message sent with the content uri of a scanned file
+     * @param failedWhat message sent for a file the scanner did not add
+     */
+    BluetoothOppMediaScanner(Context context, Handler handler, int scannedWhat, int failedWhat) {
+        mConnection = new MediaScannerConnection(context, this);
+        mCallback = handler;
+        mScannedWhat = scannedWhat;
+        mFailedWhat = failedWhat;
+    }
+
+    /**
+     * Queue the file of share {@code info} for scanning.
+     *
+     * @return true if the share was queued, false if it already is
+     */
+    synchronized boolean scan(BluetoothOppShareInfo info) {
+        if (!mQueuedIds.add(info.mId)) {
+            return false;
+        }
+        mPending.add(info);
+        mCallback.removeCallbacks(mDisconnect);
+        if (mConnection.isConnected()) {
+            submit();
+        } else if (!mConnecting) {
+            if (V) Log.v(TAG, "Connecting to MediaScannerConnection");
+            mConnecting = true;
+            mConnection.connect();
+        }
+        return true;
+    }
+
+    /**
+     * Drop anything still queued and close the connection.
+     */
+    synchronized void close() {
+        mCallback.removeCallbacks(mDisconnect);
+        mPending.clear();
+        mInFlight.clear();
+        mQueuedIds.clear();
+        mConnecting = false;
+        mConnection.disconnect();
+    }
+
+    @Override
+    public synchronized void onMediaScannerConnected() {
+        if (V) Log.v(TAG, "MediaScannerConnection connected, " + mPending.size() + " queued");
+        mConnecting = false;
+        submit();
+    }
+
+    @Override
+    public void onScanCompleted(String path, Uri uri) {
+        if (V) Log.v(TAG, "MediaScannerConnection scanned " + path + " to " + uri);
+        Integer id;
+        synchronized (this) {
+            id = mInFlight.remove(path);
+            if (id == null) {
+                // closed meanwhile
+                return;
+            }
+            submit();
+            if (mInFlight.isEmpty()) {
+                mCallback.postDelayed(mDisconnect, IDLE_DISCONNECT_MS);
+            }
+        }
+        Message msg = Message.obtain(mCallback);
+        msg.arg1 = id;
+        if (uri != null) {
+            msg.what = mScannedWhat;
+            msg.obj = uri;
+        } else {
+            msg.what = mFailedWhat;
+        }
+        msg.sendToTarget();
+    }
+
+    /**
+     * Called by the handler once the result for share {@code id} is stored,
+     * after which the share may be queued again.
+     */
+    synchronized void resultHandled(int id) {
+        mQueuedIds.remove(id);
+    }
+
+    // Caller holds the lock.
+    private void submit() {
+        while (mInFlight.size() < MAX_SCANS_IN_FLIGHT && !mPending.isEmpty()) {
+            BluetoothOppShareInfo info = mPending.poll();
+            if (V) Log.v(TAG, "Scanning " + info.mFilename);
+            mInFlight.put(info.mFilename, info.mId);
+            mConnection.scanFile(info.mFilename, info.mMimetype);
+        }
+    }
+}
@@ -46,13 +46,19 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.Process;
 import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  * This class handles the updating of the Notification Manager for the cases
  * where there is an ongoing transfer, incoming transfer need confirm and
  * complete (successful or failed) transfer.
+ *
+ * Updates are requested by the service on share changes and by the transfer
+ * layer when a transfer's percentage changes, and run at most once per
+ * NOTIFICATION_REFRESH_MS. The state last posted for each notification is
+ * kept, so a notification is only rebuilt when what it shows has changed.
  */
-class BluetoothOppNotification {
+class BluetoothOppNotification implements BluetoothOppProgressReporter.Listener {
     private static final String TAG = "BluetoothOppNotification";
     private static final boolean V = Constants.VERBOSE;
 
@@ -85,6 +91,21 @@ class BluetoothOppNotification {
     static final String WHERE_CONFIRM_PENDING = BluetoothShare.USER_CONFIRMATION + " == '"
             + BluetoothShare.USER_CONFIRMATION_PENDING + "'" + " AND " + visible;
 
+    private static final String[] ACTIVE_PROJECTION = new String[] {
+            BluetoothShare._ID, BluetoothShare.TIMESTAMP, BluetoothShare.DIRECTION,
+            BluetoothShare.TOTAL_BYTES, BluetoothShare.CURRENT_BYTES, BluetoothShare._DATA,
+            BluetoothShare.FILENAME_HINT, BluetoothShare.USER_CONFIRMATION,
+            BluetoothShare.DESTINATION
+    };
+
+    private static final String[] COMPLETED_PROJECTION = new String[] {
+            BluetoothShare.TIMESTAMP, BluetoothShare.STATUS
+    };
+
+    private static final String[] CONFIRM_PROJECTION = new String[] {
+            BluetoothShare._ID, BluetoothShare.TIMESTAMP
+    };
+
     public NotificationManager mNotificationMgr;
 
     private Context mContext;
@@ -103,6 +124,21 @@ class BluetoothOppNotification {
 
     private int mActiveNotificationId = 0;
 
+    // id -> state last posted for each ongoing transfer notification
+    private final HashMap<Integer, String> mPostedActive = new HashMap<Integer, String>();
+
+    // counts last posted in the completed transfer notifications
+    private String mPostedOutbound;
+
+    private String mPostedInbound;
+
+    // ids with a posted incoming file confirmation notification
+    private final HashSet<Integer> mPostedConfirm = new HashSet<Integer>();
+
+    // ids cancelled through cancel(); dropped from the posted state at the
+    // start of the next update so they are posted again if still due
+    private static final HashSet<Integer> sCancelledIds = new HashSet<Integer>();
+
     /**
      * This inner class is used to describe some properties for one transfer.
      */
@@ -137,6 +173,31 @@ class BluetoothOppNotification {
         mNotifications = new HashMap<String, NotificationItem>();
     }
 
+    /**
+     * Cancel the notification of share {@code id}. Use this rather than
+     * NotificationManager.cancel(), so the next update posts the notification
+     * again if the share still needs one, e.g. an incoming file confirmation
+     * whose dialog was left without an answer.
+     */
+    static void cancel(Context context, int id) {
+        NotificationManager notMgr = (NotificationManager)context
+                .getSystemService(Context.NOTIFICATION_SERVICE);
+        if (notMgr != null) {
+            notMgr.cancel(id);
+        }
+        synchronized (sCancelledIds) {
+            sCancelledIds.add(id);
+        }
+    }
+
+    private void forgetCancelled() {
+        synchronized (sCancelledIds) {
+            mPostedConfirm.removeAll(sCancelledIds);
+            mPostedActive.keySet().removeAll(sCancelledIds);
+            sCancelledIds.clear();
+        }
+    }
+
     /**
      * Update the notification ui.
      */
@@ -154,7 +215,15 @@ class BluetoothOppNotification {
         }
     }
 
+    @Override
+    public void onProgressChanged(int id, int percent) {
+        updateNotification();
+    }
+
     private static final int NOTIFY = 0;
+
+    private static final int NOTIFICATION_REFRESH_MS = 1000;
+
     // Use 1 second timer to limit notification frequency.
     // 1. On the first notification, create the update thread.
     //    Buffer other updates.
@@ -172,10 +241,12 @@ class BluetoothOppNotification {
                             mUpdateNotificationThread = new NotificationUpdateThread();
                             mUpdateNotificationThread.start();
                             if (V) Log.v(TAG, "send delay message");
-                            mHandler.sendMessageDelayed(mHandler.obtainMessage(NOTIFY), 1000);
+                            mHandler.sendMessageDelayed(mHandler.obtainMessage(NOTIFY),
+                                    NOTIFICATION_REFRESH_MS);
                         } else if (mPendingUpdate > 0) {
                             if (V) Log.v(TAG, "previous thread is not finished yet");
-                            mHandler.sendMessageDelayed(mHandler.obtainMessage(NOTIFY), 1000);
+                            mHandler.sendMessageDelayed(mHandler.obtainMessage(NOTIFY),
+                                    NOTIFICATION_REFRESH_MS);
                         }
                         break;
                     }
@@ -199,6 +270,7 @@ class BluetoothOppNotification {
                 }
                 mPendingUpdate = 0;
             }
+            forgetCancelled();
             updateActiveNotification();
             updateCompletedNotification();
             updateIncomingFileConfirmNotification();
@@ -210,8 +282,8 @@ class BluetoothOppNotification {
 
     private void updateActiveNotification() {
         // Active transfers
-        Cursor cursor = mContext.getContentResolver().query(BluetoothShare.CONTENT_URI, null,
-                WHERE_RUNNING, null, BluetoothShare._ID);
+        Cursor cursor = mContext.getContentResolver().query(BluetoothShare.CONTENT_URI,
+                ACTIVE_PROJECTION, WHERE_RUNNING, null, BluetoothShare._ID);
         if (cursor == null) {
             return;
         }
@@ -242,7 +314,8 @@ class BluetoothOppNotification {
             int dir = cursor.getInt(directionIndex);
             int id = cursor.getInt(idIndex);
             int total = cursor.getInt(totalBytesIndex);
-            int current = cursor.getInt(currentBytesIndex);
+            int current = BluetoothOppProgressReporter.getLiveBytes(id,
+                    cursor.getInt(currentBytesIndex));
             int confirmation = cursor.getInt(confirmIndex);
 
             String destination = cursor.getString(destinationIndex);
@@ -286,8 +359,18 @@ class BluetoothOppNotification {
         }
         cursor.close();
 
-        // Add the notifications
+        // Add the notifications that changed since they were last posted
+        HashSet<Integer> activeIds = new HashSet<Integer>();
         for (NotificationItem item : mNotifications.values()) {
+            activeIds.add(item.id);
+            String state = item.direction + "/" + getPercent(item) + "/" + item.description;
+            if (state.equals(mPostedActive.get(item.id))) {
+                if (!item.handoverInitiated) {
+                    mActiveNotificationId = item.id;
+                }
+                continue;
+            }
+            mPostedActive.put(item.id, state);
             if (item.handoverInitiated) {
                 float progress = 0;
                 if (item.totalTotal == -1) {
@@ -339,6 +422,14 @@ class BluetoothOppNotification {
 
             mActiveNotificationId = item.id;
         }
+        mPostedActive.keySet().retainAll(activeIds);
+    }
+
+    private static int getPercent(NotificationItem item) {
+        if (item.totalTotal == -1) {
+            return -1;
+        }
+        return item.totalTotal == 0 ? 0 : (int) (item.totalCurrent * 100L / item.totalTotal);
     }
 
     private void updateCompletedNotification() {
@@ -366,12 +457,15 @@ class BluetoothOppNotification {
         // transfer becomes complete.
         if (mNotificationMgr != null && mActiveNotificationId != 0) {
             mNotificationMgr.cancel(mActiveNotificationId);
+            mPostedActive.remove(mActiveNotificationId);
+            mActiveNotificationId = 0;
             if (V) Log.v(TAG, "ongoing transfer notification was removed");
         }
 
         // Creating outbound notification
-        Cursor cursor = mContext.getContentResolver().query(BluetoothShare.CONTENT_URI, null,
-                WHERE_COMPLETED_OUTBOUND, null, BluetoothShare.TIMESTAMP + " DESC");
+        Cursor cursor = mContext.getContentResolver().query(BluetoothShare.CONTENT_URI,
+                COMPLETED_PROJECTION, WHERE_COMPLETED_OUTBOUND, null,
+                BluetoothShare.TIMESTAMP + " DESC");
         if (cursor == null) {
             return;
         }
@@ -396,8 +490,11 @@ class BluetoothOppNotification {
         cursor.close();
 
         outboundNum = outboundSuccNumber + outboundFailNumber;
+        String outboundState = outboundSuccNumber + "/" + outboundFailNumber + "@" + timeStamp;
         // create the outbound notification
-        if (outboundNum > 0) {
+        if (outboundNum > 0 && outboundState.equals(mPostedOutbound)) {
+            if (V) Log.v(TAG, "outbound notification is unchanged");
+        } else if (outboundNum > 0) {
             Notification outNoti = new Notification();
             outNoti.icon = android.R.drawable.stat_sys_upload_done;
             title = mContext.getString(R.string.outbound_noti_title);
@@ -414,7 +511,9 @@ class BluetoothOppNotification {
             outNoti.deleteIntent = PendingIntent.getBroadcast(mContext, 0, intent, 0);
             outNoti.when = timeStamp;
             mNotificationMgr.notify(NOTIFICATION_ID_OUTBOUND, outNoti);
+            mPostedOutbound = outboundState;
         } else {
+            mPostedOutbound = null;
             if (mNotificationMgr != null) {
                 mNotificationMgr.cancel(NOTIFICATION_ID_OUTBOUND);
                 if (V) Log.v(TAG, "outbound notification was removed.");
@@ -422,8 +521,9 @@ class BluetoothOppNotification {
         }
 
         // Creating inbound notification
-        cursor = mContext.getContentResolver().query(BluetoothShare.CONTENT_URI, null,
-                WHERE_COMPLETED_INBOUND, null, BluetoothShare.TIMESTAMP + " DESC");
+        cursor = mContext.getContentResolver().query(BluetoothShare.CONTENT_URI,
+                COMPLETED_PROJECTION, WHERE_COMPLETED_INBOUND, null,
+                BluetoothShare.TIMESTAMP + " DESC");
         if (cursor == null) {
             return;
         }
@@ -445,8 +545,11 @@ class BluetoothOppNotification {
         cursor.close();
 
         inboundNum = inboundSuccNumber + inboundFailNumber;
+        String inboundState = inboundSuccNumber + "/" + inboundFailNumber + "@" + timeStamp;
         // create the inbound notification
-        if (inboundNum > 0) {
+        if (inboundNum > 0 && inboundState.equals(mPostedInbound)) {
+            if (V) Log.v(TAG, "inbound notification is unchanged");
+        } else if (inboundNum > 0) {
             Notification inNoti = new Notification();
             inNoti.icon = android.R.drawable.stat_sys_download_done;
             title = mContext.getString(R.string.inbound_noti_title);
@@ -463,7 +566,9 @@ class BluetoothOppNotification {
             inNoti.deleteIntent = PendingIntent.getBroadcast(mContext, 0, intent, 0);
             inNoti.when = timeStamp;
             mNotificationMgr.notify(NOTIFICATION_ID_INBOUND, inNoti);
+            mPostedInbound = inboundState;
         } else {
+            mPostedInbound = null;
             if (mNotificationMgr != null) {
                 mNotificationMgr.cancel(NOTIFICATION_ID_INBOUND);
                 if (V) Log.v(TAG, "inbound notification was removed.");
@@ -472,19 +577,25 @@ class BluetoothOppNotification {
     }
 
     private void updateIncomingFileConfirmNotification() {
-        Cursor cursor = mContext.getContentResolver().query(BluetoothShare.CONTENT_URI, null,
-                WHERE_CONFIRM_PENDING, null, BluetoothShare._ID);
+        Cursor cursor = mContext.getContentResolver().query(BluetoothShare.CONTENT_URI,
+                CONFIRM_PROJECTION, WHERE_CONFIRM_PENDING, null, BluetoothShare._ID);
 
         if (cursor == null) {
             return;
         }
 
+        HashSet<Integer> pendingIds = new HashSet<Integer>();
         for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            int id = cursor.getInt(cursor.getColumnIndexOrThrow(BluetoothShare._ID));
+            pendingIds.add(id);
+            if (!mPostedConfirm.add(id)) {
+                // already posted; its content never changes
+                continue;
+            }
             CharSequence title =
                     mContext.getText(R.string.incoming_file_confirm_Notification_title);
             CharSequence caption = mContext
                     .getText(R.string.incoming_file_confirm_Notification_caption);
-            int id = cursor.getInt(cursor.getColumnIndexOrThrow(BluetoothShare._ID));
             long timeStamp = cursor.getLong(cursor.getColumnIndexOrThrow(BluetoothShare.TIMESTAMP));
             Uri contentUri = Uri.parse(BluetoothShare.CONTENT_URI + "/" + id);
 
@@ -513,5 +624,6 @@ class BluetoothOppNotification {
             mNotificationMgr.notify(id, n);
         }
         cursor.close();
+        mPostedConfirm.retainAll(pendingIds);
     }
 }
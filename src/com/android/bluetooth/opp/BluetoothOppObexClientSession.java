@@ -48,11 +48,11 @@ import android.os.PowerManager.WakeLock;
 import android.os.Process;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.Thread;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * This class runs as an OBEX client
@@ -110,25 +110,15 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
         mThread.addShare(share);
     }
 
-    private static int readFully(InputStream is, byte[] buffer, int size) throws IOException {
-        int done = 0;
-        while (done < size) {
-            int got = is.read(buffer, done, size - done);
-            if (got <= 0) break;
-            done += got;
-        }
-        return done;
-    }
-
     private class ClientThread extends Thread {
 
-        private static final int sSleepTime = 500;
-
         private Context mContext1;
 
         private BluetoothOppShareInfo mInfo;
 
-        private volatile boolean waitingForShare;
+        // shares handed over by addShare(), sent in order
+        private final LinkedBlockingQueue<BluetoothOppShareInfo> mShareQueue =
+                new LinkedBlockingQueue<BluetoothOppShareInfo>();
 
         private ObexTransport mTransport1;
 
@@ -142,11 +132,19 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
 
         private int mNumShares;
 
+        // whether the peer advertised resume support when connecting
+        private boolean mPeerSupportsResume;
+
+        // offset to resume the last share at, or -1 if it did not lose the link
+        private int mLinkLostPosition = -1;
+
+        // whether the peer refused to resume the last share
+        private boolean mResumeRejected;
+
         public ClientThread(Context context, ObexTransport transport, int initialNumShares) {
             super("BtOpp ClientThread");
             mContext1 = context;
             mTransport1 = transport;
-            waitingForShare = true;
             mWaitingForRemote = false;
             mNumShares = initialNumShares;
             PowerManager pm = (PowerManager)mContext1.getSystemService(Context.POWER_SERVICE);
@@ -154,9 +152,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
         }
 
         public void addShare(BluetoothOppShareInfo info) {
-            mInfo = info;
-            mFileInfo = processShareInfo();
-            waitingForShare = false;
+            mShareQueue.offer(info);
         }
 
         @Override
@@ -166,28 +162,23 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             if (V) Log.v(TAG, "acquire partial WakeLock");
             wakeLock.acquire();
 
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e1) {
-                if (V) Log.v(TAG, "Client thread was interrupted (1), exiting");
-                mInterrupted = true;
-            }
             if (!mInterrupted) {
                 connect(mNumShares);
             }
 
             while (!mInterrupted) {
-                if (!waitingForShare) {
-                    doSend();
-                } else {
-                    try {
-                        if (D) Log.d(TAG, "Client thread waiting for next share, sleep for "
-                                    + sSleepTime);
-                        Thread.sleep(sSleepTime);
-                    } catch (InterruptedException e) {
-
-                    }
+                BluetoothOppShareInfo info;
+                try {
+                    // stop() interrupts this wait
+                    if (D) Log.d(TAG, "Client thread waiting for next share");
+                    info = mShareQueue.take();
+                } catch (InterruptedException e) {
+                    if (V) Log.v(TAG, "Client thread was interrupted, exiting");
+                    break;
                 }
+                mInfo = info;
+                mFileInfo = processShareInfo();
+                doSend();
             }
             disconnect();
 
@@ -243,12 +234,17 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                 mConnected = false;
                 HeaderSet hs = new HeaderSet();
                 hs.setHeader(HeaderSet.COUNT, (long) numShares);
+                hs.setHeader(HeaderSet.APPLICATION_PARAMETER,
+                        BluetoothOppResume.getSupportedParams());
                 synchronized (this) {
                     mWaitingForRemote = true;
                 }
                 try {
-                    mCs.connect(hs);
-                    if (D) Log.d(TAG, "OBEX session created");
+                    HeaderSet reply = mCs.connect(hs);
+                    mPeerSupportsResume = BluetoothOppResume.isSupported(
+                            (byte[])reply.getHeader(HeaderSet.APPLICATION_PARAMETER));
+                    if (D) Log.d(TAG, "OBEX session created, resume "
+                            + (mPeerSupportsResume ? "supported" : "unsupported"));
                     mConnected = true;
                 } catch (IOException e) {
                     Log.e(TAG, "OBEX session connect error");
@@ -263,14 +259,6 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
 
             int status = BluetoothShare.STATUS_SUCCESS;
 
-            /* connection is established too fast to get first mInfo */
-            while (mFileInfo == null) {
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException e) {
-                    status = BluetoothShare.STATUS_CANCELED;
-                }
-            }
             if (!mConnected) {
                 // Obex connection error
                 status = BluetoothShare.STATUS_CONNECTION_ERROR;
@@ -278,12 +266,14 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             if (status == BluetoothShare.STATUS_SUCCESS) {
                 /* do real send */
                 if (mFileInfo.mFileName != null) {
-                    status = sendFile(mFileInfo);
+                    status = sendFile(mFileInfo, getResumeOffset());
+                    if (mResumeRejected) {
+                        status = sendFile(mFileInfo, 0);
+                    }
                 } else {
                     /* this is invalid request */
                     status = mFileInfo.mStatus;
                 }
-                waitingForShare = true;
             } else {
                 Constants.updateShareStatus(mContext1, mInfo.mId, status);
             }
@@ -293,6 +283,12 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                 msg.what = BluetoothOppObexSession.MSG_SHARE_COMPLETE;
                 msg.obj = mInfo;
                 msg.sendToTarget();
+            } else if (mLinkLostPosition >= 0) {
+                Message msg = Message.obtain(mCallback);
+                msg.what = BluetoothOppObexSession.MSG_SESSION_LINK_LOST;
+                msg.arg1 = mLinkLostPosition;
+                msg.obj = mInfo;
+                msg.sendToTarget();
             } else {
                 Message msg = Message.obtain(mCallback);
                 msg.what = BluetoothOppObexSession.MSG_SESSION_ERROR;
@@ -334,11 +330,43 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             return fileInfo;
         }
 
-        private int sendFile(BluetoothOppSendFileInfo fileInfo) {
+        /*
+         * Offset to continue the current share at, if an earlier session sent
+         * part of it before losing the link
+         */
+        private long getResumeOffset() {
+            if (mPeerSupportsResume && mInfo.mCurrentBytes > 0
+                    && mInfo.mCurrentBytes < mFileInfo.mLength) {
+                return mInfo.mCurrentBytes;
+            }
+            return 0;
+        }
+
+        private int sendFile(BluetoothOppSendFileInfo fileInfo, long offset) {
+            BluetoothOppSendFileInfo positioned = fileInfo.reposition(mContext1,
+                    BluetoothOppUtility.originalUri(mInfo.mUri), mInfo.mMimetype, offset);
+            if (positioned != fileInfo) {
+                // reopened, so the whole file is sent again
+                BluetoothOppUtility.closeSendFileInfo(mInfo.mUri);
+                if (positioned.mInputStream == null) {
+                    Log.e(TAG, "Unable to reopen " + fileInfo.mFileName);
+                    mLinkLostPosition = -1;
+                    mResumeRejected = false;
+                    Constants.updateShareStatus(mContext1, mInfo.mId, positioned.mStatus);
+                    return positioned.mStatus;
+                }
+                BluetoothOppUtility.putSendFileInfo(mInfo.mUri, positioned);
+                mFileInfo = positioned;
+                fileInfo = positioned;
+                offset = 0;
+            }
+
             boolean error = false;
             int responseCode = -1;
             int status = BluetoothShare.STATUS_SUCCESS;
             Uri contentUri = Uri.parse(BluetoothShare.CONTENT_URI + "/" + mInfo.mId);
+            BluetoothOppProgressReporter progress =
+                    new BluetoothOppProgressReporter(mContext1, mInfo.mId, fileInfo.mLength);
             ContentValues updateValues;
             HeaderSet request;
             request = new HeaderSet();
@@ -346,6 +374,13 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             request.setHeader(HeaderSet.TYPE, fileInfo.mMimetype);
 
             applyRemoteDeviceQuirks(request, mInfo.mDestination, fileInfo.mFileName);
+            if (offset > 0) {
+                if (D) Log.d(TAG, "Resume " + fileInfo.mFileName + " at " + offset);
+                request.setHeader(HeaderSet.APPLICATION_PARAMETER,
+                        BluetoothOppResume.getOffsetParams(offset));
+            }
+            mLinkLostPosition = -1;
+            mResumeRejected = false;
 
             Constants.updateShareStatus(mContext1, mInfo.mId, BluetoothShare.STATUS_RUNNING);
 
@@ -353,6 +388,8 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             ClientOperation putOperation = null;
             OutputStream outputStream = null;
             InputStream inputStream = null;
+            BluetoothOppReadAhead readAhead = null;
+            int position = (int) offset;
             try {
                 synchronized (this) {
                     mWaitingForRemote = true;
@@ -385,22 +422,25 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                 }
                 if (!error) {
                     updateValues = new ContentValues();
-                    updateValues.put(BluetoothShare.CURRENT_BYTES, 0);
+                    updateValues.put(BluetoothShare.CURRENT_BYTES, offset);
                     updateValues.put(BluetoothShare.STATUS, BluetoothShare.STATUS_RUNNING);
                     mContext1.getContentResolver().update(contentUri, updateValues, null, null);
                 }
 
                 if (!error) {
-                    int position = 0;
                     int readLength = 0;
                     boolean okToProceed = false;
                     long timestamp = 0;
                     int outputBufferSize = putOperation.getMaxPacketSize();
-                    byte[] buffer = new byte[outputBufferSize];
-                    BufferedInputStream a = new BufferedInputStream(fileInfo.mInputStream, 0x4000);
+                    BluetoothOppReadAhead.Buffer buffer;
+                    fileInfo.mStreamUsed = true;
+                    readAhead = new BluetoothOppReadAhead(fileInfo.mInputStream,
+                            outputBufferSize, fileInfo.mLength - offset);
+                    readAhead.start();
 
-                    if (!mInterrupted && (position != fileInfo.mLength)) {
-                        readLength = readFully(a, buffer, outputBufferSize);
+                    if (!mInterrupted && (position != fileInfo.mLength)
+                            && (buffer = readAhead.take()) != null) {
+                        readLength = buffer.mLength;
 
                         mCallback.sendMessageDelayed(mCallback
                                 .obtainMessage(BluetoothOppObexSession.MSG_CONNECT_TIMEOUT),
@@ -410,7 +450,8 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                         }
 
                         // first packet will block here
-                        outputStream.write(buffer, 0, readLength);
+                        outputStream.write(buffer.mData, 0, readLength);
+                        readAhead.recycle(buffer);
 
                         position += readLength;
 
@@ -435,10 +476,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                 || responseCode == ResponseCodes.OBEX_HTTP_OK) {
                             if (V) Log.v(TAG, "Remote accept");
                             okToProceed = true;
-                            updateValues = new ContentValues();
-                            updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                            mContext1.getContentResolver().update(contentUri, updateValues, null,
-                                    null);
+                            progress.update(position);
                         } else {
                             Log.i(TAG, "Remote reject, Response code is " + responseCode);
                         }
@@ -448,8 +486,14 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                         {
                             if (V) timestamp = System.currentTimeMillis();
 
-                            readLength = a.read(buffer, 0, outputBufferSize);
-                            outputStream.write(buffer, 0, readLength);
+                            buffer = readAhead.take();
+                            if (buffer == null) {
+                                // stop() interrupted the wait
+                                break;
+                            }
+                            readLength = buffer.mLength;
+                            outputStream.write(buffer.mData, 0, readLength);
+                            readAhead.recycle(buffer);
 
                             /* check remote abort */
                             responseCode = putOperation.getResponseCode();
@@ -465,10 +509,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                             + " readLength " + readLength + " bytes took "
                                             + (System.currentTimeMillis() - timestamp) + " ms");
                                 }
-                                updateValues = new ContentValues();
-                                updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                                mContext1.getContentResolver().update(contentUri, updateValues,
-                                        null, null);
+                                progress.update(position);
                             }
                         }
                     }
@@ -481,6 +522,12 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                     } else if (responseCode == ResponseCodes.OBEX_HTTP_UNSUPPORTED_TYPE) {
                         Log.i(TAG, "Remote reject file type " + fileInfo.mMimetype);
                         status = BluetoothShare.STATUS_NOT_ACCEPTABLE;
+                    } else if (offset > 0
+                            && responseCode == ResponseCodes.OBEX_HTTP_PRECON_FAILED) {
+                        Log.i(TAG, "Remote can't resume " + fileInfo.mFileName
+                                + ", sending it again");
+                        mResumeRejected = true;
+                        error = true;
                     } else if (!mInterrupted && position == fileInfo.mLength) {
                         Log.i(TAG, "SendFile finished send out file " + fileInfo.mFileName
                                 + " length " + fileInfo.mLength);
@@ -495,15 +542,31 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                     }
                 }
             } catch (IOException e) {
-                handleSendException(e.toString());
+                if (mPeerSupportsResume && !mInterrupted && position > offset) {
+                    // Keep the share open; the transfer reconnects and resumes it.
+                    Log.w(TAG, "Link lost at " + position + " of " + fileInfo.mLength + ": " + e);
+                    mCallback.removeMessages(BluetoothOppObexSession.MSG_CONNECT_TIMEOUT);
+                    // the packet in flight may not have reached the peer's storage
+                    mLinkLostPosition = Math.max(0, position - putOperation.getMaxPacketSize());
+                    status = BluetoothShare.STATUS_CONNECTION_ERROR;
+                    error = true;
+                } else {
+                    handleSendException(e.toString());
+                }
             } catch (NullPointerException e) {
                 handleSendException(e.toString());
             } catch (IndexOutOfBoundsException e) {
                 handleSendException(e.toString());
             } finally {
+                if (readAhead != null) {
+                    readAhead.close();
+                }
+                boolean retrying = mResumeRejected || mLinkLostPosition >= 0;
                 try {
                     // Close InputStream and remove SendFileInfo from map
-                    BluetoothOppUtility.closeSendFileInfo(mInfo.mUri);
+                    if (!retrying) {
+                        BluetoothOppUtility.closeSendFileInfo(mInfo.mUri);
+                    }
                     if (!error) {
                         responseCode = putOperation.getResponseCode();
                         if (responseCode != -1) {
@@ -525,7 +588,10 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                         }
                     }
 
-                    Constants.updateShareStatus(mContext1, mInfo.mId, status);
+                    progress.finish();
+                    if (!retrying) {
+                        Constants.updateShareStatus(mContext1, mInfo.mId, status);
+                    }
 
                     if (inputStream != null) {
                         inputStream.close();
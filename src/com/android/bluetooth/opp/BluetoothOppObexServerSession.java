@@ -32,10 +32,10 @@
 
 package com.android.bluetooth.opp;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import android.content.ContentValues;
@@ -95,6 +95,21 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
 
     private WakeLock mPartialWakeLock;
 
+    // reused by the file sink of each received file
+    private ByteBuffer mSinkBuffer;
+
+    // partial file the current put continues, and the offset it continues at
+    private BluetoothOppResume.Partial mResumePartial;
+
+    private long mResumeOffset;
+
+    // whether the sender advertised resume support in its CONNECT request
+    private boolean mPeerSupportsResume;
+
+    // whether the last failed receive lost the link with a partial file the
+    // sender may come back to resume
+    private volatile boolean mPartialResumable;
+
     boolean mTimeoutMsgSent = false;
 
     public BluetoothOppObexServerSession(Context context, ObexTransport transport) {
@@ -106,8 +121,9 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
         mPartialWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
     }
 
-    public void unblock() {
+    public synchronized void unblock() {
         mServerBlocking = false;
+        notifyAll();
     }
 
     /**
@@ -258,6 +274,20 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
                 return obexResponse;
             }
 
+            mResumePartial = null;
+            mResumeOffset = BluetoothOppResume.getOffset(
+                    (byte[])request.getHeader(HeaderSet.APPLICATION_PARAMETER));
+            if (mResumeOffset > 0) {
+                mResumePartial = BluetoothOppResume.findPartial(mContext, destination, name,
+                        length, mResumeOffset);
+                if (mResumePartial == null) {
+                    // the sender starts over with the whole object
+                    mResumeOffset = 0;
+                    return ResponseCodes.OBEX_HTTP_PRECON_FAILED;
+                }
+                if (D) Log.d(TAG, "Resume " + name + " at " + mResumeOffset);
+            }
+
         } catch (IOException e) {
             Log.e(TAG, "get getReceivedHeaders error " + e);
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
@@ -289,6 +319,20 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
 
         }
 
+        if (mResumePartial != null) {
+            values.put(BluetoothShare.CURRENT_BYTES, mResumeOffset);
+            /** The user already accepted the object being resumed */
+            if (mResumePartial.isConfirmed()) {
+                values.put(BluetoothShare.USER_CONFIRMATION, mResumePartial.mConfirmation);
+                needConfirm = false;
+            }
+        }
+
+        synchronized (this) {
+            // Block before the share becomes visible to the service, so an
+            // unblock() that races ahead of this thread is not lost.
+            mServerBlocking = true;
+        }
         Uri contentUri = mContext.getContentResolver().insert(BluetoothShare.CONTENT_URI, values);
         mLocalShareInfoId = Integer.parseInt(contentUri.getPathSegments().get(1));
 
@@ -309,18 +353,17 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
                 mPartialWakeLock.acquire();
                 mWakeLock.release();
             }
-            mServerBlocking = true;
+            if (mServerBlocking && mCallback != null && !mTimeoutMsgSent) {
+                mCallback.sendMessageDelayed(mCallback
+                        .obtainMessage(BluetoothOppObexSession.MSG_CONNECT_TIMEOUT),
+                        BluetoothOppObexSession.SESSION_TIMEOUT);
+                mTimeoutMsgSent = true;
+                if (V) Log.v(TAG, "MSG_CONNECT_TIMEOUT sent");
+            }
             try {
-
+                // unblock() notifies as soon as the share is confirmed
                 while (mServerBlocking) {
-                    wait(1000);
-                    if (mCallback != null && !mTimeoutMsgSent) {
-                        mCallback.sendMessageDelayed(mCallback
-                                .obtainMessage(BluetoothOppObexSession.MSG_CONNECT_TIMEOUT),
-                                BluetoothOppObexSession.SESSION_TIMEOUT);
-                        mTimeoutMsgSent = true;
-                        if (V) Log.v(TAG, "MSG_CONNECT_TIMEOUT sent");
-                    }
+                    wait();
                 }
             } catch (InterruptedException e) {
                 if (V) Log.v(TAG, "Interrupted in onPut blocking");
@@ -425,12 +468,22 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
         return obexResponse;
     }
 
+    /**
+     * @return whether the last receive failed on the link, not locally, with
+     *         a sender that negotiated resume, so its partial file is worth
+     *         keeping
+     */
+    boolean isPartialResumable() {
+        return mPartialResumable;
+    }
+
     private int receiveFile(BluetoothOppReceiveFileInfo fileInfo, Operation op) {
         /*
          * implement receive file
          */
         int status = -1;
-        BufferedOutputStream bos = null;
+        mPartialResumable = false;
+        BluetoothOppFileSink sink = null;
 
         InputStream is = null;
         boolean error = false;
@@ -450,9 +503,15 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
             mContext.getContentResolver().update(contentUri, updateValues, null, null);
         }
 
-        int position = 0;
+        int position = (int) mResumeOffset;
+        BluetoothOppProgressReporter progress =
+                new BluetoothOppProgressReporter(mContext, mInfo.mId, fileInfo.mLength);
         if (!error) {
-            bos = new BufferedOutputStream(fileInfo.mOutputStream, 0x10000);
+            if (mSinkBuffer == null) {
+                mSinkBuffer = BluetoothOppFileSink.allocateBuffer();
+            }
+            sink = new BluetoothOppFileSink(fileInfo.mOutputStream, fileInfo.mLength,
+                    mSinkBuffer);
         }
 
         if (!error) {
@@ -472,7 +531,15 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
                         break;
                     }
 
-                    bos.write(b, 0, readLength);
+                    try {
+                        sink.write(b, 0, readLength);
+                    } catch (IOException e) {
+                        // a local write failure, not link loss: nothing to resume
+                        Log.e(TAG, "Error when writing received file: " + e);
+                        status = BluetoothShare.STATUS_FILE_ERROR;
+                        error = true;
+                        break;
+                    }
                     position += readLength;
 
                     if (V) {
@@ -481,9 +548,7 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
                                 + (System.currentTimeMillis() - timestamp) + " ms");
                     }
 
-                    ContentValues updateValues = new ContentValues();
-                    updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                    mContext.getContentResolver().update(contentUri, updateValues, null, null);
+                    progress.update(position);
                 }
             } catch (IOException e1) {
                 Log.e(TAG, "Error when receiving file");
@@ -492,10 +557,12 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
                     status = BluetoothShare.STATUS_CANCELED;
                 } else {
                     status = BluetoothShare.STATUS_OBEX_DATA_ERROR;
+                    mPartialResumable = mPeerSupportsResume;
                 }
                 error = true;
             }
         }
+        progress.finish();
 
         if (mInterrupted) {
             if (D) Log.d(TAG, "receiving file interrupted by user.");
@@ -512,11 +579,14 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
             }
         }
 
-        if (bos != null) {
+        if (sink != null) {
             try {
-                bos.close();
+                sink.close(status == BluetoothShare.STATUS_SUCCESS);
             } catch (IOException e) {
                 Log.e(TAG, "Error when closing stream after send");
+                if (status == BluetoothShare.STATUS_SUCCESS) {
+                    status = BluetoothShare.STATUS_FILE_ERROR;
+                }
             }
         }
         return status;
@@ -524,8 +594,13 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
 
     private BluetoothOppReceiveFileInfo processShareInfo() {
         if (D) Log.d(TAG, "processShareInfo() " + mInfo.mId);
-        BluetoothOppReceiveFileInfo fileInfo = BluetoothOppReceiveFileInfo.generateFileInfo(
-                mContext, mInfo.mId);
+        BluetoothOppReceiveFileInfo fileInfo;
+        if (mResumePartial != null) {
+            fileInfo = BluetoothOppResume.openPartial(mContext, mResumePartial, mResumeOffset,
+                    mInfo.mTotalBytes);
+        } else {
+            fileInfo = BluetoothOppReceiveFileInfo.generateFileInfo(mContext, mInfo.mId);
+        }
         if (V) {
             Log.v(TAG, "Generate BluetoothOppReceiveFileInfo:");
             Log.v(TAG, "filename  :" + fileInfo.mFileName);
@@ -549,6 +624,8 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
             }
 
             objectCount = (Long) request.getHeader(HeaderSet.COUNT);
+            mPeerSupportsResume = BluetoothOppResume.isSupported(
+                    (byte[])request.getHeader(HeaderSet.APPLICATION_PARAMETER));
         } catch (IOException e) {
             Log.e(TAG, e.toString());
             return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
@@ -574,6 +651,7 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler implemen
             mContext.sendBroadcast(intent, Constants.HANDOVER_STATUS_PERMISSION);
         }
         mTimestamp = System.currentTimeMillis();
+        reply.setHeader(HeaderSet.APPLICATION_PARAMETER, BluetoothOppResume.getSupportedParams());
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
@@ -64,6 +64,12 @@ public interface BluetoothOppObexSession {
 
     int MSG_CONNECT_TIMEOUT = 4;
 
+    /**
+     * Message to notify when an outbound share lost its link to a peer that
+     * can resume it. arg1 is the byte offset to resume from.
+     */
+    int MSG_SESSION_LINK_LOST = 5;
+
     int SESSION_TIMEOUT = 50000;
 
     void start(Handler sessionHandler, int numShares);
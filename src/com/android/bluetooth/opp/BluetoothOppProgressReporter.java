@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+/**
+ * Reports the byte position of a running transfer.
+ *
+ * Every packet updates an in-memory live position, which the notification
+ * and transfer UI read through {@link #getLiveBytes}. The share row itself
+ * is only written when enough time has passed or enough bytes have moved
+ * since the last write, since each write costs a database update, a content
+ * observer notification and a share table resync in BluetoothOppService.
+ * {@link #finish} always writes the last position. A registered
+ * {@link Listener} hears about every change of the whole percentage, which is
+ * what the notification shows.
+ */
+class BluetoothOppProgressReporter {
+    private static final String TAG = "BtOppProgress";
+    private static final boolean V = Constants.VERBOSE;
+
+    /** Write at least this often while bytes are moving. */
+    private static final long PERSIST_INTERVAL_MS = 500;
+
+    /** Write early if this many bytes moved since the last write. */
+    private static final int PERSIST_BYTES = 512 * 1024;
+
+    // share id -> live byte position, for transfers in progress
+    private static final SparseIntArray sLiveBytes = new SparseIntArray();
+
+    interface Listener {
+        void onProgressChanged(int id, int percent);
+    }
+
+    private static volatile Listener sListener;
+
+    private final Context mContext;
+    private final int mId;
+    private final Uri mContentUri;
+    private final long mTotal;
+    private int mPercent = -1;
+    private int mPosition;
+    private int mPersistedPosition = -1;
+    private long mPersistedTime;
+    private int mWrites;
+    private int mUpdates;
+
+    BluetoothOppProgressReporter(Context context, int id, long total) {
+        mContext = context;
+        mId = id;
+        mTotal = total;
+        mContentUri = Uri.parse(BluetoothShare.CONTENT_URI + "/" + id);
+    }
+
+    /**
+     * Record that {@code position} bytes have been transferred so far.
+     */
+    void update(int position) {
+        mPosition = position;
+        mUpdates++;
+        synchronized (sLiveBytes) {
+            sLiveBytes.put(mId, position);
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (mPersistedPosition < 0 || now - mPersistedTime >= PERSIST_INTERVAL_MS
+                || position - mPersistedPosition >= PERSIST_BYTES) {
+            persist(now);
+        }
+        int percent = mTotal > 0 ? (int) (position * 100L / mTotal) : 0;
+        Listener listener = sListener;
+        if (percent != mPercent && listener != null) {
+            listener.onProgressChanged(mId, percent);
+        }
+        mPercent = percent;
+    }
+
+    /**
+     * Write the last reported position if it has not been written yet and
+     * stop publishing a live position for this share.
+     */
+    void finish() {
+        if (mUpdates > 0 && mPosition != mPersistedPosition) {
+            persist(SystemClock.elapsedRealtime());
+        }
+        synchronized (sLiveBytes) {
+            sLiveBytes.delete(mId);
+        }
+        if (V) Log.v(TAG, "Share " + mId + ": " + mUpdates + " progress updates, "
+                + mWrites + " database writes");
+    }
+
+    private void persist(long now) {
+        ContentValues updateValues = new ContentValues();
+        updateValues.put(BluetoothShare.CURRENT_BYTES, mPosition);
+        mContext.getContentResolver().update(mContentUri, updateValues, null, null);
+        mPersistedPosition = mPosition;
+        mPersistedTime = now;
+        mWrites++;
+    }
+
+    static void setListener(Listener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * @return the live position of share {@code id} if it is transferring,
+     *         otherwise {@code persistedBytes} as read from the database
+     */
+    static int getLiveBytes(int id, int persistedBytes) {
+        synchronized (sLiveBytes) {
+            int live = sLiveBytes.get(id, -1);
+            return live > persistedBytes ? live : persistedBytes;
+        }
+    }
+}
@@ -33,6 +33,7 @@
 package com.android.bluetooth.opp;
 
 import android.content.ContentProvider;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -64,7 +65,10 @@ public final class BluetoothOppProvider extends ContentProvider {
     private static final String DB_NAME = "btopp.db";
 
     /** Current database version */
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 2;
+
+    /** Database version that added the share indexes */
+    private static final int DB_VERSION_INDEXES = 2;
 
     /** Database version from which upgrading is a nop */
     private static final int DB_VERSION_NOP_UPGRADE_FROM = 0;
@@ -130,6 +134,7 @@ public final class BluetoothOppProvider extends ContentProvider {
         public void onCreate(final SQLiteDatabase db) {
             if (V) Log.v(TAG, "populating new database");
             createTable(db);
+            createIndexes(db);
         }
 
         //TODO: use this function to check garbage transfer left in db, for example,
@@ -162,10 +167,17 @@ public final class BluetoothOppProvider extends ContentProvider {
                 // from NOP_FROM is the same as upgrading from NOP_TO.
                 oldV = DB_VERSION_NOP_UPGRADE_TO;
             }
+            if (oldV == DB_VERSION_NOP_UPGRADE_TO && newV >= DB_VERSION_INDEXES) {
+                Log.i(TAG, "Upgrading downloads database from version " + oldV + " to "
+                        + newV + ", adding indexes");
+                createIndexes(db);
+                return;
+            }
             Log.i(TAG, "Upgrading downloads database from version " + oldV + " to "
                     + newV + ", which will destroy all old data");
             dropTable(db);
             createTable(db);
+            createIndexes(db);
         }
 
     }
@@ -188,6 +200,28 @@ public final class BluetoothOppProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Index the columns the service, notification and history queries filter
+     * and sort on. Direction is only ever used together with status, so it
+     * shares an index with it.
+     */
+    private void createIndexes(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_status ON " + DB_TABLE
+                    + "(" + BluetoothShare.STATUS + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_direction_status ON "
+                    + DB_TABLE + "(" + BluetoothShare.DIRECTION + ", " + BluetoothShare.STATUS
+                    + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_visibility ON " + DB_TABLE
+                    + "(" + BluetoothShare.VISIBILITY + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_timestamp ON " + DB_TABLE
+                    + "(" + BluetoothShare.TIMESTAMP + ")");
+        } catch (SQLException ex) {
+            Log.e(TAG, "couldn't create indexes in downloads database");
+            throw ex;
+        }
+    }
+
     private void dropTable(SQLiteDatabase db) {
         try {
             db.execSQL("DROP TABLE IF EXISTS " + DB_TABLE);
@@ -237,6 +271,73 @@ public final class BluetoothOppProvider extends ContentProvider {
             throw new IllegalArgumentException("Unknown/Invalid URI " + uri);
         }
 
+        Context context = getContext();
+        context.startService(new Intent(context, BluetoothOppService.class));
+
+        long rowID = insertShare(db, values);
+
+        Uri ret = null;
+
+        if (rowID != -1) {
+            context.startService(new Intent(context, BluetoothOppService.class));
+            ret = Uri.parse(BluetoothShare.CONTENT_URI + "/" + rowID);
+            // Notify on the new row so observers can sync just that row.
+            context.getContentResolver().notifyChange(ret, null);
+            trimDatabaseIfNeeded(rowID - 1, rowID);
+        } else {
+            if (D) Log.d(TAG, "couldn't insert into btopp database");
+            }
+
+        return ret;
+    }
+
+    /**
+     * Insert all shares in one transaction, for multi-file sends. Observers
+     * get a single change notification on the share list instead of one per
+     * row.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        if (sURIMatcher.match(uri) != SHARES) {
+            if (D) Log.d(TAG, "calling bulkInsert on an unknown/invalid URI: " + uri);
+            throw new IllegalArgumentException("Unknown/Invalid URI " + uri);
+        }
+
+        int count = 0;
+        long firstRowID = -1;
+        long lastRowID = -1;
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                long rowID = insertShare(db, value);
+                if (rowID == -1) {
+                    if (D) Log.d(TAG, "couldn't insert into btopp database");
+                    continue;
+                }
+                if (firstRowID == -1) {
+                    firstRowID = rowID;
+                }
+                lastRowID = rowID;
+                count++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (V) Log.v(TAG, "Bulk inserted " + count + " of " + values.length + " shares");
+
+        if (count > 0) {
+            Context context = getContext();
+            context.startService(new Intent(context, BluetoothOppService.class));
+            context.getContentResolver().notifyChange(BluetoothShare.CONTENT_URI, null);
+            trimDatabaseIfNeeded(firstRowID - 1, lastRowID);
+        }
+        return count;
+    }
+
+    private long insertShare(SQLiteDatabase db, ContentValues values) {
         ContentValues filteredValues = new ContentValues();
 
         copyString(BluetoothShare.URI, values, filteredValues);
@@ -275,22 +376,25 @@ public final class BluetoothOppProvider extends ContentProvider {
         }
         filteredValues.put(BluetoothShare.TIMESTAMP, ts);
 
-        Context context = getContext();
-        context.startService(new Intent(context, BluetoothOppService.class));
-
-        long rowID = db.insert(DB_TABLE, null, filteredValues);
-
-        Uri ret = null;
+        return db.insert(DB_TABLE, null, filteredValues);
+    }
 
-        if (rowID != -1) {
-            context.startService(new Intent(context, BluetoothOppService.class));
-            ret = Uri.parse(BluetoothShare.CONTENT_URI + "/" + rowID);
-            context.getContentResolver().notifyChange(uri, null);
-        } else {
-            if (D) Log.d(TAG, "couldn't insert into btopp database");
+    /**
+     * Trim old shares if the rows after {@code fromRowID} up to
+     * {@code toRowID} crossed a multiple of the trim interval. Row ids only
+     * grow, so they double as a persistent insert count.
+     */
+    private void trimDatabaseIfNeeded(long fromRowID, long toRowID) {
+        if (toRowID / Constants.TRIM_DATABASE_INSERT_INTERVAL
+                == fromRowID / Constants.TRIM_DATABASE_INSERT_INTERVAL) {
+            return;
+        }
+        final ContentResolver resolver = getContext().getContentResolver();
+        new Thread("trimDatabase") {
+            public void run() {
+                BluetoothOppService.trimDatabase(resolver);
             }
-
-        return ret;
+        }.start();
     }
 
     @Override
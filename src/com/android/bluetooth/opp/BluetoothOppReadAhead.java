@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reads a file ahead of the OBEX writer.
+ *
+ * A reader thread fills packet-sized buffers from the source stream while the
+ * session thread sends the previous ones, so slow content providers or SD
+ * card reads overlap with radio writes. The buffers come from a small fixed
+ * pool: the session hands each one back with {@link #recycle} once written,
+ * which also bounds how far the reader can run ahead.
+ */
+class BluetoothOppReadAhead {
+    private static final String TAG = "BtOppReadAhead";
+    private static final boolean V = Constants.VERBOSE;
+
+    /** Buffers in the pool; at least two so reading and writing overlap. */
+    private static final int POOL_SIZE = 4;
+
+    static final class Buffer {
+        final byte[] mData;
+        int mLength;
+
+        Buffer(int size) {
+            mData = new byte[size];
+        }
+    }
+
+    // Queued by the reader after the last buffer, or after a read error
+    private static final Buffer END = new Buffer(0);
+
+    private final InputStream mInput;
+    private final long mLength;
+    private final ArrayBlockingQueue<Buffer> mFree;
+    private final ArrayBlockingQueue<Buffer> mFilled;
+    private final Thread mReader;
+
+    private volatile boolean mClosed;
+    private volatile IOException mError;
+
+    /**
+     * @param input the stream to read; owned by the caller
+     * @param bufferSize size of each buffer, normally the OBEX max packet size
+     * @param length number of bytes to read from {@code input}
+     */
+    BluetoothOppReadAhead(InputStream input, int bufferSize, long length) {
+        mInput = input;
+        mLength = length;
+        mFree = new ArrayBlockingQueue<Buffer>(POOL_SIZE);
+        mFilled = new ArrayBlockingQueue<Buffer>(POOL_SIZE + 1);
+        for (int i = 0; i < POOL_SIZE; i++) {
+            mFree.add(new Buffer(bufferSize));
+        }
+        mReader = new Thread("BtOpp ReadAhead") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                readLoop();
+            }
+        };
+    }
+
+    void start() {
+        mReader.start();
+    }
+
+    /**
+     * Wait for the next filled buffer.
+     *
+     * @return the buffer, or null if the calling thread was interrupted; the
+     *         interrupt status is kept in that case
+     * @throws IOException if the source failed or ended before the expected
+     *         length
+     */
+    Buffer take() throws IOException {
+        Buffer buffer;
+        try {
+            buffer = mFilled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (buffer == END) {
+            // keep reporting the end to any later call
+            mFilled.offer(END);
+            if (mError != null) throw mError;
+            throw new IOException("Unexpected end of file");
+        }
+        return buffer;
+    }
+
+    /**
+     * Return a buffer obtained from {@link #take} to the pool.
+     */
+    void recycle(Buffer buffer) {
+        mFree.offer(buffer);
+    }
+
+    /**
+     * Stop reading and wait for the reader to finish any read in progress, so
+     * the caller may reposition or close the source stream afterwards.
+     */
+    void close() {
+        mClosed = true;
+        mReader.interrupt();
+        // The caller may already be interrupted (a cancelled session is), so
+        // keep waiting until the reader is out of read() and re-assert the
+        // interrupt afterwards.
+        boolean interrupted = false;
+        while (mReader.isAlive()) {
+            try {
+                mReader.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readLoop() {
+        long remaining = mLength;
+        try {
+            while (remaining > 0 && !mClosed) {
+                Buffer buffer = mFree.take();
+                int size = (int) Math.min(buffer.mData.length, remaining);
+                int done = 0;
+                while (done < size) {
+                    int got = mInput.read(buffer.mData, done, size - done);
+                    if (got <= 0) break;
+                    done += got;
+                }
+                if (done == 0) {
+                    mFree.offer(buffer);
+                    break;
+                }
+                buffer.mLength = done;
+                remaining -= done;
+                mFilled.put(buffer);
+            }
+        } catch (InterruptedException e) {
+            if (V) Log.v(TAG, "Reader interrupted with " + remaining + " bytes left");
+        } catch (IOException e) {
+            if (!mClosed) {
+                Log.e(TAG, "Error reading file: " + e);
+                mError = e;
+            }
+        }
+        mFilled.offer(END);
+    }
+}
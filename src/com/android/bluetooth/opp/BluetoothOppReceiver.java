@@ -34,7 +34,6 @@ package com.android.bluetooth.opp;
 
 import com.android.bluetooth.R;
 
-import android.app.NotificationManager;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothDevicePicker;
@@ -119,12 +118,8 @@ public class BluetoothOppReceiver extends BroadcastReceiver {
             in.setDataAndNormalize(uri);
             context.startActivity(in);
 
-            NotificationManager notMgr = (NotificationManager)context
-                    .getSystemService(Context.NOTIFICATION_SERVICE);
-            if (notMgr != null) {
-                notMgr.cancel((int)ContentUris.parseId(intent.getData()));
-                if (V) Log.v(TAG, "notMgr.cancel called");
-            }
+            BluetoothOppNotification.cancel(context, (int)ContentUris.parseId(intent.getData()));
+            if (V) Log.v(TAG, "notification cancelled");
         } else if (action.equals(BluetoothShare.INCOMING_FILE_CONFIRMATION_REQUEST_ACTION)) {
             if (V) Log.v(TAG, "Receiver INCOMING_FILE_NOTIFICATION");
 
@@ -161,12 +156,8 @@ public class BluetoothOppReceiver extends BroadcastReceiver {
                 context.startActivity(in);
             }
 
-            NotificationManager notMgr = (NotificationManager)context
-                    .getSystemService(Context.NOTIFICATION_SERVICE);
-            if (notMgr != null) {
-                notMgr.cancel((int)ContentUris.parseId(intent.getData()));
-                if (V) Log.v(TAG, "notMgr.cancel called");
-                }
+            BluetoothOppNotification.cancel(context, (int)ContentUris.parseId(intent.getData()));
+            if (V) Log.v(TAG, "notification cancelled");
         } else if (action.equals(Constants.ACTION_OPEN_OUTBOUND_TRANSFER)) {
             if (V) Log.v(TAG, "Received ACTION_OPEN_OUTBOUND_TRANSFER.");
 
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Resuming of transfers interrupted by link loss.
+ *
+ * OPP has no resume procedure, so this uses OBEX application parameters that
+ * only this implementation understands. Both ends advertise support, the
+ * sender in its CONNECT request and the receiver in its CONNECT response.
+ * When a send to such a receiver loses the link, the sender reconnects and
+ * repeats the PUT with the offset to continue from. The receiver appends to
+ * the partial file it kept from the failed share, or answers
+ * OBEX_HTTP_PRECON_FAILED if it has none, and the sender then falls back to
+ * sending the whole file. Peers that do not advertise support never see the
+ * offset parameter and always get a full re-send, and a receiver keeps no
+ * partial file for them.
+ *
+ * A resumed share skips the incoming file confirmation only if the user
+ * confirmed the share it continues; otherwise the user is asked again.
+ */
+final class BluetoothOppResume {
+    private static final String TAG = "BtOppResume";
+    private static final boolean V = Constants.VERBOSE;
+
+    /** Application parameter tags, from the range OPP leaves unassigned. */
+    private static final byte TAG_RESUME_SUPPORTED = (byte) 0xF0;
+    private static final byte TAG_RESUME_OFFSET = (byte) 0xF1;
+
+    /** Reconnect attempts per batch before the transfer is failed. */
+    static final int MAX_ATTEMPTS = 3;
+
+    /** Delay before reconnecting after the link dropped. */
+    static final int RETRY_DELAY_MS = 2000;
+
+    /** How long a receiver keeps a partial file for the sender to resume. */
+    private static final long PARTIAL_KEEP_MS = 30 * 60 * 1000;
+
+    private static final String WHERE_LINK_LOSS = BluetoothShare.DIRECTION + "="
+            + BluetoothShare.DIRECTION_INBOUND + " AND (" + BluetoothShare.STATUS + "="
+            + BluetoothShare.STATUS_OBEX_DATA_ERROR + " OR " + BluetoothShare.STATUS + "="
+            + BluetoothShare.STATUS_CONNECTION_ERROR + ") AND " + BluetoothShare._DATA
+            + " IS NOT NULL";
+
+    private BluetoothOppResume() {}
+
+    /**
+     * @return true if a transfer that failed with {@code status} may be
+     *         resumed once the link is back
+     */
+    static boolean isLinkLoss(int status) {
+        return status == BluetoothShare.STATUS_OBEX_DATA_ERROR
+                || status == BluetoothShare.STATUS_CONNECTION_ERROR;
+    }
+
+    /** @return the application parameters advertising support in a CONNECT request or response */
+    static byte[] getSupportedParams() {
+        return new byte[] { TAG_RESUME_SUPPORTED, 1, 1 };
+    }
+
+    /** @return whether CONNECT parameters {@code params} advertise resume support */
+    static boolean isSupported(byte[] params) {
+        return findParam(params, TAG_RESUME_SUPPORTED, 1) >= 0;
+    }
+
+    /** @return the application parameters asking to continue a PUT at {@code offset} */
+    static byte[] getOffsetParams(long offset) {
+        byte[] params = new byte[10];
+        params[0] = TAG_RESUME_OFFSET;
+        params[1] = 8;
+        for (int i = 0; i < 8; i++) {
+            params[2 + i] = (byte) (offset >>> (56 - 8 * i));
+        }
+        return params;
+    }
+
+    /** @return the offset requested by PUT parameters {@code params}, or 0 for none */
+    static long getOffset(byte[] params) {
+        int index = findParam(params, TAG_RESUME_OFFSET, 8);
+        if (index < 0) {
+            return 0;
+        }
+        long offset = 0;
+        for (int i = 0; i < 8; i++) {
+            offset = (offset << 8) | (params[index + i] & 0xFF);
+        }
+        return offset;
+    }
+
+    // returns the index of the value of tag, or -1 if absent or of another length
+    private static int findParam(byte[] params, byte tag, int length) {
+        if (params == null) {
+            return -1;
+        }
+        int i = 0;
+        while (i + 2 <= params.length) {
+            int valueLength = params[i + 1] & 0xFF;
+            if (params[i] == tag && valueLength == length && i + 2 + length <= params.length) {
+                return i + 2;
+            }
+            i += 2 + valueLength;
+        }
+        return -1;
+    }
+
+    /**
+     * A file kept from an inbound share that lost its link.
+     */
+    static final class Partial {
+        final int mId;
+        final String mFileName;
+        /** USER_CONFIRMATION of the share, if the user confirmed it; else PENDING */
+        final int mConfirmation;
+
+        Partial(int id, String fileName, int confirmation) {
+            mId = id;
+            mFileName = fileName;
+            mConfirmation = confirmation;
+        }
+
+        boolean isConfirmed() {
+            return mConfirmation != BluetoothShare.USER_CONFIRMATION_PENDING;
+        }
+    }
+
+    /**
+     * Find the partial file of a recent share from {@code destination} for
+     * the same object that holds at least {@code offset} bytes.
+     */
+    static Partial findPartial(Context context, String destination, String name, long length,
+            long offset) {
+        long cutoff = System.currentTimeMillis() - PARTIAL_KEEP_MS;
+        Cursor cursor = context.getContentResolver().query(BluetoothShare.CONTENT_URI,
+                new String[] { BluetoothShare._ID, BluetoothShare._DATA,
+                        BluetoothShare.USER_CONFIRMATION },
+                WHERE_LINK_LOSS + " AND " + BluetoothShare.DESTINATION + "=? AND "
+                        + BluetoothShare.FILENAME_HINT + "=? AND "
+                        + BluetoothShare.TOTAL_BYTES + "=? AND "
+                        + BluetoothShare.TIMESTAMP + ">=" + cutoff,
+                new String[] { destination, name, Long.toString(length) },
+                BluetoothShare._ID + " DESC");
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String fileName = cursor.getString(1);
+                if (new File(fileName).length() >= offset) {
+                    int confirmation = cursor.getInt(2);
+                    if (confirmation != BluetoothShare.USER_CONFIRMATION_CONFIRMED
+                            && confirmation != BluetoothShare.USER_CONFIRMATION_HANDOVER_CONFIRMED) {
+                        confirmation = BluetoothShare.USER_CONFIRMATION_PENDING;
+                    }
+                    return new Partial(cursor.getInt(0), fileName, confirmation);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (V) Log.v(TAG, "No partial " + name + " from " + destination + " at " + offset);
+        return null;
+    }
+
+    /**
+     * Open {@code partial} for appending at {@code offset}, dropping anything
+     * past it, and hand it over from its old share row to the resumed one.
+     */
+    static BluetoothOppReceiveFileInfo openPartial(Context context, Partial partial,
+            long offset, long length) {
+        try {
+            RandomAccessFile file = new RandomAccessFile(partial.mFileName, "rw");
+            try {
+                file.setLength(offset);
+            } finally {
+                file.close();
+            }
+            FileOutputStream output = new FileOutputStream(partial.mFileName, true);
+            context.getContentResolver().delete(
+                    ContentUris.withAppendedId(BluetoothShare.CONTENT_URI, partial.mId),
+                    null, null);
+            return new BluetoothOppReceiveFileInfo(partial.mFileName, length, output, 0);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to reopen " + partial.mFileName + ": " + e);
+            return new BluetoothOppReceiveFileInfo(BluetoothShare.STATUS_FILE_ERROR);
+        }
+    }
+
+    /**
+     * Delete partial files that were not resumed in time, or whose share the
+     * user already removed from the transfer history.
+     */
+    static void deleteStalePartials(ContentResolver resolver) {
+        long cutoff = System.currentTimeMillis() - PARTIAL_KEEP_MS;
+        String where = WHERE_LINK_LOSS + " AND (" + BluetoothShare.TIMESTAMP + "<" + cutoff
+                + " OR " + BluetoothShare.VISIBILITY + "=" + BluetoothShare.VISIBILITY_HIDDEN
+                + ")";
+        Cursor cursor = resolver.query(BluetoothShare.CONTENT_URI,
+                new String[] { BluetoothShare._ID, BluetoothShare._DATA }, where, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            ContentValues values = new ContentValues();
+            values.putNull(BluetoothShare._DATA);
+            while (cursor.moveToNext()) {
+                new File(cursor.getString(1)).delete();
+                resolver.update(ContentUris.withAppendedId(BluetoothShare.CONTENT_URI,
+                        cursor.getLong(0)), values, null, null);
+            }
+            if (V) Log.v(TAG, "Deleted " + cursor.getCount() + " stale partial files");
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -76,6 +76,9 @@ public class BluetoothOppSendFileInfo {
 
     public final long mLength;
 
+    /** whether a send has read from mInputStream, see {@link #reposition} */
+    boolean mStreamUsed;
+
     /** for media file */
     public BluetoothOppSendFileInfo(String fileName, String type, long length,
             FileInputStream inputStream, int status) {
@@ -193,4 +196,31 @@ public class BluetoothOppSendFileInfo {
 
         return new BluetoothOppSendFileInfo(fileName, contentType, length, is, 0);
     }
+
+    /**
+     * Position the stream at {@code offset} for an attempt at sending this
+     * file. An earlier attempt may have read past any offset, including 0,
+     * before losing the link. A stream that can't seek, such as a pipe from a
+     * content provider, is closed and {@code uri} opened again instead, to be
+     * sent from the start.
+     *
+     * @return this, positioned at offset, or the reopened file info, which
+     *         may be SEND_FILE_INFO_ERROR
+     */
+    BluetoothOppSendFileInfo reposition(Context context, Uri uri, String type, long offset) {
+        if (!mStreamUsed && offset == 0) {
+            return this;
+        }
+        try {
+            mInputStream.getChannel().position(offset);
+            return this;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to position " + mFileName + " at " + offset + ", reopening: " + e);
+        }
+        try {
+            mInputStream.close();
+        } catch (IOException ignored) {
+        }
+        return generateFileInfo(context, uri, type);
+    }
 }
@@ -32,6 +32,7 @@
 
 package com.android.bluetooth.opp;
 
+import com.android.bluetooth.R;
 import com.google.android.collect.Lists;
 import javax.obex.ObexTransport;
 
@@ -39,6 +40,7 @@ import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -46,8 +48,6 @@ import android.content.IntentFilter;
 import android.database.CharArrayBuffer;
 import android.database.ContentObserver;
 import android.database.Cursor;
-import android.media.MediaScannerConnection;
-import android.media.MediaScannerConnection.MediaScannerConnectionClient;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.IBinder;
@@ -60,6 +60,8 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
 
 /**
  * Performs the background Bluetooth OPP transfer. It also starts thread to
@@ -83,6 +85,12 @@ public class BluetoothOppService extends Service {
             if (V) Log.v(TAG, "ContentObserver received notification");
             updateFromProvider();
         }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (V) Log.v(TAG, "ContentObserver received notification for " + uri);
+            updateFromProvider(uri);
+        }
     }
 
     private static final String TAG = "BtOppService";
@@ -95,13 +103,42 @@ public class BluetoothOppService extends Service {
 
     private boolean mPendingUpdate;
 
+    /** Set when the next update must re-read every share, not just the dirty ones. */
+    private boolean mPendingFullUpdate;
+
+    /** Shares whose rows changed since the last update, in id order. */
+    private final TreeSet<Integer> mDirtyShareIds = new TreeSet<Integer>();
+
+    /** The columns of a share row that the service keeps in BluetoothOppShareInfo. */
+    private static final String[] SHARE_PROJECTION = new String[] {
+        BluetoothShare._ID,
+        BluetoothShare.URI,
+        BluetoothShare.FILENAME_HINT,
+        BluetoothShare._DATA,
+        BluetoothShare.MIMETYPE,
+        BluetoothShare.DIRECTION,
+        BluetoothShare.DESTINATION,
+        BluetoothShare.VISIBILITY,
+        BluetoothShare.USER_CONFIRMATION,
+        BluetoothShare.STATUS,
+        BluetoothShare.TOTAL_BYTES,
+        BluetoothShare.CURRENT_BYTES,
+        BluetoothShare.TIMESTAMP,
+        Constants.MEDIA_SCANNED
+    };
+
     private UpdateThread mUpdateThread;
 
     private ArrayList<BluetoothOppShareInfo> mShares;
 
     private ArrayList<BluetoothOppBatch> mBatchs;
 
-    private BluetoothOppTransfer mTransfer;
+    // batch id -> running outbound transfer; changed by the update thread and
+    // cancelled from the handler, so accessed under its own lock
+    private final HashMap<Integer, BluetoothOppTransfer> mTransfers =
+            new HashMap<Integer, BluetoothOppTransfer>();
+
+    private int mMaxConcurrentTransfers;
 
     private BluetoothOppTransfer mServerTransfer;
 
@@ -125,7 +162,7 @@ public class BluetoothOppService extends Service {
 
     private boolean mListenStarted = false;
 
-    private boolean mMediaScanInProgress;
+    private BluetoothOppMediaScanner mMediaScanner;
 
     private int mIncomingRetries = 0;
 
@@ -154,16 +191,14 @@ public class BluetoothOppService extends Service {
         mObserver = new BluetoothShareContentObserver();
         getContentResolver().registerContentObserver(BluetoothShare.CONTENT_URI, true, mObserver);
         mBatchId = 1;
+        mMaxConcurrentTransfers = Math.max(1,
+                getResources().getInteger(R.integer.max_concurrent_opp_transfers));
         mNotifier = new BluetoothOppNotification(this);
         mNotifier.mNotificationMgr.cancelAll();
         mNotifier.updateNotification();
-
-        final ContentResolver contentResolver = getContentResolver();
-        new Thread("trimDatabase") {
-            public void run() {
-                trimDatabase(contentResolver);
-            }
-        }.start();
+        BluetoothOppProgressReporter.setListener(mNotifier);
+        mMediaScanner = new BluetoothOppMediaScanner(this, mHandler, MEDIA_SCANNED,
+                MEDIA_SCANNED_FAILED);
 
         IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
         registerReceiver(mBluetoothReceiver, filter);
@@ -177,6 +212,15 @@ public class BluetoothOppService extends Service {
         }
         if (V) BluetoothOppPreference.getInstance(this).dump();
         updateFromProvider();
+
+        // Partials otherwise only expire when the provider trims, which
+        // takes a number of inserts that may never come.
+        final ContentResolver resolver = getContentResolver();
+        new Thread("deleteStalePartials") {
+            public void run() {
+                BluetoothOppResume.deleteStalePartials(resolver);
+            }
+        }.start();
     }
 
     @Override
@@ -228,10 +272,14 @@ public class BluetoothOppService extends Service {
                        mServerTransfer.onBatchCanceled();
                        mServerTransfer =null;
                     }
-                    //Stop Active OUTBOUND Transfer
-                    if(mTransfer != null){
-                       mTransfer.onBatchCanceled();
-                       mTransfer =null;
+                    //Stop Active OUTBOUND Transfers
+                    ArrayList<BluetoothOppTransfer> transfers;
+                    synchronized (mTransfers) {
+                        transfers = new ArrayList<BluetoothOppTransfer>(mTransfers.values());
+                        mTransfers.clear();
+                    }
+                    for (BluetoothOppTransfer transfer : transfers) {
+                        transfer.onBatchCanceled();
                     }
                     synchronized (BluetoothOppService.this) {
                         if (mUpdateThread == null) {
@@ -254,9 +302,7 @@ public class BluetoothOppService extends Service {
                     updateValues.put(BluetoothShare.MIMETYPE, getContentResolver().getType(
                             Uri.parse(msg.obj.toString())));
                     getContentResolver().update(contentUri, updateValues, null, null);
-                    synchronized (BluetoothOppService.this) {
-                        mMediaScanInProgress = false;
-                    }
+                    mMediaScanner.resultHandled(msg.arg1);
                     break;
                 case MEDIA_SCANNED_FAILED:
                     Log.v(TAG, "Update mInfo.id " + msg.arg1 + " for MEDIA_SCANNED_FAILED");
@@ -265,9 +311,7 @@ public class BluetoothOppService extends Service {
                     updateValues1.put(Constants.MEDIA_SCANNED,
                             Constants.MEDIA_SCANNED_SCANNED_FAILED);
                     getContentResolver().update(contentUri1, updateValues1, null, null);
-                    synchronized (BluetoothOppService.this) {
-                        mMediaScanInProgress = false;
-                    }
+                    mMediaScanner.resultHandled(msg.arg1);
                     break;
                 case BluetoothOppRfcommListener.MSG_INCOMING_BTOPP_CONNECTION:
                     if (D) Log.d(TAG, "Get incoming connection");
@@ -343,6 +387,8 @@ public class BluetoothOppService extends Service {
         if (V) Log.v(TAG, "onDestroy");
         super.onDestroy();
         getContentResolver().unregisterContentObserver(mObserver);
+        BluetoothOppProgressReporter.setListener(null);
+        mMediaScanner.close();
         unregisterReceiver(mBluetoothReceiver);
         mSocketListener.stop();
 
@@ -398,7 +444,31 @@ public class BluetoothOppService extends Service {
     };
 
     private void updateFromProvider() {
+        updateFromProvider(null);
+    }
+
+    /**
+     * Schedule a sync of the local share list with the provider.
+     *
+     * @param uri the row that changed, or null or the table URI if any row
+     *        may have changed
+     */
+    private void updateFromProvider(Uri uri) {
         synchronized (BluetoothOppService.this) {
+            long id = -1;
+            if (uri != null && uri.getPathSegments().size() == 2) {
+                try {
+                    id = ContentUris.parseId(uri);
+                } catch (NumberFormatException e) {
+                    id = -1;
+                }
+            }
+            if (id < 0) {
+                mPendingFullUpdate = true;
+                mDirtyShareIds.clear();
+            } else if (!mPendingFullUpdate) {
+                mDirtyShareIds.add((int) id);
+            }
             mPendingUpdate = true;
             if (mUpdateThread == null) {
                 mUpdateThread = new UpdateThread();
@@ -417,6 +487,8 @@ public class BluetoothOppService extends Service {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
             boolean keepService = false;
+            boolean fullUpdate;
+            ArrayList<Integer> dirtyIds;
             for (;;) {
                 synchronized (BluetoothOppService.this) {
                     if (mUpdateThread != this) {
@@ -434,9 +506,20 @@ public class BluetoothOppService extends Service {
                         return;
                     }
                     mPendingUpdate = false;
+                    fullUpdate = mPendingFullUpdate;
+                    mPendingFullUpdate = false;
+                    dirtyIds = new ArrayList<Integer>(mDirtyShareIds);
+                    mDirtyShareIds.clear();
+                }
+
+                if (!fullUpdate) {
+                    keepService = syncDirtyShares(dirtyIds);
+                    mNotifier.updateNotification();
+                    continue;
                 }
-                Cursor cursor = getContentResolver().query(BluetoothShare.CONTENT_URI, null, null,
-                        null, BluetoothShare._ID);
+
+                Cursor cursor = getContentResolver().query(BluetoothShare.CONTENT_URI,
+                        SHARE_PROJECTION, null, null, BluetoothShare._ID);
 
                 if (cursor == null) {
                     return;
@@ -557,6 +640,80 @@ public class BluetoothOppService extends Service {
 
     }
 
+    /**
+     * Re-read only the given rows and apply them to the local array, then
+     * re-evaluate every share in memory.
+     *
+     * @return true if any share still needs the service to stay alive
+     */
+    private boolean syncDirtyShares(ArrayList<Integer> dirtyIds) {
+        if (V) Log.v(TAG, "Incremental update of " + dirtyIds.size() + " shares");
+        ContentResolver resolver = getContentResolver();
+        for (Integer id : dirtyIds) {
+            int arrayPos = findShare(id);
+            Cursor cursor = resolver.query(
+                    ContentUris.withAppendedId(BluetoothShare.CONTENT_URI, id),
+                    SHARE_PROJECTION, null, null, null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                if (cursor.moveToFirst()) {
+                    if (arrayPos >= 0) {
+                        updateShare(cursor, arrayPos, userAccepted);
+                    } else {
+                        if (V) Log.v(TAG, "Array update: inserting " + id + " @ "
+                                + (-arrayPos - 1));
+                        insertShare(cursor, -arrayPos - 1);
+                    }
+                } else if (arrayPos >= 0) {
+                    if (V) Log.v(TAG, "Array update: removing " + id + " @ " + arrayPos);
+                    if (shouldScanFile(arrayPos)) {
+                        scanFile(null, arrayPos);
+                    }
+                    deleteShare(arrayPos);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        boolean keepService = false;
+        for (int arrayPos = 0; arrayPos < mShares.size(); arrayPos++) {
+            if (shouldScanFile(arrayPos) && (!scanFile(null, arrayPos))) {
+                keepService = true;
+            }
+            if (visibleNotification(arrayPos)) {
+                keepService = true;
+            }
+            if (needAction(arrayPos)) {
+                keepService = true;
+            }
+        }
+        return keepService;
+    }
+
+    /**
+     * @return the position of share {@code id} in mShares, which is sorted
+     *         by id, or {@code -(insertion point) - 1} if it is not there
+     */
+    private int findShare(int id) {
+        int low = 0;
+        int high = mShares.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midId = mShares.get(mid).mId;
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
     private void insertShare(Cursor cursor, int arrayPos) {
         String uriString = cursor.getString(cursor.getColumnIndexOrThrow(BluetoothShare.URI));
         Uri uri;
@@ -630,57 +787,30 @@ public class BluetoothOppService extends Service {
                     return;
                 }
             }
-            if (mBatchs.size() == 0) {
+            int i = findBatchWithTimeStamp(info.mTimestamp);
+            if (i != -1) {
+                if (V) Log.v(TAG, "Service add info " + info.mId + " to existing batch "
+                            + mBatchs.get(i).mId);
+                mBatchs.get(i).addShare(info);
+            } else {
+                boolean ongoing = mBatchs.size() > 0;
                 BluetoothOppBatch newBatch = new BluetoothOppBatch(this, info);
                 newBatch.mId = mBatchId;
                 mBatchId++;
                 mBatchs.add(newBatch);
-                if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
-                    if (V) Log.v(TAG, "Service create new Batch " + newBatch.mId
-                                + " for OUTBOUND info " + info.mId);
-                    mTransfer = new BluetoothOppTransfer(this, mPowerManager, newBatch);
-                } else if (info.mDirection == BluetoothShare.DIRECTION_INBOUND) {
-                    if (V) Log.v(TAG, "Service create new Batch " + newBatch.mId
-                                + " for INBOUND info " + info.mId);
-                    mServerTransfer = new BluetoothOppTransfer(this, mPowerManager, newBatch,
-                            mServerSession);
-                }
-
-                if (info.mDirection == BluetoothShare.DIRECTION_OUTBOUND && mTransfer != null) {
-                    if (V) Log.v(TAG, "Service start transfer new Batch " + newBatch.mId
-                                + " for info " + info.mId);
-                    mTransfer.start();
-                } else if (info.mDirection == BluetoothShare.DIRECTION_INBOUND
-                        && mServerTransfer != null) {
-                    if (V) Log.v(TAG, "Service start server transfer new Batch " + newBatch.mId
-                                + " for info " + info.mId);
-                    mServerTransfer.start();
-                }
-
-            } else {
-                int i = findBatchWithTimeStamp(info.mTimestamp);
-                if (i != -1) {
-                    if (V) Log.v(TAG, "Service add info " + info.mId + " to existing batch "
-                                + mBatchs.get(i).mId);
-                    mBatchs.get(i).addShare(info);
-                } else {
-                    // There is ongoing batch
-                    BluetoothOppBatch newBatch = new BluetoothOppBatch(this, info);
-                    newBatch.mId = mBatchId;
-                    mBatchId++;
-                    mBatchs.add(newBatch);
-                    if (V) Log.v(TAG, "Service add new Batch " + newBatch.mId + " for info " +
-                            info.mId);
-                    if (Constants.USE_TCP_DEBUG && !Constants.USE_TCP_SIMPLE_SERVER) {
-                        // only allow  concurrent serverTransfer in debug mode
-                        if (info.mDirection == BluetoothShare.DIRECTION_INBOUND) {
-                            if (V) Log.v(TAG, "TCP_DEBUG start server transfer new Batch " +
-                                    newBatch.mId + " for info " + info.mId);
-                            mServerTransfer = new BluetoothOppTransfer(this, mPowerManager,
-                                    newBatch, mServerSession);
-                            mServerTransfer.start();
-                        }
+                if (V) Log.v(TAG, "Service add new Batch " + newBatch.mId + " for info " +
+                        info.mId);
+                if (ongoing && Constants.USE_TCP_DEBUG && !Constants.USE_TCP_SIMPLE_SERVER) {
+                    // only allow  concurrent serverTransfer in debug mode
+                    if (info.mDirection == BluetoothShare.DIRECTION_INBOUND) {
+                        if (V) Log.v(TAG, "TCP_DEBUG start server transfer new Batch " +
+                                newBatch.mId + " for info " + info.mId);
+                        mServerTransfer = new BluetoothOppTransfer(this, mPowerManager,
+                                newBatch, mServerSession);
+                        mServerTransfer.start();
                     }
+                } else {
+                    startPendingBatches();
                 }
             }
         }
@@ -711,7 +841,7 @@ public class BluetoothOppService extends Service {
         if (info.mVisibility == BluetoothShare.VISIBILITY_VISIBLE
                 && newVisibility != BluetoothShare.VISIBILITY_VISIBLE
                 && (BluetoothShare.isStatusCompleted(info.mStatus) || newConfirm == BluetoothShare.USER_CONFIRMATION_PENDING)) {
-            mNotifier.mNotificationMgr.cancel(info.mId);
+            BluetoothOppNotification.cancel(this, info.mId);
         }
 
         info.mVisibility = newVisibility;
@@ -726,7 +856,7 @@ public class BluetoothOppService extends Service {
 
         if (!BluetoothShare.isStatusCompleted(info.mStatus)
                 && BluetoothShare.isStatusCompleted(newStatus)) {
-            mNotifier.mNotificationMgr.cancel(info.mId);
+            BluetoothOppNotification.cancel(this, info.mId);
         }
 
         info.mStatus = newStatus;
@@ -754,15 +884,15 @@ public class BluetoothOppService extends Service {
                     || batch.mStatus == Constants.BATCH_STATUS_FAILED) {
                 if (V) Log.v(TAG, "Batch " + batch.mId + " is finished");
                 if (batch.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
-                    if (mTransfer == null) {
-                        Log.e(TAG, "Unexpected error! mTransfer is null");
-                    } else if (batch.mId == mTransfer.getBatchId()) {
-                        mTransfer.stop();
+                    BluetoothOppTransfer transfer;
+                    synchronized (mTransfers) {
+                        transfer = mTransfers.remove(batch.mId);
+                    }
+                    if (transfer == null) {
+                        Log.e(TAG, "Unexpected error! no transfer for batch " + batch.mId);
                     } else {
-                        Log.e(TAG, "Unexpected error! batch id " + batch.mId
-                                + " doesn't match mTransfer id " + mTransfer.getBatchId());
+                        transfer.stop();
                     }
-                    mTransfer = null;
                 } else {
                     if (mServerTransfer == null) {
                         Log.e(TAG, "Unexpected error! mServerTransfer is null");
@@ -846,37 +976,82 @@ public class BluetoothOppService extends Service {
     private void removeBatch(BluetoothOppBatch batch) {
         if (V) Log.v(TAG, "Remove batch " + batch.mId);
         mBatchs.remove(batch);
-        BluetoothOppBatch nextBatch;
-        if (mBatchs.size() > 0) {
-            for (int i = 0; i < mBatchs.size(); i++) {
-                // we have a running batch
-                nextBatch = mBatchs.get(i);
-                if (nextBatch.mStatus == Constants.BATCH_STATUS_RUNNING) {
+        startPendingBatches();
+    }
+
+    /**
+     * Start pending batches in arrival order, as far as the transfer limits
+     * allow. Outbound batches to different devices run side by side, up to
+     * mMaxConcurrentTransfers, each on its own OBEX session; a batch to a
+     * device that already has an active batch waits for it. Inbound batches
+     * use the single server session and still run alone, and an inbound batch
+     * at the head of the queue holds back later outbound ones so it is not
+     * starved.
+     */
+    private void startPendingBatches() {
+        for (int i = 0; i < mBatchs.size(); i++) {
+            BluetoothOppBatch nextBatch = mBatchs.get(i);
+            if (nextBatch.mStatus != Constants.BATCH_STATUS_PENDING || isBatchActive(nextBatch)) {
+                continue;
+            }
+            if (nextBatch.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
+                if (mServerTransfer != null || getTransferCount() >= mMaxConcurrentTransfers) {
                     return;
-                } else {
-                    // just finish a transfer, start pending outbound transfer
-                    if (nextBatch.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
-                        if (V) Log.v(TAG, "Start pending outbound batch " + nextBatch.mId);
-                        mTransfer = new BluetoothOppTransfer(this, mPowerManager, nextBatch);
-                        mTransfer.start();
-                        return;
-                    } else if (nextBatch.mDirection == BluetoothShare.DIRECTION_INBOUND
-                            && mServerSession != null) {
-                        // have to support pending inbound transfer
-                        // if an outbound transfer and incoming socket happens together
-                        if (V) Log.v(TAG, "Start pending inbound batch " + nextBatch.mId);
-                        mServerTransfer = new BluetoothOppTransfer(this, mPowerManager, nextBatch,
-                                                                   mServerSession);
-                        mServerTransfer.start();
-                        if (nextBatch.getPendingShare().mConfirm ==
-                                BluetoothShare.USER_CONFIRMATION_CONFIRMED) {
-                            mServerTransfer.setConfirmed();
-                        }
-                        return;
-                    }
                 }
+                if (hasActiveBatchTo(nextBatch)) {
+                    continue;
+                }
+                if (V) Log.v(TAG, "Start pending outbound batch " + nextBatch.mId);
+                BluetoothOppTransfer transfer =
+                        new BluetoothOppTransfer(this, mPowerManager, nextBatch);
+                synchronized (mTransfers) {
+                    mTransfers.put(nextBatch.mId, transfer);
+                }
+                transfer.start();
+            } else if (nextBatch.mDirection == BluetoothShare.DIRECTION_INBOUND
+                    && mServerSession != null) {
+                if (mServerTransfer != null || getTransferCount() > 0) {
+                    return;
+                }
+                // have to support pending inbound transfer
+                // if an outbound transfer and incoming socket happens together
+                if (V) Log.v(TAG, "Start pending inbound batch " + nextBatch.mId);
+                mServerTransfer = new BluetoothOppTransfer(this, mPowerManager, nextBatch,
+                                                           mServerSession);
+                mServerTransfer.start();
+                if (nextBatch.getPendingShare().mConfirm ==
+                        BluetoothShare.USER_CONFIRMATION_CONFIRMED) {
+                    mServerTransfer.setConfirmed();
+                }
+                return;
+            }
+        }
+    }
+
+    private int getTransferCount() {
+        synchronized (mTransfers) {
+            return mTransfers.size();
+        }
+    }
+
+    private boolean isBatchActive(BluetoothOppBatch batch) {
+        synchronized (mTransfers) {
+            if (mTransfers.containsKey(batch.mId)) {
+                return true;
             }
         }
+        return mServerTransfer != null && mServerTransfer.getBatchId() == batch.mId;
+    }
+
+    private boolean hasActiveBatchTo(BluetoothOppBatch batch) {
+        for (int i = 0; i < mBatchs.size(); i++) {
+            BluetoothOppBatch other = mBatchs.get(i);
+            if (other != batch && isBatchActive(other)
+                    && other.mDestination.equals(batch.mDestination)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private boolean needAction(int arrayPos) {
@@ -892,18 +1067,16 @@ public class BluetoothOppService extends Service {
         return info.hasCompletionNotification();
     }
 
+    /**
+     * Queue the file of a share for media scanning.
+     *
+     * @return false if the file is already waiting for its scan result
+     */
     private boolean scanFile(Cursor cursor, int arrayPos) {
         BluetoothOppShareInfo info = mShares.get(arrayPos);
-        synchronized (BluetoothOppService.this) {
-            if (D) Log.d(TAG, "Scanning file " + info.mFilename);
-            if (!mMediaScanInProgress) {
-                mMediaScanInProgress = true;
-                new MediaScannerNotifier(this, info, mHandler);
-                return true;
-            } else {
-                return false;
-            }
-        }
+        boolean queued = mMediaScanner.scan(info);
+        if (D && queued) Log.d(TAG, "Scanning file " + info.mFilename);
+        return queued;
     }
 
     private boolean shouldScanFile(int arrayPos) {
@@ -913,8 +1086,12 @@ public class BluetoothOppService extends Service {
                 info.mConfirm != BluetoothShare.USER_CONFIRMATION_HANDOVER_CONFIRMED;
     }
 
-    // Run in a background thread at boot.
-    private static void trimDatabase(ContentResolver contentResolver) {
+    // Run in a background thread by BluetoothOppProvider every
+    // Constants.TRIM_DATABASE_INSERT_INTERVAL inserts.
+    static void trimDatabase(ContentResolver contentResolver) {
+        // drop partial files kept for resuming before their shares go away
+        BluetoothOppResume.deleteStalePartials(contentResolver);
+
         final String INVISIBLE = BluetoothShare.VISIBILITY + "=" +
                 BluetoothShare.VISIBILITY_HIDDEN;
 
@@ -961,58 +1138,4 @@ public class BluetoothOppService extends Service {
         }
         cursor.close();
     }
-
-    private static class MediaScannerNotifier implements MediaScannerConnectionClient {
-
-        private MediaScannerConnection mConnection;
-
-        private BluetoothOppShareInfo mInfo;
-
-        private Context mContext;
-
-        private Handler mCallback;
-
-        public MediaScannerNotifier(Context context, BluetoothOppShareInfo info, Handler handler) {
-            mContext = context;
-            mInfo = info;
-            mCallback = handler;
-            mConnection = new MediaScannerConnection(mContext, this);
-            if (V) Log.v(TAG, "Connecting to MediaScannerConnection ");
-            mConnection.connect();
-        }
-
-        public void onMediaScannerConnected() {
-            if (V) Log.v(TAG, "MediaScannerConnection onMediaScannerConnected");
-            mConnection.scanFile(mInfo.mFilename, mInfo.mMimetype);
-        }
-
-        public void onScanCompleted(String path, Uri uri) {
-            try {
-                if (V) {
-                    Log.v(TAG, "MediaScannerConnection onScanCompleted");
-                    Log.v(TAG, "MediaScannerConnection path is " + path);
-                    Log.v(TAG, "MediaScannerConnection Uri is " + uri);
-                }
-                if (uri != null) {
-                    Message msg = Message.obtain();
-                    msg.setTarget(mCallback);
-                    msg.what = MEDIA_SCANNED;
-                    msg.arg1 = mInfo.mId;
-                    msg.obj = uri;
-                    msg.sendToTarget();
-                } else {
-                    Message msg = Message.obtain();
-                    msg.setTarget(mCallback);
-                    msg.what = MEDIA_SCANNED_FAILED;
-                    msg.arg1 = mInfo.mId;
-                    msg.sendToTarget();
-                }
-            } catch (Exception ex) {
-                Log.v(TAG, "!!!MediaScannerConnection exception: " + ex);
-            } finally {
-                if (V) Log.v(TAG, "MediaScannerConnection disconnect");
-                mConnection.disconnect();
-            }
-        }
-    }
 }
@@ -34,7 +34,6 @@ package com.android.bluetooth.opp;
 
 import javax.obex.ObexTransport;
 
-import android.app.NotificationManager;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
@@ -78,6 +77,8 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
 
     private static final int SOCKET_ERROR_RETRY = 13;
 
+    private static final int RESUME_CONNECT = 14;
+
     private static final int CONNECT_WAIT_TIMEOUT = 45000;
 
     private static final int CONNECT_RETRY_TIME = 100;
@@ -104,6 +105,12 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
 
     private long mTimestamp;
 
+    // reconnects made for this batch after losing the link
+    private int mResumeAttempts;
+
+    // set while reconnecting to resume mCurrentShare
+    private boolean mResuming;
+
     public BluetoothOppTransfer(Context context, PowerManager powerManager,
             BluetoothOppBatch batch, BluetoothOppObexSession session) {
 
@@ -141,6 +148,10 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
 
                     mConnectThread.start();
                     break;
+                case RESUME_CONNECT:
+                    if (V) Log.v(TAG, "Reconnect to resume batch " + mBatch.mId);
+                    startConnectSession();
+                    break;
                 case RFCOMM_ERROR:
                     /*
                     * RFCOMM connect fail is for outbound share only! Mark batch
@@ -174,6 +185,7 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
                     BluetoothOppShareInfo info = (BluetoothOppShareInfo)msg.obj;
                     if (V) Log.v(TAG, "receive MSG_SHARE_COMPLETE for info " + info.mId);
                     if (mBatch.mDirection == BluetoothShare.DIRECTION_OUTBOUND) {
+                        mResumeAttempts = 0;
                         mCurrentShare = mBatch.getPendingShare();
 
                         if (mCurrentShare != null) {
@@ -195,6 +207,10 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
                     */
                     BluetoothOppShareInfo info1 = (BluetoothOppShareInfo)msg.obj;
                     if (V) Log.v(TAG, "receive MSG_SESSION_COMPLETE for batch " + mBatch.mId);
+                    if (mResuming) {
+                        // the session stopped after losing the link; a new one follows
+                        break;
+                    }
                     mBatch.mStatus = Constants.BATCH_STATUS_FINISHED;
                     /*
                      * trigger content provider again to know batch status change
@@ -212,6 +228,40 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
                     tickShareStatus(mCurrentShare);
                     break;
 
+                case BluetoothOppObexSession.MSG_SESSION_LINK_LOST:
+                    /*
+                     * Outbound only: the peer can resume the current share, so
+                     * keep the batch and reconnect to continue from msg.arg1
+                     */
+                    BluetoothOppShareInfo info4 = (BluetoothOppShareInfo)msg.obj;
+                    if (V) Log.v(TAG, "receive MSG_SESSION_LINK_LOST for info " + info4.mId
+                            + " at " + msg.arg1);
+                    mResuming = true;
+                    mSession.stop();
+                    if (mResumeAttempts < BluetoothOppResume.MAX_ATTEMPTS && mAdapter.isEnabled()) {
+                        mResumeAttempts++;
+                        info4.mStatus = BluetoothShare.STATUS_PENDING;
+                        info4.mCurrentBytes = msg.arg1;
+                        Uri contentUri = Uri.parse(BluetoothShare.CONTENT_URI + "/" + info4.mId);
+                        ContentValues updateValues = new ContentValues();
+                        updateValues.put(BluetoothShare.STATUS, info4.mStatus);
+                        updateValues.put(BluetoothShare.CURRENT_BYTES, info4.mCurrentBytes);
+                        mContext.getContentResolver().update(contentUri, updateValues, null, null);
+                        mSessionHandler.sendMessageDelayed(
+                                mSessionHandler.obtainMessage(RESUME_CONNECT),
+                                BluetoothOppResume.RETRY_DELAY_MS);
+                    } else {
+                        Log.w(TAG, "Giving up resuming batch " + mBatch.mId);
+                        mResuming = false;
+                        BluetoothOppUtility.closeSendFileInfo(info4.mUri);
+                        info4.mStatus = BluetoothShare.STATUS_CONNECTION_ERROR;
+                        Constants.updateShareStatus(mContext, info4.mId, info4.mStatus);
+                        mBatch.mStatus = Constants.BATCH_STATUS_FAILED;
+                        markBatchFailed(info4.mStatus);
+                        tickShareStatus(mCurrentShare);
+                    }
+                    break;
+
                 case BluetoothOppObexSession.MSG_SHARE_INTERRUPTED:
                     if (V) Log.v(TAG, "receive MSG_SHARE_INTERRUPTED for batch " + mBatch.mId);
                     BluetoothOppShareInfo info3 = (BluetoothOppShareInfo)msg.obj;
@@ -259,9 +309,7 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
                          */
 
                         // Remove incoming file confirm notification
-                        NotificationManager nm = (NotificationManager)mContext
-                                .getSystemService(Context.NOTIFICATION_SERVICE);
-                        nm.cancel(mCurrentShare.mId);
+                        BluetoothOppNotification.cancel(mContext, mCurrentShare.mId);
                         // Send intent to UI for timeout handling
                         Intent in = new Intent(BluetoothShare.USER_CONFIRMATION_TIMEOUT_ACTION);
                         mContext.sendBroadcast(in);
@@ -281,6 +329,11 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
         mContext.getContentResolver().update(contentUri, updateValues, null, null);
     }
 
+    private boolean isPartialResumable() {
+        return mSession instanceof BluetoothOppObexServerSession
+                && ((BluetoothOppObexServerSession) mSession).isPartialResumable();
+    }
+
     private void markBatchFailed(int failReason) {
         synchronized (this) {
             try {
@@ -296,8 +349,11 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
             if (BluetoothShare.isStatusError(mCurrentShare.mStatus)) {
                 failReason = mCurrentShare.mStatus;
             }
+            // A partial file left by link loss is kept for the sender to
+            // resume, if both ends negotiated resume.
             if (mCurrentShare.mDirection == BluetoothShare.DIRECTION_INBOUND
-                    && mCurrentShare.mFilename != null) {
+                    && mCurrentShare.mFilename != null
+                    && !(BluetoothOppResume.isLinkLoss(failReason) && isPartialResumable())) {
                 new File(mCurrentShare.mFilename).delete();
             }
         }
@@ -422,6 +478,7 @@ public class BluetoothOppTransfer implements BluetoothOppBatch.BluetoothOppBatch
     private void startObexSession() {
 
         mBatch.mStatus = Constants.BATCH_STATUS_RUNNING;
+        mResuming = false;
 
         mCurrentShare = mBatch.getPendingShare();
         if (mCurrentShare == null) {
@@ -50,7 +50,6 @@ import android.widget.ProgressBar;
 
 import com.android.internal.app.AlertActivity;
 import com.android.internal.app.AlertController;
-import android.app.NotificationManager;
 import android.text.format.Formatter;
 
 /**
@@ -358,8 +357,7 @@ public class BluetoothOppTransferActivity extends AlertActivity implements
                     BluetoothOppUtility.updateVisibilityToHidden(this, mUri);
 
                     // clear correspondent notification item
-                    ((NotificationManager)getSystemService(NOTIFICATION_SERVICE))
-                            .cancel(mTransInfo.mID);
+                    BluetoothOppNotification.cancel(this, mTransInfo.mID);
                 } else if (mWhichDialog == DIALOG_SEND_COMPLETE_FAIL) {
                     // "try again"
 
@@ -367,8 +365,7 @@ public class BluetoothOppTransferActivity extends AlertActivity implements
                     BluetoothOppUtility.updateVisibilityToHidden(this, mUri);
 
                     // clear correspondent notification item
-                    ((NotificationManager)getSystemService(NOTIFICATION_SERVICE))
-                            .cancel(mTransInfo.mID);
+                    BluetoothOppNotification.cancel(this, mTransInfo.mID);
 
                     // retry the failed transfer
                     Uri uri = BluetoothOppUtility.originalUri(Uri.parse(mTransInfo.mFileUri));
@@ -390,8 +387,7 @@ public class BluetoothOppTransferActivity extends AlertActivity implements
 
                 } else if (mWhichDialog == DIALOG_SEND_COMPLETE_SUCCESS) {
                     BluetoothOppUtility.updateVisibilityToHidden(this, mUri);
-                    ((NotificationManager)getSystemService(NOTIFICATION_SERVICE))
-                            .cancel(mTransInfo.mID);
+                    BluetoothOppNotification.cancel(this, mTransInfo.mID);
                 }
                 break;
 
@@ -408,8 +404,7 @@ public class BluetoothOppTransferActivity extends AlertActivity implements
                     }
                     Toast.makeText(this, msg, Toast.LENGTH_SHORT).show();
 
-                    ((NotificationManager)getSystemService(NOTIFICATION_SERVICE))
-                            .cancel(mTransInfo.mID);
+                    BluetoothOppNotification.cancel(this, mTransInfo.mID);
                 } else if (mWhichDialog == DIALOG_SEND_COMPLETE_FAIL) {
 
                     BluetoothOppUtility.updateVisibilityToHidden(this, mUri);
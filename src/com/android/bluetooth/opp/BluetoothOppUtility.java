@@ -77,8 +77,8 @@ public class BluetoothOppUtility {
                         .getColumnIndexOrThrow(BluetoothShare.DIRECTION));
                 info.mTotalBytes = cursor.getInt(cursor
                         .getColumnIndexOrThrow(BluetoothShare.TOTAL_BYTES));
-                info.mCurrentBytes = cursor.getInt(cursor
-                        .getColumnIndexOrThrow(BluetoothShare.CURRENT_BYTES));
+                info.mCurrentBytes = BluetoothOppProgressReporter.getLiveBytes(info.mID,
+                        cursor.getInt(cursor.getColumnIndexOrThrow(BluetoothShare.CURRENT_BYTES)));
                 info.mTimeStamp = cursor.getLong(cursor
                         .getColumnIndexOrThrow(BluetoothShare.TIMESTAMP));
                 info.mDestAddr = cursor.getString(cursor
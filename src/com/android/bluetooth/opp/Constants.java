@@ -259,6 +259,9 @@ public class Constants {
 
     public static final int MAX_RECORDS_IN_DATABASE = 1000;
 
+    /** Trim old shares from the database after this many inserts */
+    public static final int TRIM_DATABASE_INSERT_INTERVAL = 50;
+
     public static final int BATCH_STATUS_PENDING = 0;
 
     public static final int BATCH_STATUS_RUNNING = 1;
@@ -44,11 +44,11 @@ import android.provider.ContactsContract.CommonDataKinds;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.bluetooth.ContactNameCache;
 import com.android.bluetooth.R;
 import com.android.vcard.VCardComposer;
 import com.android.vcard.VCardConfig;
@@ -57,6 +57,7 @@ import com.android.vcard.VCardPhoneNumberTranslationCallback;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.List;
 
 import javax.obex.ServerOperation;
 import javax.obex.Operation;
@@ -296,38 +297,36 @@ public class BluetoothPbapVcardManager {
         ArrayList<String> nameList = new ArrayList<String>();
         ArrayList<String> tempNameList = new ArrayList<String>();
 
-        Cursor contactCursor = null;
-        Uri uri = null;
-
         if (phoneNumber != null && phoneNumber.length() == 0) {
-            uri = Contacts.CONTENT_URI;
-        } else {
-            uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI,
-                Uri.encode(phoneNumber));
-        }
-
-        try {
-            contactCursor = mResolver.query(uri, CONTACTS_PROJECTION, CLAUSE_ONLY_VISIBLE,
-                        null, Contacts._ID);
+            // an empty search value lists every visible contact
+            Cursor contactCursor = null;
+            try {
+                contactCursor = mResolver.query(Contacts.CONTENT_URI, CONTACTS_PROJECTION,
+                        CLAUSE_ONLY_VISIBLE, null, Contacts._ID);
 
-            if (contactCursor != null) {
-                for (contactCursor.moveToFirst(); !contactCursor.isAfterLast(); contactCursor
-                        .moveToNext()) {
-                    String name = contactCursor.getString(CONTACTS_NAME_COLUMN_INDEX);
-                    long id = contactCursor.getLong(CONTACTS_ID_COLUMN_INDEX);
-                    if (TextUtils.isEmpty(name)) {
-                        name = mContext.getString(android.R.string.unknownName);
+                if (contactCursor != null) {
+                    for (contactCursor.moveToFirst(); !contactCursor.isAfterLast(); contactCursor
+                            .moveToNext()) {
+                        addContactName(tempNameList, phoneNumber,
+                                contactCursor.getLong(CONTACTS_ID_COLUMN_INDEX),
+                                contactCursor.getString(CONTACTS_NAME_COLUMN_INDEX));
                     }
-                    if (V) Log.v(TAG, "got name " + name + " by number " + phoneNumber + " @" + id);
-                    tempNameList.add(name + "," + id);
+                }
+            } catch (CursorWindowAllocationException e) {
+                Log.e(TAG, "CursorWindowAllocationException while getting contact names");
+            } finally {
+                if (contactCursor != null) {
+                    contactCursor.close();
+                    contactCursor = null;
                 }
             }
-        } catch (CursorWindowAllocationException e) {
-            Log.e(TAG, "CursorWindowAllocationException while getting contact names");
-        } finally {
-            if (contactCursor != null) {
-                contactCursor.close();
-                contactCursor = null;
+        } else {
+            List<ContactNameCache.Contact> contacts =
+                    ContactNameCache.getInstance(mContext).lookup(phoneNumber);
+            if (contacts != null) {
+                for (ContactNameCache.Contact contact : contacts) {
+                    addContactName(tempNameList, phoneNumber, contact.id, contact.name);
+                }
             }
         }
         int tempListSize = tempNameList.size();
@@ -340,6 +339,15 @@ public class BluetoothPbapVcardManager {
         return nameList;
     }
 
+    private void addContactName(ArrayList<String> nameList, String phoneNumber, long id,
+            String name) {
+        if (TextUtils.isEmpty(name)) {
+            name = mContext.getString(android.R.string.unknownName);
+        }
+        if (V) Log.v(TAG, "got name " + name + " by number " + phoneNumber + " @" + id);
+        nameList.add(name + "," + id);
+    }
+
     public final int composeAndSendCallLogVcards(final int type, Operation op,
             final int startPoint, final int endPoint, final boolean vcardType21,
             boolean ignorefilter, byte[] filter) {
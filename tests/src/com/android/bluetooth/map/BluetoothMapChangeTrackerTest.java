@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * BluetoothMapChangeTracker against a provider backed by an in-memory
+ * database, which answers the aggregate range queries the way the SMS and
+ * MMS providers do.
+ */
+public class BluetoothMapChangeTrackerTest extends AndroidTestCase {
+    private static final String AUTHORITY = "bluetooth-map-change-tracker-test";
+    private static final Uri URI = Uri.parse("content://" + AUTHORITY + "/msg");
+    private static final String TABLE = "msg";
+    private static final String READ = "read";
+    private static final String TYPE = "type";
+
+    private static final int ROWS = 500;
+
+    /**
+     * Serves one table, counting the queries made and whole table reads.
+     */
+    private static class FakeProvider extends MockContentProvider {
+        final SQLiteDatabase mDb = SQLiteDatabase.create(null);
+        boolean mRejectAggregates;
+        int mQueries;
+        int mFullReads;
+
+        FakeProvider() {
+            mDb.execSQL("CREATE TABLE " + TABLE + " (" + BaseColumns._ID
+                    + " INTEGER PRIMARY KEY, " + READ + " INTEGER, " + TYPE + " INTEGER)");
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            mQueries++;
+            if (projection[0].startsWith("COUNT")) {
+                if (mRejectAggregates) {
+                    throw new IllegalArgumentException("Invalid column " + projection[0]);
+                }
+            } else if (selection == null) {
+                mFullReads++;
+            }
+            return mDb.query(TABLE, projection, selection, selectionArgs, null, null, sortOrder);
+        }
+    }
+
+    /**
+     * Records what the tracker reports.
+     */
+    private static class RecordingTracker extends BluetoothMapChangeTracker {
+        final List<Long> mRows = new ArrayList<Long>();
+        final List<Long> mDeleted = new ArrayList<Long>();
+        int mInitialRows;
+
+        RecordingTracker(MockContentResolver resolver) {
+            super("test", resolver, URI, new String[] { BaseColumns._ID, READ, TYPE },
+                    new String[] { READ, TYPE }, new long[] { 1, 16 });
+        }
+
+        @Override
+        void onRow(Cursor c, long id, boolean initial) {
+            if (initial) {
+                mInitialRows++;
+            } else {
+                mRows.add(id);
+            }
+        }
+
+        @Override
+        void onRowDeleted(long id) {
+            mDeleted.add(id);
+        }
+
+        void reset() {
+            mRows.clear();
+            mDeleted.clear();
+            mInitialRows = 0;
+        }
+    }
+
+    private FakeProvider mProvider;
+    private RecordingTracker mTracker;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new FakeProvider();
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(AUTHORITY, mProvider);
+        for (int i = 1; i <= ROWS; i++) {
+            insert(i, i % 2, 1);
+        }
+        mTracker = new RecordingTracker(resolver);
+        mTracker.load();
+        mTracker.reset();
+        mProvider.mQueries = 0;
+        mProvider.mFullReads = 0;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProvider.mDb.close();
+        super.tearDown();
+    }
+
+    private void insert(long id, int read, int type) {
+        ContentValues values = new ContentValues();
+        values.put(BaseColumns._ID, id);
+        values.put(READ, read);
+        values.put(TYPE, type);
+        mProvider.mDb.insert(TABLE, null, values);
+    }
+
+    private void setRead(long id, int read) {
+        ContentValues values = new ContentValues();
+        values.put(READ, read);
+        mProvider.mDb.update(TABLE, values, BaseColumns._ID + "=" + id, null);
+    }
+
+    private void delete(long id) {
+        mProvider.mDb.delete(TABLE, BaseColumns._ID + "=" + id, null);
+    }
+
+    private static List<Long> sorted(List<Long> ids) {
+        List<Long> copy = new ArrayList<Long>(ids);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    public void testLoadReadsEveryRow() {
+        mTracker.load();
+        assertEquals(ROWS, mTracker.mInitialRows);
+        assertTrue(mTracker.mRows.isEmpty());
+        assertTrue(mTracker.mDeleted.isEmpty());
+        assertEquals(1, mProvider.mFullReads);
+    }
+
+    public void testUnchangedTableCostsTwoQueries() {
+        mTracker.update();
+        assertTrue(mTracker.mRows.isEmpty());
+        assertTrue(mTracker.mDeleted.isEmpty());
+        assertEquals(2, mProvider.mQueries);
+        assertEquals(0, mProvider.mFullReads);
+    }
+
+    public void testInsert() {
+        insert(ROWS + 1, 0, 1);
+        insert(ROWS + 2, 1, 2);
+        mTracker.update();
+        assertEquals(Arrays.asList((long) ROWS + 1, (long) ROWS + 2), mTracker.mRows);
+        assertTrue(mTracker.mDeleted.isEmpty());
+        assertEquals(0, mProvider.mFullReads);
+
+        // recorded, so not reported again
+        mTracker.reset();
+        mTracker.update();
+        assertTrue(mTracker.mRows.isEmpty());
+        assertEquals(0, mProvider.mFullReads);
+    }
+
+    public void testDelete() {
+        delete(57);
+        mTracker.update();
+        assertTrue(mTracker.mRows.isEmpty());
+        assertEquals(Arrays.asList(57L), mTracker.mDeleted);
+        assertEquals(0, mProvider.mFullReads);
+
+        mTracker.reset();
+        mTracker.update();
+        assertTrue(mTracker.mDeleted.isEmpty());
+    }
+
+    public void testDeleteNewestRow() {
+        delete(ROWS);
+        mTracker.update();
+        assertEquals(Arrays.asList((long) ROWS), mTracker.mDeleted);
+        assertEquals(0, mProvider.mFullReads);
+    }
+
+    public void testStateChange() {
+        setRead(150, 1 - 150 % 2);
+        mTracker.update();
+        assertEquals(Arrays.asList(150L), mTracker.mRows);
+        assertTrue(mTracker.mDeleted.isEmpty());
+        assertEquals(0, mProvider.mFullReads);
+
+        mTracker.reset();
+        mTracker.update();
+        assertTrue(mTracker.mRows.isEmpty());
+    }
+
+    public void testMixedChanges() {
+        setRead(3, 1 - 3 % 2);
+        setRead(250, 1 - 250 % 2);
+        setRead(499, 1 - 499 % 2);
+        delete(10);
+        delete(400);
+        insert(ROWS + 1, 0, 1);
+        mTracker.update();
+        assertEquals(Arrays.asList(3L, 250L, 499L, (long) ROWS + 1), sorted(mTracker.mRows));
+        assertEquals(Arrays.asList(10L, 400L), sorted(mTracker.mDeleted));
+        assertEquals(0, mProvider.mFullReads);
+
+        mTracker.reset();
+        mProvider.mQueries = 0;
+        mTracker.update();
+        assertTrue(mTracker.mRows.isEmpty());
+        assertTrue(mTracker.mDeleted.isEmpty());
+        assertEquals(2, mProvider.mQueries);
+    }
+
+    public void testFallbackWhenAggregatesRejected() {
+        mProvider.mRejectAggregates = true;
+        setRead(150, 1 - 150 % 2);
+        delete(57);
+        mTracker.update();
+        // the whole table is read and every row passed on
+        assertEquals(1, mProvider.mFullReads);
+        assertEquals(ROWS - 1, mTracker.mRows.size());
+        assertEquals(Arrays.asList(57L), mTracker.mDeleted);
+
+        // and keeps being read without trying the aggregate query again
+        mTracker.reset();
+        mProvider.mQueries = 0;
+        mTracker.update();
+        assertEquals(1, mProvider.mQueries);
+        assertEquals(2, mProvider.mFullReads);
+        assertTrue(mTracker.mDeleted.isEmpty());
+    }
+}
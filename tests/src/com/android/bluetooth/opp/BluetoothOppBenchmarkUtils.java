@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The OPP send and receive loops, for benchmarks outside this package.
+ *
+ * The OBEX sessions cannot run without BluetoothOppService, so these follow
+ * the loops of BluetoothOppObexClientSession and
+ * BluetoothOppObexServerSession over the same read-ahead, file sink and
+ * progress reporter, minus the share bookkeeping.
+ */
+public final class BluetoothOppBenchmarkUtils {
+    // share id the progress is reported for; matches no row
+    private static final int NO_SHARE = -1;
+
+    private static ByteBuffer sSinkBuffer;
+
+    private BluetoothOppBenchmarkUtils() {
+    }
+
+    /**
+     * Send {@code length} bytes of {@code file} to {@code out} through the
+     * read-ahead, as the client session does.
+     *
+     * @return the number of bytes sent
+     */
+    public static long send(File file, long length, OutputStream out, int packetSize)
+            throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        BluetoothOppReadAhead readAhead = new BluetoothOppReadAhead(in, packetSize, length);
+        long position = 0;
+        try {
+            readAhead.start();
+            BluetoothOppReadAhead.Buffer buffer;
+            while (position != length && (buffer = readAhead.take()) != null) {
+                out.write(buffer.mData, 0, buffer.mLength);
+                position += buffer.mLength;
+                readAhead.recycle(buffer);
+            }
+        } finally {
+            readAhead.close();
+            in.close();
+        }
+        return position;
+    }
+
+    /**
+     * Receive {@code length} bytes from {@code in} into {@code file} through
+     * the file sink, reporting progress, as the server session does.
+     *
+     * @return the number of bytes received
+     */
+    public static long receive(Context context, InputStream in, File file, long length,
+            int packetSize) throws IOException {
+        if (sSinkBuffer == null) {
+            sSinkBuffer = BluetoothOppFileSink.allocateBuffer();
+        }
+        BluetoothOppFileSink sink = new BluetoothOppFileSink(new FileOutputStream(file), length,
+                sSinkBuffer);
+        BluetoothOppProgressReporter progress =
+                new BluetoothOppProgressReporter(context, NO_SHARE, length);
+        byte[] b = new byte[packetSize];
+        int position = 0;
+        boolean complete = false;
+        try {
+            int read;
+            while (position != length && (read = in.read(b)) != -1) {
+                sink.write(b, 0, read);
+                position += read;
+                progress.update(position);
+            }
+            complete = position == length;
+        } finally {
+            progress.finish();
+            sink.close(complete);
+        }
+        return position;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Positioning the stream of a share for another send attempt, as the client
+ * session does after losing the link.
+ */
+public class BluetoothOppSendFileInfoTest extends AndroidTestCase {
+    private static final String TYPE = "application/octet-stream";
+
+    /** OBEX packet size the read-ahead reads with */
+    private static final int PACKET = 990;
+
+    private static final int LENGTH = 8 * PACKET;
+
+    private File mFile;
+    private Uri mUri;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "send_file_info_test.bin");
+        FileOutputStream out = new FileOutputStream(mFile);
+        for (int i = 0; i < LENGTH; i++) {
+            out.write(byteAt(i));
+        }
+        out.close();
+        mUri = Uri.fromFile(mFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static int byteAt(int position) {
+        return (position * 31 + position / 251) & 0xff;
+    }
+
+    /**
+     * Send the first packet the way sendFile() does, leaving the read-ahead
+     * to read further packets before the link is lost.
+     */
+    private void sendFirstPacket(BluetoothOppSendFileInfo info, long offset) throws IOException {
+        info.mStreamUsed = true;
+        BluetoothOppReadAhead readAhead = new BluetoothOppReadAhead(info.mInputStream, PACKET,
+                LENGTH - offset);
+        readAhead.start();
+        readAhead.take();
+        readAhead.close();
+    }
+
+    private void assertNextPacketAt(BluetoothOppSendFileInfo info, long offset)
+            throws IOException {
+        BluetoothOppReadAhead readAhead = new BluetoothOppReadAhead(info.mInputStream, PACKET,
+                LENGTH - offset);
+        readAhead.start();
+        try {
+            BluetoothOppReadAhead.Buffer buffer = readAhead.take();
+            assertEquals(PACKET, buffer.mLength);
+            for (int i = 0; i < buffer.mLength; i++) {
+                assertEquals("byte " + i, byteAt((int) offset + i), buffer.mData[i] & 0xff);
+            }
+        } finally {
+            readAhead.close();
+        }
+    }
+
+    public void testFreshStreamIsNotMoved() throws IOException {
+        BluetoothOppSendFileInfo info =
+                BluetoothOppSendFileInfo.generateFileInfo(getContext(), mUri, TYPE);
+        assertSame(info, info.reposition(getContext(), mUri, TYPE, 0));
+        assertNextPacketAt(info, 0);
+        info.mInputStream.close();
+    }
+
+    public void testLinkLostBeforeFirstPacketAcked() throws IOException {
+        BluetoothOppSendFileInfo info =
+                BluetoothOppSendFileInfo.generateFileInfo(getContext(), mUri, TYPE);
+        sendFirstPacket(info, 0);
+        // nothing was acknowledged, so the retry starts over at 0
+        assertSame(info, info.reposition(getContext(), mUri, TYPE, 0));
+        assertNextPacketAt(info, 0);
+        info.mInputStream.close();
+    }
+
+    public void testResumeAtOffset() throws IOException {
+        BluetoothOppSendFileInfo info =
+                BluetoothOppSendFileInfo.generateFileInfo(getContext(), mUri, TYPE);
+        sendFirstPacket(info, 0);
+        assertSame(info, info.reposition(getContext(), mUri, TYPE, 3 * PACKET));
+        assertNextPacketAt(info, 3 * PACKET);
+        info.mInputStream.close();
+    }
+
+    public void testUnseekableStreamIsReopened() throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        pipe[1].close();
+        BluetoothOppSendFileInfo info = new BluetoothOppSendFileInfo(mFile.getName(), TYPE,
+                LENGTH, new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]), 0);
+        info.mStreamUsed = true;
+
+        BluetoothOppSendFileInfo reopened = info.reposition(getContext(), mUri, TYPE, PACKET);
+        assertNotSame(info, reopened);
+        assertEquals(LENGTH, reopened.mLength);
+        // sent from the start
+        assertNextPacketAt(reopened, 0);
+        reopened.mInputStream.close();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.tests;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.bluetooth.map.BluetoothMapMsgTable;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Memory and time used by the MAP content observer to track a large message
+ * store, with BluetoothMapMsgTable against the HashMap of message objects it
+ * replaced. Results are logged under the tag below.
+ */
+public class BluetoothMapMsgTableBenchmark extends AndroidTestCase {
+    private static final String TAG = "BluetoothMapMsgTableBenchmark";
+
+    private static final int MESSAGES = 100000;
+
+    /** The per-message object the observer used to keep. */
+    private static class Msg {
+        long id;
+        int type;
+        int threadId;
+        long folderId = -1;
+        long oldFolderId = -1;
+        boolean localInitiatedSend = false;
+        boolean transparent = false;
+
+        Msg(long id, int type, int threadId) {
+            this.id = id;
+            this.type = type;
+            this.threadId = threadId;
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void log(String name, long heapBytes, long allocations, long elapsedMs) {
+        Log.i(TAG, name + ": " + MESSAGES + " messages, " + heapBytes + " bytes retained ("
+                + (heapBytes / MESSAGES) + " per message), " + allocations + " allocations, "
+                + elapsedMs + " ms");
+    }
+
+    public void testHashMapMemory() {
+        long before = usedHeap();
+        Debug.resetGlobalAllocCounters();
+        Debug.startAllocCounting();
+        long start = SystemClock.elapsedRealtime();
+        HashMap<Long, Msg> messages = new HashMap<Long, Msg>();
+        for (int i = 0; i < MESSAGES; i++) {
+            messages.put((long) i, new Msg(i, 1, i % 500));
+        }
+        long elapsedMs = SystemClock.elapsedRealtime() - start;
+        Debug.stopAllocCounting();
+        long retained = usedHeap() - before;
+        log("HashMap", retained, Debug.getGlobalAllocCount(), elapsedMs);
+        assertEquals(MESSAGES, messages.size());
+    }
+
+    public void testTableMemory() {
+        long before = usedHeap();
+        Debug.resetGlobalAllocCounters();
+        Debug.startAllocCounting();
+        long start = SystemClock.elapsedRealtime();
+        BluetoothMapMsgTable messages = new BluetoothMapMsgTable();
+        for (int i = 0; i < MESSAGES; i++) {
+            messages.put(i, 1, i % 500);
+        }
+        long elapsedMs = SystemClock.elapsedRealtime() - start;
+        Debug.stopAllocCounting();
+        long retained = usedHeap() - before;
+        log("BluetoothMapMsgTable", retained, Debug.getGlobalAllocCount(), elapsedMs);
+        assertEquals(MESSAGES, messages.size());
+    }
+
+    /**
+     * Random puts, removes and updates, checked against a HashMap.
+     */
+    public void testTableMatchesHashMap() {
+        Random random = new Random(0);
+        BluetoothMapMsgTable table = new BluetoothMapMsgTable();
+        HashMap<Long, Msg> map = new HashMap<Long, Msg>();
+        for (int i = 0; i < MESSAGES; i++) {
+            long id = random.nextInt(4096);
+            switch (random.nextInt(4)) {
+                case 0:
+                    table.put(id, i, id + 1);
+                    map.put(id, new Msg(id, i, (int) id + 1));
+                    break;
+                case 1:
+                    assertEquals(map.remove(id) != null, table.remove(id));
+                    break;
+                case 2: {
+                    int slot = table.find(id);
+                    Msg msg = map.get(id);
+                    assertEquals(msg != null, slot >= 0);
+                    if (slot >= 0) {
+                        table.setValue(slot, id * 2);
+                        table.setFlag(slot, BluetoothMapMsgTable.FLAG_TRANSPARENT, true);
+                        msg.threadId = (int) id * 2;
+                        msg.transparent = true;
+                    }
+                    break;
+                }
+                default: {
+                    int slot = table.find(id);
+                    Msg msg = map.get(id);
+                    assertEquals(msg != null, slot >= 0);
+                    if (slot >= 0) {
+                        assertEquals(msg.type, table.getType(slot));
+                        assertEquals(msg.threadId, table.getValue(slot));
+                        assertEquals(msg.transparent,
+                                table.hasFlag(slot, BluetoothMapMsgTable.FLAG_TRANSPARENT));
+                        assertEquals(-1, table.getOldValue(slot));
+                    }
+                    break;
+                }
+            }
+            assertEquals(map.size(), table.size());
+        }
+
+        int count = 0;
+        for (int slot = table.nextSlot(0); slot >= 0; slot = table.nextSlot(slot + 1)) {
+            assertTrue(map.containsKey(table.getId(slot)));
+            count++;
+        }
+        assertEquals(map.size(), count);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.tests;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.util.Log;
+
+import com.android.bluetooth.opp.BluetoothOppProvider;
+import com.android.bluetooth.opp.BluetoothShare;
+import com.android.bluetooth.opp.Constants;
+
+/**
+ * Measures the latency of the share table queries made by the OPP service,
+ * notification and transfer history with a large share table. Runs against
+ * an isolated copy of the provider, so the real transfer history is not
+ * touched.
+ */
+public class BluetoothOppProviderBenchmark extends ProviderTestCase2<BluetoothOppProvider> {
+    private static final String TAG = "BluetoothOppProviderBenchmark";
+
+    private static final int ROWS = 10000;
+    private static final int ITERATIONS = 20;
+
+    private static final String VISIBLE = BluetoothShare.VISIBILITY + "="
+            + BluetoothShare.VISIBILITY_VISIBLE;
+
+    private static final String WHERE_RUNNING = BluetoothShare.STATUS + "="
+            + BluetoothShare.STATUS_RUNNING + " AND " + VISIBLE;
+
+    private static final String WHERE_COMPLETED_INBOUND = BluetoothShare.STATUS + ">="
+            + BluetoothShare.STATUS_SUCCESS + " AND " + VISIBLE + " AND "
+            + BluetoothShare.DIRECTION + "=" + BluetoothShare.DIRECTION_INBOUND;
+
+    private static final String WHERE_CONFIRM_PENDING = BluetoothShare.USER_CONFIRMATION + "="
+            + BluetoothShare.USER_CONFIRMATION_PENDING + " AND " + VISIBLE;
+
+    private static final String WHERE_HIDDEN_INBOUND_SUCCESS = BluetoothShare.DIRECTION + "="
+            + BluetoothShare.DIRECTION_INBOUND + " AND " + BluetoothShare.STATUS + "="
+            + BluetoothShare.STATUS_SUCCESS + " AND " + BluetoothShare.VISIBILITY + "="
+            + BluetoothShare.VISIBILITY_HIDDEN;
+
+    public BluetoothOppProviderBenchmark() {
+        super(BluetoothOppProvider.class, "com.android.bluetooth.opp");
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // open the provider's database once so it creates the schema
+        getMockContentResolver().query(BluetoothShare.CONTENT_URI,
+                new String[] { BluetoothShare._ID }, null, null, null).close();
+        populate();
+    }
+
+    // Rows go straight into the database: inserts through the provider would
+    // start the OPP service for every row.
+    private void populate() {
+        SQLiteDatabase db = getMockContext().openOrCreateDatabase("btopp.db", 0, null);
+        SQLiteStatement insert = db.compileStatement("INSERT INTO btopp ("
+                + BluetoothShare.FILENAME_HINT + ", " + BluetoothShare.DIRECTION + ", "
+                + BluetoothShare.DESTINATION + ", " + BluetoothShare.VISIBILITY + ", "
+                + BluetoothShare.USER_CONFIRMATION + ", " + BluetoothShare.STATUS + ", "
+                + BluetoothShare.TOTAL_BYTES + ", " + BluetoothShare.CURRENT_BYTES + ", "
+                + BluetoothShare.TIMESTAMP + ", " + Constants.MEDIA_SCANNED
+                + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        long start = SystemClock.elapsedRealtime();
+        long timestamp = System.currentTimeMillis() - ROWS * 1000L;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ROWS; i++) {
+                // mostly finished history with a few live shares, as on a
+                // device that has been used for a while
+                boolean live = i >= ROWS - 5;
+                insert.bindString(1, "file" + i + ".jpg");
+                insert.bindLong(2, i % 2 == 0 ? BluetoothShare.DIRECTION_INBOUND
+                        : BluetoothShare.DIRECTION_OUTBOUND);
+                insert.bindString(3, "00:11:22:33:44:" + String.format("%02X", i % 256));
+                insert.bindLong(4, i % 3 == 0 ? BluetoothShare.VISIBILITY_HIDDEN
+                        : BluetoothShare.VISIBILITY_VISIBLE);
+                insert.bindLong(5, live && i % 2 == 0 ? BluetoothShare.USER_CONFIRMATION_PENDING
+                        : BluetoothShare.USER_CONFIRMATION_CONFIRMED);
+                insert.bindLong(6, live ? BluetoothShare.STATUS_RUNNING
+                        : i % 10 == 0 ? BluetoothShare.STATUS_CONNECTION_ERROR
+                        : BluetoothShare.STATUS_SUCCESS);
+                insert.bindLong(7, 1024 * 1024);
+                insert.bindLong(8, live ? 512 * 1024 : 1024 * 1024);
+                insert.bindLong(9, timestamp + i * 1000L);
+                insert.bindLong(10, 1);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+            db.close();
+        }
+        Log.d(TAG, "Inserted " + ROWS + " shares in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    private void measure(String name, String[] projection, String selection, String sortOrder) {
+        ContentResolver resolver = getMockContentResolver();
+        long total = 0;
+        long worst = 0;
+        int count = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            Cursor cursor = resolver.query(BluetoothShare.CONTENT_URI, projection, selection,
+                    null, sortOrder);
+            assertNotNull(cursor);
+            // getCount() runs the query to the end
+            count = cursor.getCount();
+            cursor.close();
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            total += elapsed;
+            worst = Math.max(worst, elapsed);
+        }
+        Log.d(TAG, name + ": " + count + " rows, average " + (total / ITERATIONS)
+                + " ms, worst " + worst + " ms");
+    }
+
+    public void testRunningQuery() {
+        measure("running", new String[] { BluetoothShare._ID, BluetoothShare.CURRENT_BYTES },
+                WHERE_RUNNING, BluetoothShare._ID);
+    }
+
+    public void testCompletedInboundQuery() {
+        measure("completed inbound", new String[] { BluetoothShare.TIMESTAMP,
+                BluetoothShare.STATUS }, WHERE_COMPLETED_INBOUND,
+                BluetoothShare.TIMESTAMP + " DESC");
+    }
+
+    public void testConfirmPendingQuery() {
+        measure("confirm pending", new String[] { BluetoothShare._ID, BluetoothShare.TIMESTAMP },
+                WHERE_CONFIRM_PENDING, BluetoothShare._ID);
+    }
+
+    public void testTrimQuery() {
+        measure("trim", new String[] { BluetoothShare._ID }, WHERE_HIDDEN_INBOUND_SUCCESS,
+                BluetoothShare._ID);
+    }
+
+    public void testHistoryQuery() {
+        measure("history", new String[] { BluetoothShare._ID, BluetoothShare.FILENAME_HINT,
+                BluetoothShare.STATUS, BluetoothShare.TOTAL_BYTES, BluetoothShare.TIMESTAMP },
+                VISIBLE + " AND " + BluetoothShare.STATUS + ">=" + BluetoothShare.STATUS_SUCCESS,
+                BluetoothShare.TIMESTAMP + " DESC");
+    }
+}
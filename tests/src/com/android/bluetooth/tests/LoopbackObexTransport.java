@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.tests;
+
+import android.os.SystemClock;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.obex.ObexTransport;
+
+/**
+ * An in-process ObexTransport standing in for an RFCOMM socket.
+ *
+ * Two transports created by {@link #createPair} are connected by pipes, one
+ * per direction. Writes are cut into frames of at most the given MTU, and
+ * each frame can be delayed to simulate the air time of a link. Frames
+ * written through either end are counted, so callers can report costs per
+ * packet.
+ */
+public class LoopbackObexTransport implements ObexTransport {
+
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    private final InputStream mInput;
+    private final OutputStream mOutput;
+
+    private LoopbackObexTransport(InputStream input, OutputStream output) {
+        mInput = input;
+        mOutput = output;
+    }
+
+    /**
+     * @param mtu largest frame written to the pipe in one go
+     * @param latencyMs delay added before every frame, 0 for none
+     * @param frames counts the frames written in both directions
+     * @return the client end in [0] and the server end in [1]
+     */
+    public static LoopbackObexTransport[] createPair(int mtu, int latencyMs,
+            AtomicInteger frames) throws IOException {
+        PipedInputStream clientIn = new PipedInputStream(PIPE_SIZE);
+        PipedInputStream serverIn = new PipedInputStream(PIPE_SIZE);
+        OutputStream clientOut = new FramedOutputStream(new PipedOutputStream(serverIn), mtu,
+                latencyMs, frames);
+        OutputStream serverOut = new FramedOutputStream(new PipedOutputStream(clientIn), mtu,
+                latencyMs, frames);
+        return new LoopbackObexTransport[] {
+                new LoopbackObexTransport(clientIn, clientOut),
+                new LoopbackObexTransport(serverIn, serverOut)
+        };
+    }
+
+    public void close() throws IOException {
+        mOutput.close();
+        mInput.close();
+    }
+
+    public DataInputStream openDataInputStream() throws IOException {
+        return new DataInputStream(openInputStream());
+    }
+
+    public DataOutputStream openDataOutputStream() throws IOException {
+        return new DataOutputStream(openOutputStream());
+    }
+
+    public InputStream openInputStream() throws IOException {
+        return mInput;
+    }
+
+    public OutputStream openOutputStream() throws IOException {
+        return mOutput;
+    }
+
+    public void connect() throws IOException {
+    }
+
+    public void create() throws IOException {
+    }
+
+    public void disconnect() throws IOException {
+    }
+
+    public void listen() throws IOException {
+    }
+
+    public boolean isConnected() throws IOException {
+        return true;
+    }
+
+    private static class FramedOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private final int mMtu;
+        private final int mLatencyMs;
+        private final AtomicInteger mFrames;
+
+        FramedOutputStream(OutputStream out, int mtu, int latencyMs, AtomicInteger frames) {
+            mOut = out;
+            mMtu = mtu;
+            mLatencyMs = latencyMs;
+            mFrames = frames;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int frame = Math.min(len, mMtu);
+                if (mLatencyMs > 0) {
+                    SystemClock.sleep(mLatencyMs);
+                }
+                mOut.write(b, off, frame);
+                mFrames.incrementAndGet();
+                off += frame;
+                len -= frame;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.tests;
+
+import android.test.AndroidTestCase;
+
+import com.android.bluetooth.NativeEventReader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Decoding of batches in the record format written by the native EventBatch:
+ * [type:u8][length:u16][payload], little-endian.
+ */
+public class NativeEventReaderTest extends AndroidTestCase {
+
+    private static final byte[] ADDRESS = new byte[] {
+            0x00, 0x11, 0x22, 0x33, 0x44, (byte) 0xAB
+    };
+
+    private ByteBuffer mOut;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mOut = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void putRecord(int type, byte[] payload) {
+        mOut.put((byte) type);
+        mOut.putShort((short) payload.length);
+        mOut.put(payload);
+    }
+
+    private byte[] payload(ByteBuffer buffer) {
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private byte[] batch() {
+        return Arrays.copyOf(mOut.array(), mOut.position());
+    }
+
+    public void testReadsFieldsInOrder() {
+        ByteBuffer p = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+        p.put(ADDRESS);
+        p.putInt(-60);
+        p.put((byte) 1);
+        p.putShort((short) 0xBEEF);
+        p.putLong(0x0123456789ABCDEFL);
+        p.put(new byte[] { 7, 8, 9 });
+        putRecord(3, payload(p));
+
+        NativeEventReader reader = new NativeEventReader(batch(), 1);
+        assertTrue(reader.next());
+        assertEquals(3, reader.getType());
+        assertEquals("00:11:22:33:44:AB", reader.readAddress());
+        assertEquals(-60, reader.readInt());
+        assertTrue(reader.readBoolean());
+        assertEquals(0xBEEF, reader.readUnsignedShort());
+        assertEquals(0x0123456789ABCDEFL, reader.readLong());
+        assertTrue(Arrays.equals(new byte[] { 7, 8, 9 }, reader.readRemaining()));
+        assertFalse(reader.next());
+    }
+
+    public void testNextSkipsUnreadPayload() {
+        putRecord(1, new byte[] { 1, 2, 3, 4, 5 });
+        putRecord(0xFF, new byte[] { 42 });
+        putRecord(2, new byte[0]);
+
+        NativeEventReader reader = new NativeEventReader(batch(), 3);
+        assertTrue(reader.next());
+        assertEquals(1, reader.getType());
+        assertEquals(1, reader.readUnsignedByte());
+        assertTrue(reader.next());
+        assertEquals(0xFF, reader.getType());
+        assertEquals(42, reader.readUnsignedByte());
+        assertTrue(reader.next());
+        assertEquals(2, reader.getType());
+        assertEquals(0, reader.readRemaining().length);
+        assertFalse(reader.next());
+    }
+
+    public void testStopsAtRecordCount() {
+        putRecord(1, new byte[] { 1 });
+        putRecord(2, new byte[] { 2 });
+
+        NativeEventReader reader = new NativeEventReader(batch(), 1);
+        assertTrue(reader.next());
+        assertFalse(reader.next());
+    }
+
+    public void testEmptyBatch() {
+        NativeEventReader reader = new NativeEventReader(new byte[0], 0);
+        assertFalse(reader.next());
+    }
+
+    public void testTruncatedRecordThrows() {
+        mOut.put((byte) 1);
+        mOut.putShort((short) 10);
+        mOut.put(new byte[] { 1, 2, 3 });
+
+        NativeEventReader reader = new NativeEventReader(batch(), 1);
+        try {
+            reader.next();
+            fail("Truncated record accepted");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
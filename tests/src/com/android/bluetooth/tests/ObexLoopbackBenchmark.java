@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.tests;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.bluetooth.map.BluetoothMapAppParams;
+import com.android.bluetooth.map.BluetoothMapContent;
+import com.android.bluetooth.map.BluetoothMapFolderElement;
+import com.android.bluetooth.map.BluetoothMapMessageListing;
+import com.android.bluetooth.opp.BluetoothOppBenchmarkUtils;
+import com.android.bluetooth.pbap.BluetoothPbapObexServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.obex.ClientSession;
+import javax.obex.HeaderSet;
+import javax.obex.Operation;
+import javax.obex.ResponseCodes;
+import javax.obex.ServerRequestHandler;
+import javax.obex.ServerSession;
+
+/**
+ * OBEX throughput of the OPP, MAP and PBAP server paths over
+ * LoopbackObexTransport, without a radio.
+ *
+ * Each run connects a ClientSession to a server over the loopback transport,
+ * moves one object and logs MB/s, process CPU time per transport frame and
+ * the allocations made while it ran. The PBAP run uses the real
+ * BluetoothPbapObexServer on the device's contacts. BluetoothMapObexServer
+ * and BluetoothOppObexServerSession cannot run outside their services (the
+ * MAP server needs a MAS instance owned by BluetoothMapService, the OPP
+ * server waits for BluetoothOppService to confirm each share), so the MAP
+ * run serves the inbox listing the way sendMessageListingRsp does, from
+ * BluetoothMapContent with deferred details, and the OPP run sends and
+ * receives through the read-ahead, file sink and progress reporter of the
+ * OPP sessions, see BluetoothOppBenchmarkUtils.
+ *
+ * Results are logged under the tag below; compare them before and after a
+ * change to the OBEX path.
+ */
+public class ObexLoopbackBenchmark extends AndroidTestCase {
+    private static final String TAG = "ObexLoopbackBenchmark";
+
+    /** RFCOMM frame size of a typical EDR link */
+    private static final int MTU = 990;
+
+    /** Per-frame delay; 0 measures the software path alone */
+    private static final int LATENCY_MS = 0;
+
+    private static final int OPP_FILE_SIZE = 16 * 1024 * 1024;
+
+    /** Max list count; the MAP server uses the same default */
+    private static final int MAP_LISTING_SIZE = 1024;
+
+    private static final byte[] PBAP_TARGET = new byte[] {
+            0x79, 0x61, 0x35, (byte)0xf0, (byte)0xf0, (byte)0xc5, 0x11, (byte)0xd8, 0x09, 0x66,
+            0x08, 0x00, 0x20, 0x0c, (byte)0x9a, 0x66
+    };
+
+    private HandlerThread mCallbackThread;
+    private Handler mCallback;
+    private AtomicInteger mFrames;
+    private LoopbackObexTransport[] mTransports;
+    private ServerSession mServerSession;
+    private ClientSession mClientSession;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // absorbs the session messages the servers send to their services
+        mCallbackThread = new HandlerThread(TAG);
+        mCallbackThread.start();
+        mCallback = new Handler(mCallbackThread.getLooper());
+        mFrames = new AtomicInteger();
+        mTransports = LoopbackObexTransport.createPair(MTU, LATENCY_MS, mFrames);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mClientSession != null) {
+            mClientSession.close();
+        }
+        if (mServerSession != null) {
+            mServerSession.close();
+        }
+        mCallbackThread.quit();
+        super.tearDown();
+    }
+
+    private void connect(ServerRequestHandler server, byte[] target) throws IOException {
+        mServerSession = new ServerSession(mTransports[1], server, null);
+        mClientSession = new ClientSession(mTransports[0]);
+        HeaderSet request = new HeaderSet();
+        if (target != null) {
+            request.setHeader(HeaderSet.TARGET, target);
+        }
+        HeaderSet reply = mClientSession.connect(request);
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, reply.getResponseCode());
+    }
+
+    /**
+     * Counters for one measured transfer.
+     */
+    private class Measurement {
+        private final String mName;
+        private final long mStartTime;
+        private final long mStartCpu;
+        private final int mStartFrames;
+
+        Measurement(String name) {
+            mName = name;
+            Debug.resetGlobalAllocCounters();
+            Debug.startAllocCounting();
+            mStartFrames = mFrames.get();
+            mStartCpu = Process.getElapsedCpuTime();
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+
+        void finish(long bytes) {
+            long elapsedMs = Math.max(1, SystemClock.elapsedRealtime() - mStartTime);
+            long cpuMs = Process.getElapsedCpuTime() - mStartCpu;
+            Debug.stopAllocCounting();
+            int frames = Math.max(1, mFrames.get() - mStartFrames);
+            Log.i(TAG, mName + ": " + bytes + " bytes in " + elapsedMs + " ms, "
+                    + String.format("%.2f", bytes * 1000.0 / elapsedMs / (1024 * 1024))
+                    + " MB/s, " + frames + " frames, " + (cpuMs * 1000 / frames)
+                    + " us CPU per frame, " + Debug.getGlobalAllocCount() + " allocations of "
+                    + Debug.getGlobalAllocSize() + " bytes");
+        }
+    }
+
+    private long readAll(Operation op) throws IOException {
+        InputStream in = op.openInputStream();
+        byte[] buffer = new byte[op.getMaxPacketSize()];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            total += read;
+        }
+        in.close();
+        return total;
+    }
+
+    public void testOppPut() throws IOException {
+        final File source = new File(getContext().getCacheDir(), "obex_benchmark_src.bin");
+        final File file = new File(getContext().getCacheDir(), "obex_benchmark.bin");
+        RandomAccessFile raf = new RandomAccessFile(source, "rw");
+        raf.setLength(OPP_FILE_SIZE);
+        raf.close();
+        connect(new ServerRequestHandler() {
+            @Override
+            public int onPut(Operation op) {
+                try {
+                    InputStream in = op.openInputStream();
+                    long length = (Long) op.getReceivedHeader().getHeader(HeaderSet.LENGTH);
+                    BluetoothOppBenchmarkUtils.receive(getContext(), in, file, length,
+                            op.getMaxPacketSize());
+                    in.close();
+                    return ResponseCodes.OBEX_HTTP_OK;
+                } catch (IOException e) {
+                    Log.e(TAG, "Receive failed: " + e);
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                }
+            }
+        }, null);
+
+        HeaderSet request = new HeaderSet();
+        request.setHeader(HeaderSet.NAME, "obex_benchmark.bin");
+        request.setHeader(HeaderSet.TYPE, "application/octet-stream");
+        request.setHeader(HeaderSet.LENGTH, (long) OPP_FILE_SIZE);
+
+        Measurement measurement = new Measurement("OPP put");
+        Operation op = mClientSession.put(request);
+        OutputStream out = op.openOutputStream();
+        long sent = BluetoothOppBenchmarkUtils.send(source, OPP_FILE_SIZE, out,
+                op.getMaxPacketSize());
+        out.close();
+        int response = op.getResponseCode();
+        op.close();
+        measurement.finish(sent);
+
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, response);
+        assertEquals(OPP_FILE_SIZE, file.length());
+        file.delete();
+        source.delete();
+    }
+
+    public void testMapMessageListing() throws IOException {
+        final BluetoothMapContent content = new BluetoothMapContent(getContext(), null);
+        final BluetoothMapFolderElement inbox = new BluetoothMapFolderElement("root", null)
+                .addFolder("telecom").addFolder("msg").addSmsMmsFolder("inbox");
+        connect(new ServerRequestHandler() {
+            @Override
+            public int onGet(Operation op) {
+                BluetoothMapAppParams appParams = new BluetoothMapAppParams();
+                appParams.setMaxListCount(MAP_LISTING_SIZE);
+                appParams.setStartOffset(0);
+                appParams.setFilterMessageType(BluetoothMapAppParams.FILTER_NO_EMAIL);
+                // details are loaded while encoding, as the MAP server does
+                BluetoothMapMessageListing listing = content.msgListing(inbox, appParams, true);
+                try {
+                    OutputStream out = op.openOutputStream();
+                    listing.encode(out, false);
+                    out.close();
+                    return ResponseCodes.OBEX_HTTP_OK;
+                } catch (IOException e) {
+                    Log.e(TAG, "Listing failed: " + e);
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                } finally {
+                    listing.close();
+                }
+            }
+        }, null);
+
+        HeaderSet request = new HeaderSet();
+        request.setHeader(HeaderSet.NAME, "inbox");
+        request.setHeader(HeaderSet.TYPE, "x-bt/MAP-msg-listing");
+
+        Measurement measurement = new Measurement("MAP msg listing");
+        Operation op = mClientSession.get(request);
+        long received = readAll(op);
+        int response = op.getResponseCode();
+        op.close();
+        measurement.finish(received);
+
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, response);
+        assertTrue(received > 0);
+    }
+
+    public void testPbapPullPhonebook() throws IOException {
+        connect(new BluetoothPbapObexServer(mCallback, getContext()), PBAP_TARGET);
+
+        HeaderSet request = new HeaderSet();
+        request.setHeader(HeaderSet.NAME, "telecom/pb.vcf");
+        request.setHeader(HeaderSet.TYPE, "x-bt/phonebook");
+
+        Measurement measurement = new Measurement("PBAP pull phonebook");
+        Operation op = mClientSession.get(request);
+        long received = readAll(op);
+        int response = op.getResponseCode();
+        op.close();
+        measurement.finish(received);
+
+        assertEquals(ResponseCodes.OBEX_HTTP_OK, response);
+    }
+}